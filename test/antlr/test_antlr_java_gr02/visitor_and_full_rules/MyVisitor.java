@@ -1,7 +1,7 @@
 import org.antlr.v4.runtime.tree.TerminalNodeImpl;
 import org.antlr.v4.runtime.tree.ParseTree;
 
-public class MyVisitor extends gr02BaseVisitor<Double> {
+public class MyVisitor extends gr02BaseVisitor<Double> implements ConstantFolder.Visitor<Double> {
     public int verbose = 0;
 
     @Override
@@ -103,4 +103,9 @@ public class MyVisitor extends gr02BaseVisitor<Double> {
         }
         return Double.valueOf(ctx.NUMBER().getText());
     }
+
+    @Override
+    public Double visitFolded(ConstantFolder.Folded ctx) {
+        return ctx.value;
+    }
 }
@@ -0,0 +1,89 @@
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Same evaluation as MyVisitor, but on primitive doubles: no boxed Double
+// per node and no visitor dispatch. Alternatives are told apart by child
+// count and operator token type, as in MyVisitor.
+class PrimitiveEvaluator {
+
+    static double eval(ParseTree tree) {
+        if (tree instanceof ConstantFolder.Folded) {
+            return ((ConstantFolder.Folded) tree).value;
+        }
+        ParserRuleContext ctx = (ParserRuleContext) tree;
+        switch (ctx.getRuleIndex()) {
+            case gr02Parser.RULE_expression:
+                return eval(ctx.getChild(0));
+            case gr02Parser.RULE_addsub:
+                if (ctx.getChildCount() == 3) {
+                    double v1 = eval(ctx.getChild(0));
+                    double v2 = eval(ctx.getChild(2));
+                    if (tokenType(ctx.getChild(1)) == gr02Lexer.PLUS) {
+                        return v1 + v2;
+                    } else {
+                        return v1 - v2;
+                    }
+                }
+                return eval(ctx.getChild(0));
+            case gr02Parser.RULE_muldiv:
+                if (ctx.getChildCount() == 3) {
+                    double v1 = eval(ctx.getChild(0));
+                    double v2 = eval(ctx.getChild(2));
+                    if (tokenType(ctx.getChild(1)) == gr02Lexer.STAR) {
+                        return v1 * v2;
+                    } else {
+                        return v1 / v2;
+                    }
+                }
+                return eval(ctx.getChild(0));
+            case gr02Parser.RULE_power:
+                if (ctx.getChildCount() == 3) {
+                    return Math.pow(eval(ctx.getChild(0)), eval(ctx.getChild(2)));
+                }
+                return eval(ctx.getChild(0));
+            case gr02Parser.RULE_unary:
+                if (ctx.getChildCount() == 2) {
+                    if (tokenType(ctx.getChild(0)) == gr02Lexer.MINUS) {
+                        return -eval(ctx.getChild(1));
+                    }
+                    return eval(ctx.getChild(1));
+                }
+                return eval(ctx.getChild(0));
+            case gr02Parser.RULE_atom:
+                if (ctx.getChildCount() == 3) {
+                    return eval(ctx.getChild(1));
+                }
+                return numberValue(((TerminalNode) ctx.getChild(0)).getSymbol());
+            default:
+                throw new IllegalStateException("Unexpected rule: " + ctx.getRuleIndex());
+        }
+    }
+
+    static int tokenType(ParseTree node) {
+        return ((TerminalNode) node).getSymbol().getType();
+    }
+
+    // Double.valueOf(token.getText()) without creating the text:
+    // digits are read back from the lexer input. Up to 18 digits fit
+    // into a long exactly, and long to double conversion rounds the same
+    // way as the string parser does.
+    static double numberValue(Token token) {
+        int start = token.getStartIndex();
+        int stop = token.getStopIndex();
+        CharStream input = token.getInputStream();
+        if (input == null || stop - start >= 18) {
+            return Double.valueOf(token.getText());
+        }
+        int saved = input.index();
+        input.seek(start);
+        long value = 0;
+        for (int i = 1; i <= stop - start + 1; ++i) {
+            value = value * 10 + (input.LA(i) - '0');
+        }
+        input.seek(saved);
+        return (double) value;
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+// Evaluates one long expression repeatedly with MyVisitor, with
+// PrimitiveEvaluator, with StackEvaluator and after ConstantFolder,
+// reporting time and heap allocation per evaluation.
+public class MyBench {
+
+    interface Evaluation {
+        double run();
+    }
+
+    static String makeExpression(int terms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < terms; ++i) {
+            if (i > 0) {
+                sb.append(" +*-/".charAt(1 + i % 4));
+            }
+            sb.append('(').append(i % 7 + 1).append("**2+").append(i % 3).append(')');
+        }
+        return sb.toString();
+    }
+
+    static void measure(String name, Evaluation evaluation, int iterations) {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        double sink = 0;
+        for (int i = 0; i < iterations; ++i) {
+            sink += evaluation.run();
+        }
+        long bytes0 = mx.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            sink += evaluation.run();
+        }
+        long t1 = System.nanoTime();
+        long bytes1 = mx.getThreadAllocatedBytes(tid);
+        double seconds = (t1 - t0) / 1e9;
+        System.out.printf("%-20s %10.1f us/eval %12.1f bytes/eval %10.1f MB/s allocated (sink=%s)\n",
+                name, (t1 - t0) / 1e3 / iterations, (double) (bytes1 - bytes0) / iterations,
+                (bytes1 - bytes0) / 1e6 / seconds, sink);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int terms = (args.length > 0) ? Integer.valueOf(args[0]) : 500;
+        int iterations = (args.length > 1) ? Integer.valueOf(args[1]) : 5000;
+        String expr_text = makeExpression(terms);
+        InputStream string_reading = new ByteArrayInputStream(expr_text.getBytes(StandardCharsets.UTF_8));
+        ANTLRInputStream input = new ANTLRInputStream(string_reading);
+        gr02Lexer lexer = new gr02Lexer(input);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        gr02Parser parser = new gr02Parser(tokens);
+        gr02Parser.ExpressionContext tree = parser.expression();
+        MyVisitor visitor = new MyVisitor();
+        StackEvaluator evaluator = new StackEvaluator();
+        System.out.printf("Expression of %d terms, %d chars\n", terms, expr_text.length());
+        ConstantFolder folder = new ConstantFolder();
+        ParseTree folded = folder.fold(tree);
+        System.out.printf("Folding removed %d rule nodes\n", folder.removed);
+        for (int round = 0; round < 3; ++round) {
+            measure("MyVisitor", () -> visitor.visit(tree), iterations);
+            measure("PrimitiveEvaluator", () -> PrimitiveEvaluator.eval(tree), iterations);
+            measure("StackEvaluator", () -> evaluator.eval(tree), iterations);
+            measure("folded", () -> visitor.visit(folded), iterations);
+        }
+    }
+}
@@ -17,7 +17,7 @@ public class MyTest {
             gr02Lexer lexer = new gr02Lexer(input);
             CommonTokenStream tokens = new CommonTokenStream(lexer);
             gr02Parser parser = new gr02Parser(tokens);
-            ParseTree tree = parser.expression();
+            gr02Parser.ExpressionContext tree = parser.expression();
             MyVisitor visitor = new MyVisitor();
             visitor.verbose = m_verbose;
             Double result = visitor.visit(tree);
@@ -28,6 +28,30 @@ public class MyTest {
                 String et = String.format("Test failed: expr=<%s> expected=%s result=%s", expr_text, expected, result);
                 throw new RuntimeException(et);
             }
+            double presult = PrimitiveEvaluator.eval(tree);
+            if (presult != expected) {
+                String et = String.format("Test failed: expr=<%s> expected=%s PrimitiveEvaluator result=%s",
+                        expr_text, expected, presult);
+                throw new RuntimeException(et);
+            }
+            double sresult = new StackEvaluator().eval(tree);
+            if (Double.doubleToLongBits(sresult) != Double.doubleToLongBits(result)) {
+                String et = String.format("Test failed: expr=<%s> expected=%s StackEvaluator result=%s",
+                        expr_text, result, sresult);
+                throw new RuntimeException(et);
+            }
+            // Bit for bit, so that -0 stays -0
+            ConstantFolder folder = new ConstantFolder();
+            ParseTree folded = folder.fold(tree);
+            double fresult = visitor.visit(folded);
+            double fpresult = PrimitiveEvaluator.eval(folded);
+            if (Double.doubleToLongBits(fresult) != Double.doubleToLongBits(result)
+                    || Double.doubleToLongBits(fpresult) != Double.doubleToLongBits(result)
+                    || folder.removed != ConstantFolder.countRules(tree) - 1) {
+                String et = String.format("Test failed: expr=<%s> expected=%s folded result=%s/%s removed=%d",
+                        expr_text, result, fresult, fpresult, folder.removed);
+                throw new RuntimeException(et);
+            }
         } catch (RuntimeException exc) {
             String msg = String.format("Test failed: expr=<%s> exception=<%s>", expr_text, exc);
             System.out.println(msg);
@@ -35,6 +59,47 @@ public class MyTest {
         }
     }
 
+    // The parser recurses once per nesting level, so deep inputs are
+    // parsed on a thread with a large stack; StackEvaluator needs none.
+    gr02Parser.ExpressionContext parseDeep(String expr_text) throws Exception {
+        gr02Parser.ExpressionContext[] tree = new gr02Parser.ExpressionContext[1];
+        Thread parsing = new Thread(null, () -> {
+            gr02Parser parser = new gr02Parser(new CommonTokenStream(new gr02Lexer(new ANTLRInputStream(expr_text))));
+            parser.setErrorHandler(new BailErrorStrategy());
+            tree[0] = parser.expression();
+        }, "parseDeep", 1L << 30);
+        parsing.start();
+        parsing.join();
+        return tree[0];
+    }
+
+    void testDeep() throws Exception {
+        int n = 100000;
+        StringBuilder sum = new StringBuilder("1");
+        StringBuilder pow = new StringBuilder();
+        StringBuilder parens = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            sum.append("+1");
+            pow.append("1**");
+        }
+        pow.append("2");
+        for (int i = 0; i < 1000; ++i) {
+            parens.append("(-");
+        }
+        parens.append("3");
+        for (int i = 0; i < 1000; ++i) {
+            parens.append(")");
+        }
+        Object[][] cases = {{sum, n + 1.0}, {pow, 1.0}, {parens, 3.0}};
+        StackEvaluator evaluator = new StackEvaluator();
+        for (Object[] c : cases) {
+            double result = evaluator.eval(parseDeep(c[0].toString()));
+            if (result != (Double) c[1]) {
+                throw new RuntimeException(String.format("Test failed: testDeep <%.20s...> result=%s", c[0], result));
+            }
+        }
+    }
+
     void testExpressionFail(String expr_text) throws Exception {
         if (m_verbose > 0) {
             System.out.printf("testExpressionFail(<%s>)\n", expr_text);
@@ -100,6 +165,7 @@ public class MyTest {
         testExpression("3*3**3", 81);
         testExpression("2**2**2", 16);
         testExpression("2**3**2", 512);
+        testDeep();
         testExpressionFail("+");
         testExpressionFail("");
         testExpressionFail("(");
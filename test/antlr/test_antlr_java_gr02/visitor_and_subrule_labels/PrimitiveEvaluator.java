@@ -0,0 +1,82 @@
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Same evaluation as MyVisitor, but on primitive doubles: no boxed Double
+// per node and no visitor dispatch. Children are taken by position
+// (e.g. Asplus is [addsub, '+', muldiv]) since the typed getters iterate
+// over the child list.
+class PrimitiveEvaluator {
+
+    static double eval(ParseTree tree) {
+        if (tree instanceof ConstantFolder.Folded) {
+            return ((ConstantFolder.Folded) tree).value;
+        }
+        ParserRuleContext ctx = (ParserRuleContext) tree;
+        switch (ctx.getRuleIndex()) {
+            case gr02Parser.RULE_expression:
+                return eval(ctx.getChild(0));
+            case gr02Parser.RULE_addsub:
+                if (ctx instanceof gr02Parser.As0Context) {
+                    return eval(ctx.getChild(0));
+                } else if (ctx instanceof gr02Parser.AsplusContext) {
+                    return eval(ctx.getChild(0)) + eval(ctx.getChild(2));
+                } else {
+                    return eval(ctx.getChild(0)) - eval(ctx.getChild(2));
+                }
+            case gr02Parser.RULE_muldiv:
+                if (ctx instanceof gr02Parser.Md0Context) {
+                    return eval(ctx.getChild(0));
+                } else if (ctx instanceof gr02Parser.MdmulContext) {
+                    return eval(ctx.getChild(0)) * eval(ctx.getChild(2));
+                } else {
+                    return eval(ctx.getChild(0)) / eval(ctx.getChild(2));
+                }
+            case gr02Parser.RULE_power:
+                if (ctx instanceof gr02Parser.Pwr0Context) {
+                    return eval(ctx.getChild(0));
+                } else {
+                    return Math.pow(eval(ctx.getChild(0)), eval(ctx.getChild(2)));
+                }
+            case gr02Parser.RULE_unary:
+                if (ctx instanceof gr02Parser.Un0Context) {
+                    return eval(ctx.getChild(0));
+                } else if (ctx instanceof gr02Parser.UnplusContext) {
+                    return eval(ctx.getChild(1));
+                } else {
+                    return -eval(ctx.getChild(1));
+                }
+            case gr02Parser.RULE_atom:
+                if (ctx instanceof gr02Parser.AtomnumContext) {
+                    return numberValue(((TerminalNode) ctx.getChild(0)).getSymbol());
+                } else {
+                    return eval(ctx.getChild(1));
+                }
+            default:
+                throw new IllegalStateException("Unexpected rule: " + ctx.getRuleIndex());
+        }
+    }
+
+    // Double.valueOf(token.getText()) without creating the text:
+    // digits are read back from the lexer input. Up to 18 digits fit
+    // into a long exactly, and long to double conversion rounds the same
+    // way as the string parser does.
+    static double numberValue(Token token) {
+        int start = token.getStartIndex();
+        int stop = token.getStopIndex();
+        CharStream input = token.getInputStream();
+        if (input == null || stop - start >= 18) {
+            return Double.valueOf(token.getText());
+        }
+        int saved = input.index();
+        input.seek(start);
+        long value = 0;
+        for (int i = 1; i <= stop - start + 1; ++i) {
+            value = value * 10 + (input.LA(i) - '0');
+        }
+        input.seek(saved);
+        return (double) value;
+    }
+}
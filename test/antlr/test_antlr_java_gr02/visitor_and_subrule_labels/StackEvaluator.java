@@ -0,0 +1,120 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Same evaluation as MyVisitor, without Java recursion: operators waiting
+// for operands are kept on an explicit work stack and operand values on a
+// double stack, so nesting depth is limited by the heap only.
+// Nodes which just pass one child's value on (expression, as0, md0, pwr0,
+// un0, unplus and parentheses) are skipped while descending and take no
+// stack entry. A ConstantFolder.Folded node is a leaf.
+// The stacks are kept between calls; an evaluator is for one thread.
+class StackEvaluator {
+    static final int OP_ADD = 0;
+    static final int OP_SUB = 1;
+    static final int OP_MUL = 2;
+    static final int OP_DIV = 3;
+    static final int OP_POW = 4;
+    static final int OP_NEG = 5;
+
+    // Per pending operator: its code and the right operand not yet
+    // evaluated (null once it is being evaluated)
+    int[] ops = new int[64];
+    ParseTree[] rights = new ParseTree[64];
+    int depth = 0;
+    double[] values = new double[64];
+    int count = 0;
+
+    double eval(ParseTree tree) {
+        depth = 0;
+        count = 0;
+        ParseTree node = tree;
+        for (;;) {
+            descend(node);
+            // Apply what has all its operands, up to the next right operand
+            for (;;) {
+                if (depth == 0) {
+                    return values[0];
+                }
+                int top = depth - 1;
+                if (ops[top] == OP_NEG) {
+                    values[count - 1] = -values[count - 1];
+                    --depth;
+                } else if (rights[top] != null) {
+                    node = rights[top];
+                    rights[top] = null;
+                    break;
+                } else {
+                    double right = values[--count];
+                    values[count - 1] = apply(ops[top], values[count - 1], right);
+                    --depth;
+                }
+            }
+        }
+    }
+
+    // Pushes operators down the left edge of the subtree and the value of
+    // its leftmost leaf.
+    void descend(ParseTree node) {
+        for (;;) {
+            if (node instanceof ConstantFolder.Folded) {
+                pushValue(((ConstantFolder.Folded) node).value);
+                return;
+            }
+            ParserRuleContext ctx = (ParserRuleContext) node;
+            if (ctx instanceof gr02Parser.AsplusContext) {
+                pushOp(OP_ADD, ctx.getChild(2));
+            } else if (ctx instanceof gr02Parser.AsminusContext) {
+                pushOp(OP_SUB, ctx.getChild(2));
+            } else if (ctx instanceof gr02Parser.MdmulContext) {
+                pushOp(OP_MUL, ctx.getChild(2));
+            } else if (ctx instanceof gr02Parser.MddivContext) {
+                pushOp(OP_DIV, ctx.getChild(2));
+            } else if (ctx instanceof gr02Parser.PwrpwrContext) {
+                pushOp(OP_POW, ctx.getChild(2));
+            } else if (ctx instanceof gr02Parser.UnminusContext) {
+                pushOp(OP_NEG, null);
+                node = ctx.getChild(1);
+                continue;
+            } else if (ctx instanceof gr02Parser.AtomnumContext) {
+                pushValue(PrimitiveEvaluator.numberValue(((TerminalNode) ctx.getChild(0)).getSymbol()));
+                return;
+            } else if (ctx instanceof gr02Parser.UnplusContext || ctx instanceof gr02Parser.AtomexprContext) {
+                node = ctx.getChild(1);
+                continue;
+            }
+            node = ctx.getChild(0);
+        }
+    }
+
+    void pushOp(int op, ParseTree right) {
+        if (depth == ops.length) {
+            ops = java.util.Arrays.copyOf(ops, depth * 2);
+            rights = java.util.Arrays.copyOf(rights, depth * 2);
+        }
+        ops[depth] = op;
+        rights[depth++] = right;
+    }
+
+    void pushValue(double value) {
+        if (count == values.length) {
+            values = java.util.Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = value;
+    }
+
+    static double apply(int op, double left, double right) {
+        switch (op) {
+            case OP_ADD:
+                return left + right;
+            case OP_SUB:
+                return left - right;
+            case OP_MUL:
+                return left * right;
+            case OP_DIV:
+                return left / right;
+            default:
+                return Math.pow(left, right);
+        }
+    }
+}
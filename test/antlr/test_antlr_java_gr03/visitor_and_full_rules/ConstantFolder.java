@@ -0,0 +1,54 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeVisitor;
+
+// Optimization pass over a gr03 parse tree. gr03 has only numbers, so every
+// subtree is constant: the expression is computed once, by MyVisitor
+// itself so that IEEE results (-0, NaN) and the precedence of -2**2 stay
+// as they were, and stands as one Folded node. Sign chains like --1 go
+// away with the rest of the tree.
+// The original tree is kept as the only child of the Folded node: MyVisitor
+// (a ConstantFolder.Visitor) and PrimitiveEvaluator take the value, other
+// visitors walk the original through visitChildren().
+class ConstantFolder {
+
+    interface Visitor<T> {
+        T visitFolded(Folded ctx);
+    }
+
+    static final class Folded extends gr03Parser.ExpressionContext {
+        final double value;
+
+        Folded(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+            addChild(original);
+            original.parent = this;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            if (visitor instanceof Visitor) {
+                return ((Visitor<? extends T>) visitor).visitFolded(this);
+            }
+            return visitor.visitChildren(this);
+        }
+    }
+
+    // Rule nodes no longer visited
+    int removed = 0;
+
+    Folded fold(gr03Parser.ExpressionContext tree) {
+        removed += countRules(tree) - 1;
+        return new Folded(tree, new MyVisitor().visit(tree));
+    }
+
+    static int countRules(ParseTree tree) {
+        int count = (tree instanceof ParserRuleContext) ? 1 : 0;
+        for (int i = 0; i < tree.getChildCount(); ++i) {
+            count += countRules(tree.getChild(i));
+        }
+        return count;
+    }
+}
@@ -1,7 +1,7 @@
 import org.antlr.v4.runtime.tree.TerminalNodeImpl;
 import org.antlr.v4.runtime.tree.ParseTree;
 
-public class MyVisitor extends gr03BaseVisitor<Double> {
+public class MyVisitor extends gr03BaseVisitor<Double> implements ConstantFolder.Visitor<Double> {
     public int verbose = 0;
 
     @Override
@@ -100,4 +100,9 @@ public class MyVisitor extends gr03BaseVisitor<Double> {
         }
         return Double.valueOf(ctx.NUMBER().getText());
     }
+
+    @Override
+    public Double visitFolded(ConstantFolder.Folded ctx) {
+        return ctx.value;
+    }
 }
@@ -0,0 +1,138 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Same evaluation as MyVisitor, without Java recursion: operators waiting
+// for operands are kept on an explicit work stack and operand values on a
+// double stack, so nesting depth is limited by the heap only.
+// Nodes which just pass one child's value on (single-child rules, unary
+// plus and parentheses) are skipped while descending and take no
+// stack entry. A ConstantFolder.Folded node is a leaf.
+// The stacks are kept between calls; an evaluator is for one thread.
+class StackEvaluator {
+    static final int OP_ADD = 0;
+    static final int OP_SUB = 1;
+    static final int OP_MUL = 2;
+    static final int OP_DIV = 3;
+    static final int OP_POW = 4;
+    static final int OP_NEG = 5;
+
+    // Per pending operator: its code and the right operand not yet
+    // evaluated (null once it is being evaluated)
+    int[] ops = new int[64];
+    ParseTree[] rights = new ParseTree[64];
+    int depth = 0;
+    double[] values = new double[64];
+    int count = 0;
+
+    double eval(ParseTree tree) {
+        depth = 0;
+        count = 0;
+        ParseTree node = tree;
+        for (;;) {
+            descend(node);
+            // Apply what has all its operands, up to the next right operand
+            for (;;) {
+                if (depth == 0) {
+                    return values[0];
+                }
+                int top = depth - 1;
+                if (ops[top] == OP_NEG) {
+                    values[count - 1] = -values[count - 1];
+                    --depth;
+                } else if (rights[top] != null) {
+                    node = rights[top];
+                    rights[top] = null;
+                    break;
+                } else {
+                    double right = values[--count];
+                    values[count - 1] = apply(ops[top], values[count - 1], right);
+                    --depth;
+                }
+            }
+        }
+    }
+
+    // Pushes operators down the left edge of the subtree and the value of
+    // its leftmost leaf. Alternatives are told apart by child count and
+    // operator token type, as in MyVisitor.
+    void descend(ParseTree node) {
+        for (;;) {
+            if (node instanceof ConstantFolder.Folded) {
+                pushValue(((ConstantFolder.Folded) node).value);
+                return;
+            }
+            ParserRuleContext ctx = (ParserRuleContext) node;
+            boolean binary = (ctx.getChildCount() == 3);
+            switch (ctx.getRuleIndex()) {
+                case gr03Parser.RULE_addsub:
+                    if (binary) {
+                        pushOp(PrimitiveEvaluator.tokenType(ctx.getChild(1)) == gr03Lexer.PLUS ? OP_ADD : OP_SUB,
+                                ctx.getChild(2));
+                    }
+                    break;
+                case gr03Parser.RULE_muldiv:
+                    if (binary) {
+                        pushOp(PrimitiveEvaluator.tokenType(ctx.getChild(1)) == gr03Lexer.STAR ? OP_MUL : OP_DIV,
+                                ctx.getChild(2));
+                    }
+                    break;
+                case gr03Parser.RULE_power:
+                    if (binary) {
+                        pushOp(OP_POW, ctx.getChild(2));
+                    }
+                    break;
+                case gr03Parser.RULE_unary:
+                    if (ctx.getChildCount() == 2) {
+                        if (PrimitiveEvaluator.tokenType(ctx.getChild(0)) == gr03Lexer.MINUS) {
+                            pushOp(OP_NEG, null);
+                        }
+                        node = ctx.getChild(1);
+                        continue;
+                    }
+                    break;
+                case gr03Parser.RULE_atom:
+                    if (binary) {
+                        node = ctx.getChild(1);
+                        continue;
+                    }
+                    pushValue(PrimitiveEvaluator.numberValue(((TerminalNode) ctx.getChild(0)).getSymbol()));
+                    return;
+                default:
+                    break;
+            }
+            node = ctx.getChild(0);
+        }
+    }
+
+    void pushOp(int op, ParseTree right) {
+        if (depth == ops.length) {
+            ops = java.util.Arrays.copyOf(ops, depth * 2);
+            rights = java.util.Arrays.copyOf(rights, depth * 2);
+        }
+        ops[depth] = op;
+        rights[depth++] = right;
+    }
+
+    void pushValue(double value) {
+        if (count == values.length) {
+            values = java.util.Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = value;
+    }
+
+    static double apply(int op, double left, double right) {
+        switch (op) {
+            case OP_ADD:
+                return left + right;
+            case OP_SUB:
+                return left - right;
+            case OP_MUL:
+                return left * right;
+            case OP_DIV:
+                return left / right;
+            default:
+                return Math.pow(left, right);
+        }
+    }
+}
@@ -1,4 +1,4 @@
-public class MyVisitor extends gr03BaseVisitor<Double> {
+public class MyVisitor extends gr03BaseVisitor<Double> implements ConstantFolder.Visitor<Double> {
     public int verbose = 0;
 
     @Override
@@ -94,4 +94,9 @@ public class MyVisitor extends gr03BaseVisitor<Double> {
         }
         return Double.valueOf(ctx.NUMBER().getText());
     }
+
+    @Override
+    public Double visitFolded(ConstantFolder.Folded ctx) {
+        return ctx.value;
+    }
 }
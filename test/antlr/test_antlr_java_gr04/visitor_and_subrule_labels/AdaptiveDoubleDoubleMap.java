@@ -0,0 +1,263 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// DoubleDoubleMap which starts dense: while every key is an integer (as a
+// double; -0.0 is not one) and the keys fill their window densely enough,
+// the value of key k is values[k - base] and its presence a bit in the
+// inherited keys array, used as a bitmap. A lookup is then a range check
+// and an array index. The first fractional key (or -0.0, NaN, beyond int)
+// and the first key which would leave the window too sparse migrate the map
+// to the inherited hashed representation, for good.
+//
+// The bitmap is replaced whenever values is, so AstNode.ConstIndexed, which
+// caches a find() position by the identity of keys, works in both modes.
+class AdaptiveDoubleDoubleMap extends DoubleDoubleMap {
+    // Window sizes are multiples of 64, the bits in a bitmap word.
+    static final int MIN_WINDOW = 64;
+    static final int MAX_INITIAL_WINDOW = 1 << 16;
+    static final int MAX_WINDOW = 1 << 30;
+    // The keys may span this many integers per entry, or MIN_WINDOW.
+    static final int MAX_SPARSITY = 4;
+
+    static final LongAdder dense_maps = new LongAdder();
+    static final LongAdder window_grows = new LongAdder();
+    static final LongAdder sparse_migrations = new LongAdder();
+    static final LongAdder fractional_migrations = new LongAdder();
+
+    boolean dense = true;
+    int base = 0;
+    int dense_size = 0;
+    // Smallest and largest key while dense
+    int min_key;
+    int max_key;
+    // Entries when the map went hashed, -1 while dense
+    int migrated_size = -1;
+
+    AdaptiveDoubleDoubleMap() {
+        this(0);
+    }
+
+    AdaptiveDoubleDoubleMap(int expected_size) {
+        super(0);
+        int window = MIN_WINDOW;
+        while (window < expected_size && window < MAX_INITIAL_WINDOW) {
+            window <<= 1;
+        }
+        values = new double[window];
+        keys = new long[window >>> 6];
+        dense_maps.increment();
+    }
+
+    static String stats() {
+        return String.format("adaptive maps: %d created, %d window grows, %d sparse and %d fractional migrations\n",
+                dense_maps.sum(), window_grows.sum(), sparse_migrations.sum(), fractional_migrations.sum());
+    }
+
+    static boolean integral(double key) {
+        int k = (int) key;
+        return k == key && (k != 0 || Double.doubleToRawLongBits(key) == 0L);
+    }
+
+    // Window position of a present key, or -1. Dense mode only.
+    int position(double key) {
+        int k = (int) key;
+        long pos = (long) k - base;
+        if (k == key && pos >= 0 && pos < values.length && (keys[(int) pos >>> 6] & (1L << pos)) != 0
+                && (k != 0 || Double.doubleToRawLongBits(key) == 0L)) {
+            return (int) pos;
+        }
+        return -1;
+    }
+
+    @Override
+    int size() {
+        return dense ? dense_size : super.size();
+    }
+
+    @Override
+    int find(long bits) {
+        return dense ? position(Double.longBitsToDouble(bits)) : super.find(bits);
+    }
+
+    @Override
+    boolean containsKey(double key) {
+        return dense ? position(key) >= 0 : super.containsKey(key);
+    }
+
+    @Override
+    double getOrFail(double key) {
+        if (dense) {
+            int pos = position(key);
+            if (pos < 0) {
+                throw new DCExecutionError("Map element not found");
+            }
+            return values[pos];
+        }
+        return super.getOrFail(key);
+    }
+
+    @Override
+    void put(double key, double value) {
+        if (dense) {
+            if (!integral(key)) {
+                migrate(fractional_migrations);
+            } else {
+                int k = (int) key;
+                long pos = (long) k - base;
+                if (pos < 0 || pos >= values.length) {
+                    pos = extend(k);
+                }
+                if (pos >= 0) {
+                    int i = (int) pos;
+                    if ((keys[i >>> 6] & (1L << i)) == 0) {
+                        keys[i >>> 6] |= 1L << i;
+                        min_key = (dense_size == 0) ? k : Math.min(min_key, k);
+                        max_key = (dense_size == 0) ? k : Math.max(max_key, k);
+                        ++dense_size;
+                    }
+                    values[i] = value;
+                    return;
+                }
+                migrate(sparse_migrations);
+            }
+        }
+        super.put(key, value);
+    }
+
+    // Moves or grows the window to take k: the new position of k, or -1 if
+    // the keys would get too sparse or the window too large. The window is
+    // at least twice the span of the keys, with the room on the side where
+    // k is, so that keys coming in one direction do not move it every time.
+    long extend(int k) {
+        if (dense_size == 0) {
+            base = k;
+            return 0;
+        }
+        long low = Math.min(min_key, k);
+        long high = Math.max(max_key, k) + 1L;
+        long span = high - low;
+        if (span > Math.max(MIN_WINDOW, (long) MAX_SPARSITY * (dense_size + 1))) {
+            return -1;
+        }
+        long capacity = values.length;
+        while (capacity < 2 * span) {
+            capacity <<= 1;
+        }
+        if (capacity > MAX_WINDOW) {
+            return -1;
+        }
+        long new_base = (k < base) ? high - capacity : low;
+        new_base = Math.max(Integer.MIN_VALUE, Math.min(new_base, Integer.MAX_VALUE + 1L - capacity));
+        long[] old_bitmap = keys;
+        double[] old_values = values;
+        int shift = (int) (base - new_base);
+        keys = new long[(int) capacity >>> 6];
+        values = new double[(int) capacity];
+        for (int w = 0; w < old_bitmap.length; ++w) {
+            long word = old_bitmap[w];
+            while (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                int j = i + shift;
+                keys[j >>> 6] |= 1L << j;
+                values[j] = old_values[i];
+            }
+        }
+        base = (int) new_base;
+        window_grows.increment();
+        return k - new_base;
+    }
+
+    @Override
+    void clear() {
+        if (!dense) {
+            super.clear();
+            return;
+        }
+        values = new double[values.length];
+        keys = new long[keys.length];
+        dense_size = 0;
+    }
+
+    void migrate(LongAdder reason) {
+        long[] bitmap = keys;
+        double[] dense_values = values;
+        dense = false;
+        migrated_size = dense_size;
+        reason.increment();
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 <= dense_size) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+        for (int w = 0; w < bitmap.length; ++w) {
+            long word = bitmap[w];
+            while (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                super.put(base + i, dense_values[i]);
+            }
+        }
+    }
+
+    @Override
+    void forEach(EntryConsumer consumer) {
+        if (!dense) {
+            super.forEach(consumer);
+            return;
+        }
+        for (int w = 0; w < keys.length; ++w) {
+            long word = keys[w];
+            while (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                consumer.accept(base + i, values[i]);
+            }
+        }
+    }
+
+    @Override
+    void updateValues(ChunkUpdater updater) {
+        if (!dense) {
+            super.updateValues(updater);
+            return;
+        }
+        double[] chunk_keys = new double[CHUNK];
+        double[] chunk_values = new double[CHUNK];
+        int[] positions = new int[CHUNK];
+        int n = 0;
+        for (int w = 0; w < keys.length; ++w) {
+            long word = keys[w];
+            while (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                chunk_keys[n] = base + i;
+                chunk_values[n] = values[i];
+                positions[n++] = i;
+                if (n == CHUNK) {
+                    updateChunk(updater, chunk_keys, chunk_values, positions, n);
+                    n = 0;
+                }
+            }
+        }
+        if (n > 0) {
+            updateChunk(updater, chunk_keys, chunk_values, positions, n);
+        }
+    }
+
+    @Override
+    double reduce(int function) {
+        if (!dense) {
+            return super.reduce(function);
+        }
+        double acc = identity(function);
+        for (int w = 0; w < keys.length; ++w) {
+            long word = keys[w];
+            while (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                acc = combine(function, acc, values[i]);
+            }
+        }
+        return acc;
+    }
+}
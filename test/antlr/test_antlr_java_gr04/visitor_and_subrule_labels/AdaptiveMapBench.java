@@ -0,0 +1,83 @@
+// Lookups through IndexedReferenceSV in a @defmap map as ExecutionContext
+// makes it (AdaptiveDoubleDoubleMap) and in a plain hashed DoubleDoubleMap,
+// for key patterns which keep the adaptive map dense (consecutive, every
+// third key) and which migrate it (every fifth key, fractional keys). Keys
+// are looked up in order and in a shuffled order.
+public class AdaptiveMapBench {
+    static final String[] PATTERNS = {"consecutive", "stride 3", "stride 5", "fractional"};
+
+    static double key(int pattern, int i) {
+        switch (pattern) {
+            case 0:
+                return i;
+            case 1:
+                return 3.0 * i;
+            case 2:
+                return 5.0 * i;
+            default:
+                return i + 0.5;
+        }
+    }
+
+    // ns per lookup of keys[order[i]]
+    static double lookups(ExecutionContext econtext, double[] keys, int[] order, int rounds) {
+        ScalarSV index = new ScalarSV(0);
+        IndexedReferenceSV ref = new IndexedReferenceSV(new IdentifierSV("m", econtext.symbols.intern("m")), index);
+        double check = 0;
+        long t0 = System.nanoTime();
+        for (int round = 0; round < rounds; ++round) {
+            for (int i = 0; i < order.length; ++i) {
+                index.value = keys[order[i]];
+                check += ref.getRValue(econtext);
+            }
+        }
+        long t1 = System.nanoTime();
+        if (check != (double) rounds * order.length * (order.length - 1) / 2) {
+            throw new IllegalStateException("AdaptiveMapBench: " + check);
+        }
+        return (double) (t1 - t0) / rounds / order.length;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0) ? Integer.valueOf(args[0]) : 1000000;
+        int rounds = (args.length > 1) ? Integer.valueOf(args[1]) : 10;
+        int[] sequential = new int[size];
+        int[] shuffled = new int[size];
+        for (int i = 0; i < size; ++i) {
+            sequential[i] = shuffled[i] = i;
+        }
+        java.util.Random random = new java.util.Random(1);
+        for (int i = size - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int t = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = t;
+        }
+        for (int round = 0; round < 2; ++round) {
+            for (int pattern = 0; pattern < PATTERNS.length; ++pattern) {
+                double[] keys = new double[size];
+                ExecutionContext hashed = new ExecutionContext(new SymbolTable());
+                ExecutionContext adaptive = new ExecutionContext(new SymbolTable());
+                hashed.setMap(hashed.symbols.intern("m"), new DoubleDoubleMap());
+                adaptive.createMap("m");
+                for (int i = 0; i < size; ++i) {
+                    keys[i] = key(pattern, i);
+                    hashed.getMap("m").put(keys[i], i);
+                }
+                long t0 = System.nanoTime();
+                for (int i = 0; i < size; ++i) {
+                    adaptive.getMap("m").put(keys[i], i);
+                }
+                long t1 = System.nanoTime();
+                AdaptiveDoubleDoubleMap themap = (AdaptiveDoubleDoubleMap) adaptive.getMap("m");
+                System.out.printf("%-11s (%s, fill %5.1f ms): in order hashed %5.2f adaptive %5.2f ns,"
+                        + " shuffled hashed %5.2f adaptive %5.2f ns\n",
+                        PATTERNS[pattern],
+                        themap.dense ? "dense" : "hashed after " + themap.migrated_size, (t1 - t0) / 1e6,
+                        lookups(hashed, keys, sequential, rounds), lookups(adaptive, keys, sequential, rounds),
+                        lookups(hashed, keys, shuffled, rounds), lookups(adaptive, keys, shuffled, rounds));
+            }
+        }
+        System.out.print(AdaptiveDoubleDoubleMap.stats());
+    }
+}
@@ -0,0 +1,142 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Builds the AstNode tree of a gr04 statement. Mirrors MyVisitor rule by
+// rule; single-child rules and unary '+' pass their child node through.
+public class AstBuilder extends gr04BaseVisitor<AstNode> {
+
+    static AstNode.Root build(ParseTree tree) {
+        AstNode body = new AstBuilder().visit(tree);
+        return new AstNode.Root(body, !(body instanceof AstNode.Defmap || body instanceof AstNode.Bulk));
+    }
+
+    @Override
+    public AstNode visitStmt1(gr04Parser.Stmt1Context ctx) {
+        return visit(ctx.stmt_defmap());
+    }
+
+    @Override
+    public AstNode visitStmt2(gr04Parser.Stmt2Context ctx) {
+        return visit(ctx.stmt_bulk());
+    }
+
+    @Override
+    public AstNode visitStmt0(gr04Parser.Stmt0Context ctx) {
+        return visit(ctx.expression());
+    }
+
+    @Override
+    public AstNode visitStmt_defmap(gr04Parser.Stmt_defmapContext ctx) {
+        return new AstNode.Defmap(ctx.IDENTIFIER().getText());
+    }
+
+    @Override
+    public AstNode visitStmt_bulk(gr04Parser.Stmt_bulkContext ctx) {
+        return new AstNode.Bulk(MapBulk.compile(ctx.IDENTIFIER().getText(), ctx.expression()));
+    }
+
+    @Override
+    public AstNode visitExpression(gr04Parser.ExpressionContext ctx) {
+        return visit(ctx.assignment());
+    }
+
+    @Override
+    public AstNode visitAsg0(gr04Parser.Asg0Context ctx) {
+        return visit(ctx.addsub());
+    }
+
+    @Override
+    public AstNode visitAsg1(gr04Parser.Asg1Context ctx) {
+        return new AstNode.Assign(visit(ctx.primary()), visit(ctx.assignment()));
+    }
+
+    @Override
+    public AstNode visitAs0(gr04Parser.As0Context ctx) {
+        return visit(ctx.muldiv());
+    }
+
+    @Override
+    public AstNode visitAsplus(gr04Parser.AsplusContext ctx) {
+        return new AstNode.Add(visit(ctx.addsub()), visit(ctx.muldiv()));
+    }
+
+    @Override
+    public AstNode visitAsminus(gr04Parser.AsminusContext ctx) {
+        return new AstNode.Sub(visit(ctx.addsub()), visit(ctx.muldiv()));
+    }
+
+    @Override
+    public AstNode visitMd0(gr04Parser.Md0Context ctx) {
+        return visit(ctx.power());
+    }
+
+    @Override
+    public AstNode visitMdmul(gr04Parser.MdmulContext ctx) {
+        return new AstNode.Mul(visit(ctx.muldiv()), visit(ctx.power()));
+    }
+
+    @Override
+    public AstNode visitMddiv(gr04Parser.MddivContext ctx) {
+        return new AstNode.Div(visit(ctx.muldiv()), visit(ctx.power()));
+    }
+
+    @Override
+    public AstNode visitPwr0(gr04Parser.Pwr0Context ctx) {
+        return visit(ctx.unary());
+    }
+
+    @Override
+    public AstNode visitPwrpwr(gr04Parser.PwrpwrContext ctx) {
+        return new AstNode.Pow(visit(ctx.unary()), visit(ctx.power()));
+    }
+
+    @Override
+    public AstNode visitUn0(gr04Parser.Un0Context ctx) {
+        return visit(ctx.primary());
+    }
+
+    @Override
+    public AstNode visitUnplus(gr04Parser.UnplusContext ctx) {
+        return visit(ctx.unary());
+    }
+
+    @Override
+    public AstNode visitUnminus(gr04Parser.UnminusContext ctx) {
+        return new AstNode.Neg(visit(ctx.unary()));
+    }
+
+    @Override
+    public AstNode visitPrimexpr(gr04Parser.PrimexprContext ctx) {
+        return visit(ctx.expression());
+    }
+
+    @Override
+    public AstNode visitPrimindex(gr04Parser.PrimindexContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        return new AstNode.UninitializedIndexed(name, visit(ctx.expression()));
+    }
+
+    @Override
+    public AstNode visitPrimall(gr04Parser.PrimallContext ctx) {
+        throw new DCExecutionError("Bulk reference outside of bulk assignment");
+    }
+
+    @Override
+    public AstNode visitPrimreduce(gr04Parser.PrimreduceContext ctx) {
+        return new AstNode.Reduce(MapBulk.function(ctx.IDENTIFIER(0).getText()), ctx.IDENTIFIER(1).getText());
+    }
+
+    @Override
+    public AstNode visitPrimatom(gr04Parser.PrimatomContext ctx) {
+        return visit(ctx.atom());
+    }
+
+    @Override
+    public AstNode visitAtomnum(gr04Parser.AtomnumContext ctx) {
+        return new AstNode.Const(Double.valueOf(ctx.NUMBER().getText()));
+    }
+
+    @Override
+    public AstNode visitAtomid(gr04Parser.AtomidContext ctx) {
+        return new AstNode.UninitializedScalar(ctx.getText());
+    }
+}
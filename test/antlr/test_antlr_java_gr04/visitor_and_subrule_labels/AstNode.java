@@ -0,0 +1,420 @@
+// Executable tree for one gr04 statement, built once by AstBuilder and
+// kept between executions. Nodes follow the SemanticValue protocol split
+// in two: prepare() is what visiting the node computes eagerly, resolve()
+// is getRValue() and assign() is assignValue(), so evaluation order and
+// errors are the same as with MyVisitor (see CodeBuilder).
+// Name nodes start uninitialized and replace themselves in their parent
+// on first execution by a node with the symbol slot cached; a map element
+// with a constant index also caches the key position in the map arrays.
+// Not thread-safe: a tree must be executed by one thread at a time.
+abstract class AstNode {
+    static long rewrites = 0;
+
+    AstNode parent = null;
+
+    // visit(): returns the eagerly computed value, NaN if there is none
+    abstract double prepare(ExecutionContext econtext);
+
+    // getRValue() given the result of prepare()
+    double resolve(ExecutionContext econtext, double pending) {
+        return pending;
+    }
+
+    // assignValue() given the result of prepare()
+    void assign(ExecutionContext econtext, double pending, double new_value) {
+        throw new DCExecutionError("Not implemented: assignValue");
+    }
+
+    final double execute(ExecutionContext econtext) {
+        return resolve(econtext, prepare(econtext));
+    }
+
+    <T extends AstNode> T adopt(T child) {
+        child.parent = this;
+        return child;
+    }
+
+    void replaceChild(AstNode old_child, AstNode new_child) {
+        throw new IllegalStateException("Node has no children");
+    }
+
+    <T extends AstNode> T replace(T replacement) {
+        parent.replaceChild(this, parent.adopt(replacement));
+        ++rewrites;
+        return replacement;
+    }
+
+    static final class Root extends AstNode {
+        AstNode body;
+        final boolean has_value;
+
+        Root(AstNode nbody, boolean nhas_value) {
+            body = adopt(nbody);
+            has_value = nhas_value;
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return body.execute(econtext);
+        }
+
+        @Override
+        void replaceChild(AstNode old_child, AstNode new_child) {
+            body = new_child;
+        }
+    }
+
+    static final class Const extends AstNode {
+        final double value;
+
+        Const(double nvalue) {
+            value = nvalue;
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return value;
+        }
+    }
+
+    static final class Neg extends AstNode {
+        AstNode operand;
+
+        Neg(AstNode noperand) {
+            operand = adopt(noperand);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return -operand.execute(econtext);
+        }
+
+        @Override
+        void replaceChild(AstNode old_child, AstNode new_child) {
+            operand = new_child;
+        }
+    }
+
+    abstract static class Binary extends AstNode {
+        AstNode left;
+        AstNode right;
+
+        Binary(AstNode nleft, AstNode nright) {
+            left = adopt(nleft);
+            right = adopt(nright);
+        }
+
+        @Override
+        void replaceChild(AstNode old_child, AstNode new_child) {
+            if (left == old_child) {
+                left = new_child;
+            } else {
+                right = new_child;
+            }
+        }
+    }
+
+    static final class Add extends Binary {
+        Add(AstNode nleft, AstNode nright) {
+            super(nleft, nright);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return left.execute(econtext) + right.execute(econtext);
+        }
+    }
+
+    static final class Sub extends Binary {
+        Sub(AstNode nleft, AstNode nright) {
+            super(nleft, nright);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return left.execute(econtext) - right.execute(econtext);
+        }
+    }
+
+    static final class Mul extends Binary {
+        Mul(AstNode nleft, AstNode nright) {
+            super(nleft, nright);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return left.execute(econtext) * right.execute(econtext);
+        }
+    }
+
+    static final class Div extends Binary {
+        Div(AstNode nleft, AstNode nright) {
+            super(nleft, nright);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return left.execute(econtext) / right.execute(econtext);
+        }
+    }
+
+    static final class Pow extends Binary {
+        Pow(AstNode nleft, AstNode nright) {
+            super(nleft, nright);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            double d1 = left.execute(econtext);
+            return Math.pow(d1, right.execute(econtext));
+        }
+    }
+
+    // primary '=' assignment
+    static final class Assign extends Binary {
+        Assign(AstNode ntarget, AstNode nvalue) {
+            super(ntarget, nvalue);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            double pending = left.prepare(econtext);
+            double new_value = right.execute(econtext);
+            left.assign(econtext, pending, new_value);
+            return new_value;
+        }
+    }
+
+    // Base of nodes naming a variable or map: caches the slot per SymbolTable.
+    abstract static class Named extends AstNode {
+        final String name;
+        SymbolTable symbols = null;
+        int slot = -1;
+
+        Named(String nname) {
+            name = nname;
+        }
+
+        int slot(ExecutionContext econtext) {
+            if (econtext.symbols != symbols) {
+                symbols = econtext.symbols;
+                slot = symbols.intern(name);
+            }
+            return slot;
+        }
+    }
+
+    static final class Defmap extends Named {
+        Defmap(String nname) {
+            super(nname);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            econtext.createMap(slot(econtext));
+            return Double.NaN;
+        }
+    }
+
+    static final class Bulk extends AstNode {
+        final MapBulk bulk;
+
+        Bulk(MapBulk nbulk) {
+            bulk = nbulk;
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            bulk.execute(econtext);
+            return Double.NaN;
+        }
+    }
+
+    // sum(m) and the like: computed eagerly, like a Binary node.
+    static final class Reduce extends Named {
+        final int function;
+
+        Reduce(int nfunction, String nname) {
+            super(nname);
+            function = nfunction;
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return MapBulk.reduce(econtext, slot(econtext), function);
+        }
+    }
+
+    static final class UninitializedScalar extends Named {
+        UninitializedScalar(String nname) {
+            super(nname);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return Double.NaN;
+        }
+
+        Scalar specialize(ExecutionContext econtext) {
+            Scalar node = new Scalar(name);
+            node.slot(econtext);
+            return replace(node);
+        }
+
+        @Override
+        double resolve(ExecutionContext econtext, double pending) {
+            return specialize(econtext).resolve(econtext, pending);
+        }
+
+        @Override
+        void assign(ExecutionContext econtext, double pending, double new_value) {
+            specialize(econtext).assign(econtext, pending, new_value);
+        }
+    }
+
+    static final class Scalar extends Named {
+        Scalar(String nname) {
+            super(nname);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return Double.NaN;
+        }
+
+        @Override
+        double resolve(ExecutionContext econtext, double pending) {
+            return econtext.loadScalar(slot(econtext));
+        }
+
+        @Override
+        void assign(ExecutionContext econtext, double pending, double new_value) {
+            econtext.storeScalar(slot(econtext), new_value);
+        }
+    }
+
+    static final class UninitializedIndexed extends Named {
+        AstNode index;
+
+        UninitializedIndexed(String nname, AstNode nindex) {
+            super(nname);
+            index = adopt(nindex);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return index.prepare(econtext);
+        }
+
+        Named specialize(ExecutionContext econtext) {
+            Named node;
+            if (index instanceof Const) {
+                node = new ConstIndexed(name, ((Const) index).value);
+            } else {
+                node = new Indexed(name, index);
+            }
+            node.slot(econtext);
+            return replace(node);
+        }
+
+        @Override
+        double resolve(ExecutionContext econtext, double pending) {
+            return specialize(econtext).resolve(econtext, pending);
+        }
+
+        @Override
+        void assign(ExecutionContext econtext, double pending, double new_value) {
+            specialize(econtext).assign(econtext, pending, new_value);
+        }
+
+        @Override
+        void replaceChild(AstNode old_child, AstNode new_child) {
+            index = new_child;
+        }
+    }
+
+    static final class Indexed extends Named {
+        AstNode index;
+
+        Indexed(String nname, AstNode nindex) {
+            super(nname);
+            index = adopt(nindex);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return index.prepare(econtext);
+        }
+
+        @Override
+        double resolve(ExecutionContext econtext, double pending) {
+            DoubleDoubleMap themap = econtext.requireMap(slot(econtext));
+            return themap.getOrFail(index.resolve(econtext, pending));
+        }
+
+        @Override
+        void assign(ExecutionContext econtext, double pending, double new_value) {
+            DoubleDoubleMap themap = econtext.requireMap(slot(econtext));
+            themap.put(index.resolve(econtext, pending), new_value);
+        }
+
+        @Override
+        void replaceChild(AstNode old_child, AstNode new_child) {
+            index = new_child;
+        }
+    }
+
+    // Map element with a constant index. Keys are never removed, so a key
+    // found at some position stays there until the map arrays are replaced
+    // by rehash (or the map itself by @defmap).
+    static final class ConstIndexed extends Named {
+        final double key;
+        final long key_bits;
+        long[] cached_keys = null;
+        int cached_pos;
+
+        ConstIndexed(String nname, double nkey) {
+            super(nname);
+            key = nkey;
+            key_bits = Double.doubleToLongBits(nkey);
+        }
+
+        @Override
+        double prepare(ExecutionContext econtext) {
+            return key;
+        }
+
+        void cache(DoubleDoubleMap themap) {
+            if (key_bits == DoubleDoubleMap.FREE_KEY) {
+                return;
+            }
+            int pos = themap.find(key_bits);
+            if (pos >= 0) {
+                cached_keys = themap.keys;
+                cached_pos = pos;
+            }
+        }
+
+        @Override
+        double resolve(ExecutionContext econtext, double pending) {
+            DoubleDoubleMap themap = econtext.requireMap(slot(econtext));
+            if (themap.keys == cached_keys) {
+                return themap.values[cached_pos];
+            }
+            double result = themap.getOrFail(key);
+            cache(themap);
+            return result;
+        }
+
+        @Override
+        void assign(ExecutionContext econtext, double pending, double new_value) {
+            DoubleDoubleMap themap = econtext.requireMap(slot(econtext));
+            if (themap.keys == cached_keys) {
+                themap.values[cached_pos] = new_value;
+                return;
+            }
+            themap.put(key, new_value);
+            cache(themap);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+// Evaluates one expression over columns of random bindings with the scalar
+// and the best available BatchKernels, and row by row with one
+// CompiledStatement run and ExecutionContext per row for comparison.
+// Run with --add-modules jdk.incubator.vector to get the vector kernels.
+public class BatchBench {
+
+    public static void main(String[] args) throws Exception {
+        String expr = (args.length > 0) ? args[0] : "a*b + c**2";
+        int rows = (args.length > 1) ? Integer.valueOf(args[1]) : 1000000;
+        Random random = new Random(1);
+        Map<String, double[]> columns = new HashMap<>();
+        for (String name : new String[]{"a", "b", "c"}) {
+            double[] column = new double[rows];
+            for (int i = 0; i < rows; ++i) {
+                column[i] = random.nextDouble() * 10;
+            }
+            columns.put(name, column);
+        }
+        BatchEvaluator scalar = new BatchEvaluator(expr, new BatchKernels());
+        BatchEvaluator best = new BatchEvaluator(expr);
+        CompiledStatement cs = scalar.cs;
+        String[] names = {"a", "b", "c"};
+        System.out.printf("Expression: %s, %d rows, best kernels: %s\n", expr, rows, best.kernels.name());
+        for (int round = 0; round < 5; ++round) {
+            long t0 = System.nanoTime();
+            double[] r1 = scalar.evaluate(columns, rows);
+            long t1 = System.nanoTime();
+            double[] r2 = best.evaluate(columns, rows);
+            long t2 = System.nanoTime();
+            double sum = 0;
+            for (int i = 0; i < rows; ++i) {
+                ExecutionContext econtext = new ExecutionContext(cs.symbols);
+                for (int v = 0; v < names.length; ++v) {
+                    econtext.setScalar(names[v], columns.get(names[v])[i]);
+                }
+                sum += cs.execute(econtext);
+            }
+            long t3 = System.nanoTime();
+            if (!java.util.Arrays.equals(r1, r2)) {
+                throw new RuntimeException("BatchBench: kernel results differ");
+            }
+            System.out.printf("scalar %6.2f ns/row, %s %6.2f ns/row, row by row %6.2f ns/row (sum=%s)\n",
+                    (double) (t1 - t0) / rows, best.kernels.name(), (double) (t2 - t1) / rows,
+                    (double) (t3 - t2) / rows, sum);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.antlr.v4.runtime.*;
+
+// Evaluates one gr04 expression over many rows of variable bindings given
+// as columns. The expression is compiled once to CompiledStatement code,
+// which is then run over blocks of CHUNK rows with one BatchKernels loop
+// per instruction instead of one interpreter pass per row.
+// A variable without a column reads as NaN, like an unset IdentifierSV.
+// Scalar assignments are per row: a later read in the same expression
+// sees the assigned value, and assigned columns are kept in `assigned`.
+// Maps are not supported, since rows would share them in order, so the
+// only stack operands are temp columns and bound input columns. MapBulk
+// element code is the exception: its m[*] and reductions are input
+// columns as well.
+class BatchEvaluator {
+    static final int CHUNK = 1024;
+
+    final CompiledStatement cs;
+    final BatchKernels kernels;
+    Map<String, double[]> assigned = new HashMap<>();
+    // Assigned columns by slot after evaluate(), null if not assigned
+    double[][] outputs;
+    final double[][] temps;
+    final double[] nan_column = new double[CHUNK];
+
+    BatchEvaluator(String text) {
+        this(text, BatchKernels.best());
+    }
+
+    BatchEvaluator(String text, BatchKernels nkernels) {
+        this(compile(text), nkernels, text);
+    }
+
+    // Element code of MapBulk
+    BatchEvaluator(CompiledStatement ncs, BatchKernels nkernels) {
+        this(ncs, nkernels, null);
+    }
+
+    BatchEvaluator(CompiledStatement ncs, BatchKernels nkernels, String text) {
+        cs = ncs;
+        kernels = nkernels;
+        String what = (text != null) ? text : "bulk expression";
+        if (!cs.has_value) {
+            throw new IllegalArgumentException("Not an expression: " + what);
+        }
+        for (int pc = 0; pc < cs.code.length; pc += 1 + CompiledStatement.operandCount(cs.code[pc])) {
+            int opcode = cs.code[pc];
+            if (opcode == CompiledStatement.OP_MAP_CHECK || opcode == CompiledStatement.OP_FAIL_ASSIGN
+                    || (text != null && opcode == CompiledStatement.OP_REDUCE)) {
+                throw new IllegalArgumentException("Batch evaluation supports scalar expressions only: " + what);
+            }
+        }
+        temps = new double[cs.max_stack][CHUNK];
+        Arrays.fill(nan_column, Double.NaN);
+    }
+
+    static CompiledStatement compile(String text) {
+        gr04Lexer lexer = new gr04Lexer(new ANTLRInputStream(text));
+        gr04Parser parser = new gr04Parser(new CommonTokenStream(lexer));
+        parser.setErrorHandler(new BailErrorStrategy());
+        lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        // Own symbol table: slots of this expression are dense from 0
+        return StatementCompiler.compile(parser.statement(), new SymbolTable());
+    }
+
+    // All columns must have at least `rows` elements.
+    double[] evaluate(Map<String, double[]> columns, int rows) {
+        int nsymbols = cs.symbols.size();
+        double[][] bound = new double[nsymbols][];
+        for (int slot = 0; slot < nsymbols; ++slot) {
+            bound[slot] = columns.get(cs.symbols.name(slot));
+        }
+        double[] result = evaluate(bound, null, null, new double[rows], rows);
+        assigned = new HashMap<>();
+        for (int slot = 0; slot < nsymbols; ++slot) {
+            if (outputs[slot] != null) {
+                assigned.put(cs.symbols.name(slot), outputs[slot]);
+            }
+        }
+        return result;
+    }
+
+    // Columns by slot: bound scalars, elements for OP_ELEMENT and reduced
+    // for OP_REDUCE by its operand. Results go to result[0..rows).
+    double[] evaluate(double[][] bound, double[][] elements, double[][] reduced, double[] result, int rows) {
+        int nsymbols = cs.symbols.size();
+        outputs = new double[nsymbols][];
+        // Operand stack of column references: array and row offset.
+        double[][] stack = new double[cs.max_stack][];
+        int[] offsets = new int[cs.max_stack];
+        final int[] code = cs.code;
+        for (int base = 0; base < rows; base += CHUNK) {
+            int n = Math.min(CHUNK, rows - base);
+            // Columns read so far in this chunk: bound, assigned or NaN
+            double[][] current = new double[nsymbols][];
+            int[] current_offsets = new int[nsymbols];
+            for (int slot = 0; slot < nsymbols; ++slot) {
+                if (bound[slot] != null) {
+                    current[slot] = bound[slot];
+                    current_offsets[slot] = base;
+                } else {
+                    current[slot] = nan_column;
+                }
+            }
+            int sp = 0;
+            int pc = 0;
+            while (pc < code.length) {
+                switch (code[pc++]) {
+                    case CompiledStatement.OP_PUSH_CONST:
+                        Arrays.fill(temps[sp], 0, n, cs.consts[code[pc++]]);
+                        stack[sp] = temps[sp];
+                        offsets[sp++] = 0;
+                        break;
+                    case CompiledStatement.OP_LOAD_SCALAR: {
+                        int slot = code[pc++];
+                        if (current[slot] == outputs[slot]) {
+                            // A later assignment in the chunk would overwrite it
+                            System.arraycopy(outputs[slot], base, temps[sp], 0, n);
+                            stack[sp] = temps[sp];
+                            offsets[sp++] = 0;
+                        } else {
+                            stack[sp] = current[slot];
+                            offsets[sp++] = current_offsets[slot];
+                        }
+                        break;
+                    }
+                    case CompiledStatement.OP_STORE_SCALAR: {
+                        int slot = code[pc++];
+                        if (outputs[slot] == null) {
+                            outputs[slot] = new double[rows];
+                        }
+                        System.arraycopy(stack[sp - 1], offsets[sp - 1], outputs[slot], base, n);
+                        current[slot] = outputs[slot];
+                        current_offsets[slot] = base;
+                        break;
+                    }
+                    case CompiledStatement.OP_ELEMENT:
+                        stack[sp] = elements[code[pc++]];
+                        offsets[sp++] = base;
+                        break;
+                    case CompiledStatement.OP_REDUCE:
+                        stack[sp] = reduced[code[pc++]];
+                        offsets[sp++] = base;
+                        break;
+                    case CompiledStatement.OP_ADD:
+                        --sp;
+                        kernels.add(stack[sp - 1], offsets[sp - 1], stack[sp], offsets[sp], temps[sp - 1], n);
+                        top(stack, offsets, temps, sp);
+                        break;
+                    case CompiledStatement.OP_SUB:
+                        --sp;
+                        kernels.sub(stack[sp - 1], offsets[sp - 1], stack[sp], offsets[sp], temps[sp - 1], n);
+                        top(stack, offsets, temps, sp);
+                        break;
+                    case CompiledStatement.OP_MUL:
+                        --sp;
+                        kernels.mul(stack[sp - 1], offsets[sp - 1], stack[sp], offsets[sp], temps[sp - 1], n);
+                        top(stack, offsets, temps, sp);
+                        break;
+                    case CompiledStatement.OP_DIV:
+                        --sp;
+                        kernels.div(stack[sp - 1], offsets[sp - 1], stack[sp], offsets[sp], temps[sp - 1], n);
+                        top(stack, offsets, temps, sp);
+                        break;
+                    case CompiledStatement.OP_POW:
+                        --sp;
+                        kernels.pow(stack[sp - 1], offsets[sp - 1], stack[sp], offsets[sp], temps[sp - 1], n);
+                        top(stack, offsets, temps, sp);
+                        break;
+                    case CompiledStatement.OP_NEG:
+                        kernels.neg(stack[sp - 1], offsets[sp - 1], temps[sp - 1], n);
+                        top(stack, offsets, temps, sp);
+                        break;
+                    default:
+                        throw new IllegalStateException("Bad opcode at " + (pc - 1));
+                }
+            }
+            System.arraycopy(stack[0], offsets[0], result, base, n);
+        }
+        return result;
+    }
+
+    // The result of an operation at depth sp-1 is in its temp column.
+    static void top(double[][] stack, int[] offsets, double[][] temps, int sp) {
+        stack[sp - 1] = temps[sp - 1];
+        offsets[sp - 1] = 0;
+    }
+}
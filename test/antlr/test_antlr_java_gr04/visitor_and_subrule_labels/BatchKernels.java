@@ -0,0 +1,60 @@
+// Element-wise loops used by BatchEvaluator: dst[i] = a[ao+i] op b[bo+i]
+// for i < n. This is the plain scalar version; VectorKernels overrides
+// the loops with jdk.incubator.vector when that module is present.
+class BatchKernels {
+
+    // VectorKernels if it can be loaded and works, else the scalar loops.
+    static BatchKernels best() {
+        try {
+            BatchKernels kernels = (BatchKernels) Class.forName("VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+            double[] probe = {1, 2};
+            kernels.add(probe, 0, probe, 0, probe, 2);
+            return kernels;
+        } catch (Throwable exc) {
+            // Not compiled in, or the module is not resolved at run time
+            return new BatchKernels();
+        }
+    }
+
+    String name() {
+        return "scalar";
+    }
+
+    void add(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        for (int i = 0; i < n; ++i) {
+            dst[i] = a[ao + i] + b[bo + i];
+        }
+    }
+
+    void sub(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        for (int i = 0; i < n; ++i) {
+            dst[i] = a[ao + i] - b[bo + i];
+        }
+    }
+
+    void mul(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        for (int i = 0; i < n; ++i) {
+            dst[i] = a[ao + i] * b[bo + i];
+        }
+    }
+
+    void div(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        for (int i = 0; i < n; ++i) {
+            dst[i] = a[ao + i] / b[bo + i];
+        }
+    }
+
+    // NB vector pow is not guaranteed to round like Math.pow, so it stays scalar
+    void pow(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        for (int i = 0; i < n; ++i) {
+            dst[i] = Math.pow(a[ao + i], b[bo + i]);
+        }
+    }
+
+    void neg(double[] a, int ao, double[] dst, int n) {
+        for (int i = 0; i < n; ++i) {
+            dst[i] = -a[ao + i];
+        }
+    }
+}
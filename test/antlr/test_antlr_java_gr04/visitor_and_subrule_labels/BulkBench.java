@@ -0,0 +1,57 @@
+import java.nio.charset.StandardCharsets;
+
+// Updating and summing every element of one map: one statement per key
+// (lexed and parsed each time, or compiled once with the key in a
+// variable) against one m[*] statement or one sum(m).
+public class BulkBench {
+
+    static CompiledStatement compile(String text, ByteLexer lexer, SymbolTable symbols) {
+        lexer.tokenize(text.getBytes(StandardCharsets.US_ASCII));
+        return lexer.toPrattParser().compileStatement(symbols);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.valueOf(args[0]) : 1000000;
+        ByteLexer lexer = new ByteLexer();
+        ExecutionContext econtext = new ExecutionContext();
+        compile("@defmap zz", lexer, econtext.symbols).execute(econtext);
+        compile("k=1", lexer, econtext.symbols).execute(econtext);
+        for (int i = 0; i < count; ++i) {
+            econtext.getMap("zz").put(i, i);
+        }
+        CompiledStatement element = compile("zz[i]=zz[i]*2+k", lexer, econtext.symbols);
+        CompiledStatement accumulate = compile("s=s+zz[i]", lexer, econtext.symbols);
+        CompiledStatement bulk = compile("zz[*]=zz[*]*2+k", lexer, econtext.symbols);
+        CompiledStatement sum = compile("sum(zz)", lexer, econtext.symbols);
+        int islot = econtext.symbols.intern("i");
+        int sslot = econtext.symbols.intern("s");
+        for (int round = 0; round < 3; ++round) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                compile("zz[" + i + "]=zz[" + i + "]*2+k", lexer, econtext.symbols).execute(econtext);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                econtext.storeScalar(islot, i);
+                element.execute(econtext);
+            }
+            long t2 = System.nanoTime();
+            bulk.execute(econtext);
+            long t3 = System.nanoTime();
+            econtext.storeScalar(sslot, 0);
+            for (int i = 0; i < count; ++i) {
+                econtext.storeScalar(islot, i);
+                accumulate.execute(econtext);
+            }
+            long t4 = System.nanoTime();
+            double total = sum.execute(econtext);
+            long t5 = System.nanoTime();
+            if (total != econtext.loadScalar(sslot)) {
+                throw new IllegalStateException("BulkBench: sum differs");
+            }
+            System.out.printf("%d elements: update per-statement parsed %7.1f ms, compiled %6.1f ms, bulk %5.1f ms;"
+                    + " sum per-statement %6.1f ms, sum() %5.1f ms\n",
+                    count, (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6, (t4 - t3) / 1e6, (t5 - t4) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Pair;
+
+// Hand-written lexer for the gr02..gr04 token set over ASCII bytes.
+// Reads the buffer in place (absolute gets, no char[] copy) and stores
+// tokens packed into a long[]: start << 32 | length << 8 | type.
+// NUMBER values are accumulated into numbers[] without making a String.
+// Token types come from the vocabulary of the generated lexer, so the
+// same class lexes gr02, gr03 or gr04; a token the vocabulary does not
+// have (e.g. IDENTIFIER for gr02) is a syntax error, like a character
+// which starts no token. '*' followed by '*' is always '**'.
+class ByteLexer {
+    // Longer than this, digits no longer fit a long exactly.
+    static final int MAX_LONG_DIGITS = 18;
+    // The length field of a packed token is 24 bits.
+    static final int MAX_TOKEN_LENGTH = 0xffffff;
+
+    final int t_assign, t_plus, t_minus, t_star, t_slash, t_dstar;
+    final int t_lparen, t_rparen, t_lbrack, t_rbrack;
+    final int t_defmap, t_identifier, t_number;
+    static final byte[] DEFMAP = "@defmap".getBytes(StandardCharsets.US_ASCII);
+
+    ByteBuffer buffer;
+    long[] tokens = new long[64];
+    double[] numbers = new double[64];
+    int count = 0;
+
+    ByteLexer() {
+        this(gr04Lexer.VOCABULARY);
+    }
+
+    ByteLexer(Vocabulary vocabulary) {
+        t_assign = findType(vocabulary, "'='");
+        t_plus = findType(vocabulary, "'+'");
+        t_minus = findType(vocabulary, "'-'");
+        t_star = findType(vocabulary, "'*'");
+        t_slash = findType(vocabulary, "'/'");
+        t_dstar = findType(vocabulary, "'**'");
+        t_lparen = findType(vocabulary, "'('");
+        t_rparen = findType(vocabulary, "')'");
+        t_lbrack = findType(vocabulary, "'['");
+        t_rbrack = findType(vocabulary, "']'");
+        t_defmap = findType(vocabulary, "KW_DEFMAP");
+        t_identifier = findType(vocabulary, "IDENTIFIER");
+        t_number = findType(vocabulary, "NUMBER");
+    }
+
+    // Token type by literal ('+') or symbolic (NUMBER) name; 0 if absent.
+    static int findType(Vocabulary vocabulary, String name) {
+        for (int type = 1; type <= vocabulary.getMaxTokenType(); ++type) {
+            if (name.equals(vocabulary.getLiteralName(type))
+                    || name.equals(vocabulary.getSymbolicName(type))) {
+                return type;
+            }
+        }
+        return 0;
+    }
+
+    static int type(long token) {
+        return (int) token & 0xff;
+    }
+
+    static int start(long token) {
+        return (int) (token >>> 32);
+    }
+
+    static int length(long token) {
+        return (int) (token >>> 8) & 0xffffff;
+    }
+
+    int type(int i) {
+        return type(tokens[i]);
+    }
+
+    double number(int i) {
+        return numbers[i];
+    }
+
+    String text(int i) {
+        long token = tokens[i];
+        byte[] bytes = new byte[length(token)];
+        for (int j = 0; j < bytes.length; ++j) {
+            bytes[j] = buffer.get(start(token) + j);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    int tokenize(byte[] input) {
+        return tokenize(ByteBuffer.wrap(input));
+    }
+
+    // Lexes buffer[position, limit) without moving its position.
+    // Token starts are absolute buffer indices. Returns the token count.
+    int tokenize(ByteBuffer nbuffer) {
+        buffer = nbuffer;
+        count = 0;
+        int pos = buffer.position();
+        int limit = buffer.limit();
+        while (pos < limit) {
+            int c = buffer.get(pos);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                ++pos;
+                continue;
+            }
+            int start = pos;
+            int type;
+            if (c >= '0' && c <= '9') {
+                long value = 0;
+                while (pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    ++pos;
+                }
+                type = t_number;
+                if (pos - start > MAX_LONG_DIGITS) {
+                    numbers = ensure(numbers);
+                    numbers[count] = Double.parseDouble(textAt(start, pos - start));
+                } else {
+                    // NB long to double rounds like Double.valueOf() does
+                    numbers = ensure(numbers);
+                    numbers[count] = (double) value;
+                }
+            } else if (isIdentifierStart(c)) {
+                ++pos;
+                while (pos < limit && isIdentifierPart(buffer.get(pos))) {
+                    ++pos;
+                }
+                type = t_identifier;
+            } else if (c == '*') {
+                ++pos;
+                if (pos < limit && buffer.get(pos) == '*') {
+                    ++pos;
+                    type = t_dstar;
+                } else {
+                    type = t_star;
+                }
+            } else if (c == '@' && matches(pos, limit, DEFMAP)) {
+                pos += DEFMAP.length;
+                type = t_defmap;
+            } else {
+                ++pos;
+                type = singleCharType(c);
+            }
+            if (type == 0) {
+                throw new DCSyntaxError(String.format("Unexpected input at offset %d: '%s'",
+                        start - buffer.position(), textAt(start, pos - start)));
+            }
+            if (pos - start > MAX_TOKEN_LENGTH) {
+                throw new DCSyntaxError(String.format("Token longer than %d bytes at offset %d",
+                        MAX_TOKEN_LENGTH, start - buffer.position()));
+            }
+            tokens = ensure(tokens);
+            tokens[count++] = ((long) start << 32) | ((long) (pos - start) << 8) | type;
+        }
+        return count;
+    }
+
+    int singleCharType(int c) {
+        switch (c) {
+            case '=': return t_assign;
+            case '+': return t_plus;
+            case '-': return t_minus;
+            case '/': return t_slash;
+            case '(': return t_lparen;
+            case ')': return t_rparen;
+            case '[': return t_lbrack;
+            case ']': return t_rbrack;
+            default: return 0;
+        }
+    }
+
+    static boolean isIdentifierStart(int c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+    }
+
+    static boolean isIdentifierPart(int c) {
+        return isIdentifierStart(c) || (c >= '0' && c <= '9');
+    }
+
+    boolean matches(int pos, int limit, byte[] literal) {
+        if (limit - pos < literal.length) {
+            return false;
+        }
+        for (int i = 0; i < literal.length; ++i) {
+            if (buffer.get(pos + i) != literal[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String textAt(int start, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    long[] ensure(long[] array) {
+        if (count < array.length) {
+            return array;
+        }
+        long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, count);
+        return grown;
+    }
+
+    // Numbers are indexed by token, so numbers may lag many tokens behind.
+    double[] ensure(double[] array) {
+        if (count < array.length) {
+            return array;
+        }
+        int length = array.length * 2;
+        while (count >= length) {
+            length *= 2;
+        }
+        return java.util.Arrays.copyOf(array, length);
+    }
+
+    // Token arrays for PrattParser; only IDENTIFIER tokens get a String.
+    PrattParser toPrattParser() {
+        int[] types = new int[count];
+        String[] texts = new String[count];
+        for (int i = 0; i < count; ++i) {
+            types[i] = type(i);
+            if (types[i] == t_identifier) {
+                texts[i] = text(i);
+            }
+        }
+        return new PrattParser(types, texts, numbers, count);
+    }
+
+    // The lexed tokens as an ANTLR TokenSource, for the generated parsers.
+    TokenSource tokenSource() {
+        return new Source();
+    }
+
+    final class Source implements TokenSource {
+        TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+        final Pair<TokenSource, CharStream> source = new Pair<>(this, null);
+        int next = 0;
+        int line = 1;
+        int column = 0;
+        int scanned;
+
+        Source() {
+            scanned = buffer.position();
+        }
+
+        // Moves the line/column position up to an absolute buffer index.
+        void advanceTo(int pos) {
+            for (; scanned < pos; ++scanned) {
+                if (buffer.get(scanned) == '\n') {
+                    ++line;
+                    column = 0;
+                } else {
+                    ++column;
+                }
+            }
+        }
+
+        @Override
+        public Token nextToken() {
+            if (next >= count) {
+                advanceTo(buffer.limit());
+                return factory.create(source, Token.EOF, "<EOF>", Token.DEFAULT_CHANNEL,
+                        buffer.limit(), buffer.limit() - 1, line, column);
+            }
+            long token = tokens[next++];
+            advanceTo(start(token));
+            return factory.create(source, type(token), textAt(start(token), length(token)),
+                    Token.DEFAULT_CHANNEL, start(token), start(token) + length(token) - 1, line, column);
+        }
+
+        @Override
+        public int getLine() {
+            return line;
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return column;
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public String getSourceName() {
+            return IntStream.UNKNOWN_SOURCE_NAME;
+        }
+
+        @Override
+        public void setTokenFactory(TokenFactory<?> nfactory) {
+            factory = nfactory;
+        }
+
+        @Override
+        public TokenFactory<?> getTokenFactory() {
+            return factory;
+        }
+    }
+}
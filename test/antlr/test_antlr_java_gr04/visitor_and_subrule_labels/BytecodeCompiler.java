@@ -0,0 +1,349 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+// Translates CompiledStatement code to a hidden class implementing
+// CompiledCode. Every operand stack depth and map stack depth is a JVM
+// local variable, so the method is straight-line code over double locals
+// without branches (and needs no StackMapTable); SWAP only renames locals.
+// Variables and maps are reached through the ExecutionContext slot methods
+// and DoubleDoubleMap, so missing maps and keys throw the same
+// DCExecutionError as the interpreter.
+class BytecodeCompiler {
+    static final String CLASS_NAME = "JitStatement";
+    static final String CONTEXT = "ExecutionContext";
+    static final String MAP = "DoubleDoubleMap";
+    static final String ERROR = "DCExecutionError";
+
+    // JVM opcodes used here
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int DUP = 0x59;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int DRETURN = 0xaf;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb;
+    static final int ATHROW = 0xbf;
+    static final int WIDE = 0xc4;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // Constant pool under construction.
+    ByteArrayOutputStream pool_bytes = new ByteArrayOutputStream();
+    DataOutputStream pool = new DataOutputStream(pool_bytes);
+    Map<String, Integer> pool_index = new HashMap<>();
+    int pool_count = 1;
+
+    ByteArrayOutputStream code_bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(code_bytes);
+
+    static CompiledCode compile(CompiledStatement cs) {
+        if (cs.bulk != null) {
+            // The whole statement is the MapBulk loop; nothing to translate
+            return cs::execute;
+        }
+        try {
+            byte[] classfile = new BytecodeCompiler().generate(cs);
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(classfile, true);
+            return (CompiledCode) hidden.findConstructor(hidden.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException exc) {
+            throw exc;
+        } catch (Throwable exc) {
+            throw new IllegalStateException("Bytecode generation failed", exc);
+        }
+    }
+
+    int constant(String key, int tag, byte[] body, int slots) throws IOException {
+        Integer index = pool_index.get(key);
+        if (index != null) {
+            return index;
+        }
+        pool.writeByte(tag);
+        pool.write(body);
+        int result = pool_count;
+        pool_count += slots;
+        pool_index.put(key, result);
+        return result;
+    }
+
+    static byte[] u2(int... values) {
+        byte[] body = new byte[values.length * 2];
+        for (int i = 0; i < values.length; ++i) {
+            body[2 * i] = (byte) (values[i] >>> 8);
+            body[2 * i + 1] = (byte) values[i];
+        }
+        return body;
+    }
+
+    int utf8(String text) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new DataOutputStream(body).writeUTF(text);
+        return constant("U" + text, 1, body.toByteArray(), 1);
+    }
+
+    int classRef(String name) throws IOException {
+        return constant("C" + name, 7, u2(utf8(name)), 1);
+    }
+
+    int string(String text) throws IOException {
+        return constant("S" + text, 8, u2(utf8(text)), 1);
+    }
+
+    int doubleConst(double value) throws IOException {
+        long bits = Double.doubleToRawLongBits(value);
+        byte[] body = new byte[8];
+        for (int i = 0; i < 8; ++i) {
+            body[i] = (byte) (bits >>> (56 - 8 * i));
+        }
+        return constant("D" + bits, 6, body, 2);
+    }
+
+    int methodRef(String owner, String name, String descriptor, boolean is_interface) throws IOException {
+        int name_and_type = constant("N" + name + descriptor, 12, u2(utf8(name), utf8(descriptor)), 1);
+        return constant("M" + owner + "." + name + descriptor, is_interface ? 11 : 10,
+                u2(classRef(owner), name_and_type), 1);
+    }
+
+    void pushInt(int value) throws IOException {
+        if (value >= -1 && value <= 5) {
+            out.writeByte(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            out.writeByte(BIPUSH);
+            out.writeByte(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            out.writeByte(SIPUSH);
+            out.writeShort(value);
+        } else {
+            out.writeByte(LDC_W);
+            out.writeShort(constant("I" + value, 3, new byte[]{
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value}, 1));
+        }
+    }
+
+    void local(int opcode, int index) throws IOException {
+        if (index > 255) {
+            out.writeByte(WIDE);
+            out.writeByte(opcode);
+            out.writeShort(index);
+        } else {
+            out.writeByte(opcode);
+            out.writeByte(index);
+        }
+    }
+
+    void invoke(int opcode, String owner, String name, String descriptor) throws IOException {
+        out.writeByte(opcode);
+        out.writeShort(methodRef(owner, name, descriptor, false));
+    }
+
+    void binary(int[] stack, int sp, int jvm_opcode) throws IOException {
+        local(DLOAD, stack[sp - 2]);
+        local(DLOAD, stack[sp - 1]);
+        out.writeByte(jvm_opcode);
+        local(DSTORE, stack[sp - 2]);
+    }
+
+    // Body of run(ExecutionContext): local 0 is this, local 1 the context.
+    int generateRun(CompiledStatement cs) throws IOException {
+        int[] stack = new int[cs.max_stack];
+        for (int d = 0; d < stack.length; ++d) {
+            stack[d] = 2 + 2 * d;
+        }
+        int map_base = 2 + 2 * cs.max_stack;
+        final int[] code = cs.code;
+        int sp = 0;
+        int mp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CompiledStatement.OP_PUSH_CONST:
+                    out.writeByte(LDC2_W);
+                    out.writeShort(doubleConst(cs.consts[code[pc++]]));
+                    local(DSTORE, stack[sp++]);
+                    break;
+                case CompiledStatement.OP_LOAD_SCALAR:
+                    out.writeByte(ALOAD_1);
+                    pushInt(code[pc++]);
+                    invoke(INVOKEVIRTUAL, CONTEXT, "loadScalar", "(I)D");
+                    local(DSTORE, stack[sp++]);
+                    break;
+                case CompiledStatement.OP_STORE_SCALAR:
+                    out.writeByte(ALOAD_1);
+                    pushInt(code[pc++]);
+                    local(DLOAD, stack[sp - 1]);
+                    invoke(INVOKEVIRTUAL, CONTEXT, "storeScalar", "(ID)V");
+                    break;
+                case CompiledStatement.OP_MAP_CHECK:
+                    out.writeByte(ALOAD_1);
+                    pushInt(code[pc++]);
+                    invoke(INVOKEVIRTUAL, CONTEXT, "requireMap", "(I)L" + MAP + ";");
+                    local(ASTORE, map_base + mp++);
+                    break;
+                case CompiledStatement.OP_MAP_LOAD:
+                    local(ALOAD, map_base + --mp);
+                    local(DLOAD, stack[sp - 1]);
+                    invoke(INVOKEVIRTUAL, MAP, "getOrFail", "(D)D");
+                    local(DSTORE, stack[sp - 1]);
+                    break;
+                case CompiledStatement.OP_MAP_STORE:
+                    --sp;
+                    local(ALOAD, map_base + --mp);
+                    local(DLOAD, stack[sp]);
+                    local(DLOAD, stack[sp - 1]);
+                    invoke(INVOKEVIRTUAL, MAP, "put", "(DD)V");
+                    break;
+                case CompiledStatement.OP_ADD:
+                    binary(stack, sp--, DADD);
+                    break;
+                case CompiledStatement.OP_SUB:
+                    binary(stack, sp--, DSUB);
+                    break;
+                case CompiledStatement.OP_MUL:
+                    binary(stack, sp--, DMUL);
+                    break;
+                case CompiledStatement.OP_DIV:
+                    binary(stack, sp--, DDIV);
+                    break;
+                case CompiledStatement.OP_POW:
+                    local(DLOAD, stack[sp - 2]);
+                    local(DLOAD, stack[sp - 1]);
+                    invoke(INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+                    local(DSTORE, stack[sp - 2]);
+                    --sp;
+                    break;
+                case CompiledStatement.OP_NEG:
+                    local(DLOAD, stack[sp - 1]);
+                    out.writeByte(DNEG);
+                    local(DSTORE, stack[sp - 1]);
+                    break;
+                case CompiledStatement.OP_SWAP: {
+                    int t = stack[sp - 1];
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = t;
+                    break;
+                }
+                case CompiledStatement.OP_FAIL_ASSIGN:
+                    // Nothing after it runs; code past athrow would need a stack map.
+                    out.writeByte(NEW);
+                    out.writeShort(classRef(ERROR));
+                    out.writeByte(DUP);
+                    out.writeByte(LDC_W);
+                    out.writeShort(string("Not implemented: assignValue"));
+                    invoke(INVOKESPECIAL, ERROR, "<init>", "(Ljava/lang/String;)V");
+                    out.writeByte(ATHROW);
+                    return map_base + cs.max_maps;
+                case CompiledStatement.OP_DEFMAP:
+                    out.writeByte(ALOAD_1);
+                    pushInt(code[pc++]);
+                    invoke(INVOKEVIRTUAL, CONTEXT, "createMap", "(I)V");
+                    break;
+                case CompiledStatement.OP_REDUCE: {
+                    int operand = code[pc++];
+                    out.writeByte(ALOAD_1);
+                    pushInt(operand >>> 2);
+                    pushInt(operand & 3);
+                    invoke(INVOKESTATIC, "MapBulk", "reduce", "(L" + CONTEXT + ";II)D");
+                    local(DSTORE, stack[sp++]);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Bad opcode at " + (pc - 1));
+            }
+        }
+        if (cs.has_value) {
+            local(DLOAD, stack[0]);
+        } else {
+            out.writeByte(LDC2_W);
+            out.writeShort(doubleConst(Double.NaN));
+        }
+        out.writeByte(DRETURN);
+        return map_base + cs.max_maps;
+    }
+
+    void writeMethod(DataOutputStream cf, String name, String descriptor,
+            byte[] body, int max_stack, int max_locals) throws IOException {
+        cf.writeShort(ACC_PUBLIC);
+        cf.writeShort(utf8(name));
+        cf.writeShort(utf8(descriptor));
+        cf.writeShort(1);
+        cf.writeShort(utf8("Code"));
+        cf.writeInt(12 + body.length);
+        cf.writeShort(max_stack);
+        cf.writeShort(max_locals);
+        cf.writeInt(body.length);
+        cf.write(body);
+        cf.writeShort(0);   // exception table
+        cf.writeShort(0);   // attributes
+    }
+
+    byte[] generate(CompiledStatement cs) throws IOException {
+        out.writeByte(ALOAD_0);
+        invoke(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        out.writeByte(RETURN);
+        byte[] init_body = code_bytes.toByteArray();
+
+        code_bytes.reset();
+        int max_locals = generateRun(cs);
+        byte[] run_body = code_bytes.toByteArray();
+
+        int this_class = classRef(CLASS_NAME);
+        int super_class = classRef("java/lang/Object");
+        int iface = classRef("CompiledCode");
+        // Names used by writeMethod must be in the pool before it is written
+        utf8("<init>");
+        utf8("()V");
+        utf8("run");
+        utf8("(L" + CONTEXT + ";)D");
+        utf8("Code");
+
+        ByteArrayOutputStream methods_bytes = new ByteArrayOutputStream();
+        DataOutputStream methods = new DataOutputStream(methods_bytes);
+        writeMethod(methods, "<init>", "()V", init_body, 1, 1);
+        // Deepest JVM stack: map ref, index and value doubles (1+2+2), or
+        // new+dup+message for the error.
+        writeMethod(methods, "run", "(L" + CONTEXT + ";)D", run_body, 6, max_locals);
+
+        ByteArrayOutputStream classfile = new ByteArrayOutputStream();
+        DataOutputStream cf = new DataOutputStream(classfile);
+        cf.writeInt(0xCAFEBABE);
+        cf.writeShort(0);
+        cf.writeShort(52);
+        cf.writeShort(pool_count);
+        cf.write(pool_bytes.toByteArray());
+        cf.writeShort(ACC_FINAL | ACC_SUPER);
+        cf.writeShort(this_class);
+        cf.writeShort(super_class);
+        cf.writeShort(1);
+        cf.writeShort(iface);
+        cf.writeShort(0);   // fields
+        cf.writeShort(2);
+        cf.write(methods_bytes.toByteArray());
+        cf.writeShort(0);   // class attributes
+        return classfile.toByteArray();
+    }
+}
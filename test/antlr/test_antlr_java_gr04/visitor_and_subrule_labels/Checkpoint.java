@@ -0,0 +1,197 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Saves the scalars and maps of an ExecutionContext to a binary file and
+// loads them back without replaying statements. Layout, big-endian:
+//   int magic "GR4C", int version
+//   int scalar count, then per scalar: name, double value
+//   int map count, then per map: name, int size, size (key, value) double
+//   pairs sorted by key as Double.compare() orders them
+// where a name is an int byte length and UTF-8 bytes. Unset scalars (NaN)
+// are not written. Names are interned again on restore, so the target
+// context may use another SymbolTable.
+// The context must not be modified while a checkpoint is written.
+class Checkpoint {
+    static final int MAGIC = 0x47523443;
+    static final int VERSION = 1;
+    static final int BUFFER_SIZE = 1 << 20;
+    // Restore maps the file in windows of this size, so size is not
+    // limited by the 2 GB of one MappedByteBuffer.
+    static final long WINDOW_SIZE = 1L << 30;
+
+    static final class Output {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Output(FileChannel nchannel) {
+            channel = nchannel;
+        }
+
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void putName(String name) throws IOException {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            ensure(4 + bytes.length).putInt(bytes.length).put(bytes);
+        }
+    }
+
+    static final class Input {
+        final FileChannel channel;
+        final long size;
+        final long window_size;
+        MappedByteBuffer window;
+        long window_start = 0;
+
+        Input(FileChannel nchannel, long nwindow_size) throws IOException {
+            channel = nchannel;
+            size = channel.size();
+            window_size = nwindow_size;
+            remap(0);
+        }
+
+        void remap(long position) throws IOException {
+            window_start = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(window_size, size - position));
+        }
+
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                remap(window_start + window.position());
+                if (window.remaining() < bytes) {
+                    throw new EOFException("Truncated checkpoint");
+                }
+            }
+            return window;
+        }
+
+        String getName() throws IOException {
+            int length = ensure(4).getInt();
+            byte[] bytes = new byte[length];
+            ensure(length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Bulk read of doubles, across windows.
+        void getDoubles(double[] dst, int count) throws IOException {
+            int done = 0;
+            while (done < count) {
+                int available = ensure(8).remaining() / 8;
+                int n = Math.min(available, count - done);
+                window.asDoubleBuffer().get(dst, done, n);
+                window.position(window.position() + 8 * n);
+                done += n;
+            }
+        }
+    }
+
+    static void write(ExecutionContext econtext, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.ensure(8).putInt(MAGIC).putInt(VERSION);
+            int nsymbols = econtext.symbols.size();
+            int scalar_count = 0;
+            int map_count = 0;
+            for (int slot = 0; slot < nsymbols; ++slot) {
+                if (!Double.isNaN(econtext.loadScalar(slot))) {
+                    ++scalar_count;
+                }
+                if (econtext.mapAt(slot) != null) {
+                    ++map_count;
+                }
+            }
+            out.ensure(4).putInt(scalar_count);
+            for (int slot = 0; slot < nsymbols; ++slot) {
+                double value = econtext.loadScalar(slot);
+                if (!Double.isNaN(value)) {
+                    out.putName(econtext.symbols.name(slot));
+                    out.ensure(8).putDouble(value);
+                }
+            }
+            out.ensure(4).putInt(map_count);
+            for (int slot = 0; slot < nsymbols; ++slot) {
+                DoubleDoubleMap themap = econtext.mapAt(slot);
+                if (themap != null) {
+                    out.putName(econtext.symbols.name(slot));
+                    writeMap(out, themap);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    static void writeMap(Output out, DoubleDoubleMap themap) throws IOException {
+        double[] keys = new double[themap.size()];
+        int[] count = {0};
+        themap.forEach((key, value) -> keys[count[0]++] = key);
+        Arrays.sort(keys);
+        out.ensure(4).putInt(keys.length);
+        for (double key : keys) {
+            out.ensure(16).putDouble(key).putDouble(themap.getOrFail(key));
+        }
+    }
+
+    static ExecutionContext restore(Path path) throws IOException {
+        ExecutionContext econtext = new ExecutionContext();
+        restore(path, econtext);
+        return econtext;
+    }
+
+    // Loads into an existing context: scalars and maps in the checkpoint
+    // replace those with the same names, others are kept.
+    static void restore(Path path, ExecutionContext econtext) throws IOException {
+        restore(path, econtext, WINDOW_SIZE);
+    }
+
+    static void restore(Path path, ExecutionContext econtext, long window_size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Input in = new Input(channel, window_size);
+            ByteBuffer header = in.ensure(8);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " checkpoint: " + path);
+            }
+            int scalar_count = in.ensure(4).getInt();
+            for (int i = 0; i < scalar_count; ++i) {
+                int slot = econtext.symbols.intern(in.getName());
+                econtext.storeScalar(slot, in.ensure(8).getDouble());
+            }
+            int map_count = in.ensure(4).getInt();
+            double[] pairs = new double[2 * 4096];
+            for (int i = 0; i < map_count; ++i) {
+                int slot = econtext.symbols.intern(in.getName());
+                int size = in.ensure(4).getInt();
+                econtext.createMap(slot, size);
+                DoubleDoubleMap themap = econtext.mapAt(slot);
+                for (int done = 0; done < size; ) {
+                    int n = Math.min(pairs.length / 2, size - done);
+                    in.getDoubles(pairs, 2 * n);
+                    for (int j = 0; j < n; ++j) {
+                        themap.put(pairs[2 * j], pairs[2 * j + 1]);
+                    }
+                    done += n;
+                }
+            }
+        }
+    }
+}
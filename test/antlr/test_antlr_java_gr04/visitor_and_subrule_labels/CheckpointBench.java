@@ -0,0 +1,42 @@
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Rebuilding a context by replaying the script that made it, against
+// writing it once with Checkpoint and restoring it from the file.
+public class CheckpointBench {
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.valueOf(args[0]) : 1000000;
+        Path script = Files.createTempFile("gr04bench", ".txt");
+        Path checkpoint = Files.createTempFile("gr04bench", ".bin");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(script, StandardCharsets.US_ASCII)) {
+                writer.write("@defmap zz\n@defmap yy\n");
+                for (int i = 0; i < count; ++i) {
+                    writer.write(String.format("zz[%d]=yy[-%d]=v%d=%d/2+1\n", i, i, i % 1000, i));
+                }
+            }
+            for (int round = 0; round < 3; ++round) {
+                long t0 = System.nanoTime();
+                ScriptRunner runner = new ScriptRunner(new ExecutionContext(new SymbolTable()));
+                runner.run(script);
+                long t1 = System.nanoTime();
+                Checkpoint.write(runner.econtext, checkpoint);
+                long t2 = System.nanoTime();
+                ExecutionContext restored = new ExecutionContext(new SymbolTable());
+                Checkpoint.restore(checkpoint, restored);
+                long t3 = System.nanoTime();
+                if (restored.getMap("zz").size() != count || restored.getScalar("v0") != runner.econtext.getScalar("v0")) {
+                    throw new IllegalStateException("CheckpointBench: restored context differs");
+                }
+                System.out.printf("%d statements: replay %7.1f ms, write %7.1f ms, restore %7.1f ms, file %d bytes\n",
+                        count, (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6, Files.size(checkpoint));
+            }
+        } finally {
+            Files.delete(script);
+            Files.delete(checkpoint);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+// Emits CompiledStatement code. Expression results are described by Ref,
+// the compile-time counterpart of SemanticValue: like MyVisitor, a
+// reference is resolved only when its value is needed (materialize) or
+// when it is assigned to (store), so side effects and errors happen in
+// the same order as with the tree-walking visitor.
+class CodeBuilder {
+
+    static final class Ref {
+        static final int VALUE = 0;     // ScalarSV: value is already on stack
+        static final int SCALAR = 1;    // IdentifierSV
+        static final int INDEXED = 2;   // IndexedReferenceSV
+        static final int ELEMENT = 3;   // m[*] in MapBulk element code
+
+        static final Ref VALUE_REF = new Ref(VALUE, -1, null);
+
+        final int kind;
+        final int slot;
+        final Ref index;
+
+        Ref(int nkind, int nslot, Ref nindex) {
+            kind = nkind;
+            slot = nslot;
+            index = nindex;
+        }
+
+        // True if the reference chain ends in an already computed value.
+        boolean hasPendingValue() {
+            if (kind == INDEXED) {
+                return index.hasPendingValue();
+            }
+            return kind == VALUE;
+        }
+    }
+
+    int[] code = new int[16];
+    int code_size = 0;
+    double[] consts = new double[4];
+    int consts_size = 0;
+    SymbolTable symbols;
+    int stack_depth = 0;
+    int max_stack = 0;
+    int map_depth = 0;
+    int max_maps = 0;
+    // Compiling the element expression of a bulk assignment
+    boolean element_mode = false;
+    MapBulk bulk = null;
+
+    CodeBuilder(SymbolTable nsymbols) {
+        symbols = nsymbols;
+    }
+
+    void emit(int opcode) {
+        if (code_size == code.length) {
+            code = Arrays.copyOf(code, code_size * 2);
+        }
+        code[code_size++] = opcode;
+    }
+
+    void emit(int opcode, int operand) {
+        emit(opcode);
+        emit(operand);
+    }
+
+    void adjustStack(int delta) {
+        stack_depth += delta;
+        if (stack_depth > max_stack) {
+            max_stack = stack_depth;
+        }
+    }
+
+    void adjustMaps(int delta) {
+        map_depth += delta;
+        if (map_depth > max_maps) {
+            max_maps = map_depth;
+        }
+    }
+
+    Ref constant(double value) {
+        if (consts_size == consts.length) {
+            consts = Arrays.copyOf(consts, consts_size * 2);
+        }
+        consts[consts_size] = value;
+        emit(CompiledStatement.OP_PUSH_CONST, consts_size++);
+        adjustStack(1);
+        return Ref.VALUE_REF;
+    }
+
+    Ref scalar(String name) {
+        return new Ref(Ref.SCALAR, symbols.intern(name), null);
+    }
+
+    Ref indexed(String name, Ref index) {
+        return new Ref(Ref.INDEXED, symbols.intern(name), index);
+    }
+
+    Ref element(String name) {
+        if (!element_mode) {
+            throw new DCExecutionError("Bulk reference outside of bulk assignment");
+        }
+        return new Ref(Ref.ELEMENT, symbols.intern(name), null);
+    }
+
+    // Element code is evaluated column-wise, see MapBulk.
+    void checkElementMode(Ref ref) {
+        if (element_mode && ref.kind == Ref.INDEXED) {
+            throw new DCExecutionError("Not supported in a bulk expression: map element by index");
+        }
+    }
+
+    // getRValue() analog: leaves the referenced value on stack.
+    void materialize(Ref ref) {
+        checkElementMode(ref);
+        switch (ref.kind) {
+            case Ref.VALUE:
+                break;
+            case Ref.SCALAR:
+                emit(CompiledStatement.OP_LOAD_SCALAR, ref.slot);
+                adjustStack(1);
+                break;
+            case Ref.INDEXED:
+                emit(CompiledStatement.OP_MAP_CHECK, ref.slot);
+                adjustMaps(1);
+                materialize(ref.index);
+                emit(CompiledStatement.OP_MAP_LOAD);
+                adjustMaps(-1);
+                break;
+            case Ref.ELEMENT:
+                emit(CompiledStatement.OP_ELEMENT, ref.slot);
+                adjustStack(1);
+                break;
+            default:
+                throw new IllegalStateException("Bad ref kind");
+        }
+    }
+
+    // assignValue() analog: the value to assign is on stack top and stays there.
+    void store(Ref ref) {
+        checkElementMode(ref);
+        switch (ref.kind) {
+            case Ref.VALUE:
+                if (element_mode) {
+                    throw new DCExecutionError("Not implemented: assignValue");
+                }
+                emit(CompiledStatement.OP_FAIL_ASSIGN);
+                break;
+            case Ref.SCALAR:
+                emit(CompiledStatement.OP_STORE_SCALAR, ref.slot);
+                break;
+            case Ref.INDEXED:
+                emit(CompiledStatement.OP_MAP_CHECK, ref.slot);
+                adjustMaps(1);
+                if (ref.index.hasPendingValue()) {
+                    // The index part was computed before the assigned value.
+                    emit(CompiledStatement.OP_SWAP);
+                }
+                materialize(ref.index);
+                emit(CompiledStatement.OP_MAP_STORE);
+                adjustMaps(-1);
+                adjustStack(-1);
+                break;
+            case Ref.ELEMENT:
+                throw new DCExecutionError("Not supported in a bulk expression: assignment to m[*]");
+            default:
+                throw new IllegalStateException("Bad ref kind");
+        }
+    }
+
+    Ref assign(Ref lvalue, Ref rvalue) {
+        materialize(rvalue);
+        store(lvalue);
+        return Ref.VALUE_REF;
+    }
+
+    // NB both operands must be already materialized, in visiting order
+    Ref binary(int opcode) {
+        emit(opcode);
+        adjustStack(-1);
+        return Ref.VALUE_REF;
+    }
+
+    Ref negate(Ref operand) {
+        materialize(operand);
+        emit(CompiledStatement.OP_NEG);
+        return Ref.VALUE_REF;
+    }
+
+    void defmap(String name) {
+        emit(CompiledStatement.OP_DEFMAP, symbols.intern(name));
+    }
+
+    Ref reduce(String function, String name) {
+        emit(CompiledStatement.OP_REDUCE, symbols.intern(name) << 2 | MapBulk.function(function));
+        adjustStack(1);
+        return Ref.VALUE_REF;
+    }
+
+    // name[*] = element, where element is compiled by a builder in element_mode
+    void bulk(String name, CompiledStatement element) {
+        bulk = new MapBulk(name, element);
+        emit(CompiledStatement.OP_BULK);
+    }
+
+    CompiledStatement finish(Ref result) {
+        boolean has_value = (result != null);
+        if (has_value) {
+            materialize(result);
+        }
+        return new CompiledStatement(
+                Arrays.copyOf(code, code_size),
+                Arrays.copyOf(consts, consts_size),
+                symbols,
+                max_stack, max_maps, has_value, bulk);
+    }
+}
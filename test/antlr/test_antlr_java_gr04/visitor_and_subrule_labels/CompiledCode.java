@@ -0,0 +1,5 @@
+// A statement translated to JVM bytecode by BytecodeCompiler.
+interface CompiledCode {
+    // Returns the statement value, or NaN for statements without value.
+    double run(ExecutionContext econtext);
+}
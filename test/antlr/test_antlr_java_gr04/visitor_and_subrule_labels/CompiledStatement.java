@@ -0,0 +1,238 @@
+// Flat stack-machine form of one gr04 statement, produced by StatementCompiler.
+// Code is a sequence of opcodes, some followed by one operand word.
+class CompiledStatement {
+    static final int OP_PUSH_CONST = 1;     // operand: index into consts
+    static final int OP_LOAD_SCALAR = 2;    // operand: symbol slot
+    static final int OP_STORE_SCALAR = 3;   // operand: symbol slot; value stays on stack
+    static final int OP_MAP_CHECK = 4;      // operand: symbol slot; pushes map onto map stack
+    static final int OP_MAP_LOAD = 5;       // pops map and index, pushes element
+    static final int OP_MAP_STORE = 6;      // pops map and index, stores top value
+    static final int OP_ADD = 7;
+    static final int OP_SUB = 8;
+    static final int OP_MUL = 9;
+    static final int OP_DIV = 10;
+    static final int OP_POW = 11;
+    static final int OP_NEG = 12;
+    static final int OP_SWAP = 13;
+    static final int OP_FAIL_ASSIGN = 14;   // lvalue is not assignable
+    static final int OP_DEFMAP = 15;        // operand: symbol slot
+    static final int OP_ELEMENT = 16;       // operand: symbol slot; m[*], only in MapBulk element code
+    static final int OP_REDUCE = 17;        // operand: symbol slot << 2 | MapBulk function
+    static final int OP_BULK = 18;          // runs bulk
+
+    // Linked copies kept per statement
+    static final int MAX_LINKS = 8;
+
+    static final String[] OPCODE_NAMES = {
+        "?", "push_const", "load_scalar", "store_scalar", "map_check", "map_load",
+        "map_store", "add", "sub", "mul", "div", "pow", "neg", "swap", "fail_assign",
+        "defmap", "element", "reduce", "bulk"
+    };
+
+    final int[] code;
+    final double[] consts;
+    final SymbolTable symbols;
+    final int max_stack;
+    final int max_maps;
+    // false for statements which yield no value (@defmap)
+    final boolean has_value;
+    // The m[*] = ... statement, if this is one
+    final MapBulk bulk;
+    // This statement over the tables of the last contexts with another one,
+    // most recent first; replaced as a whole, so readers need no lock
+    volatile CompiledStatement[] links = new CompiledStatement[0];
+
+    CompiledStatement(int[] ncode, double[] nconsts, SymbolTable nsymbols,
+            int nmax_stack, int nmax_maps, boolean nhas_value) {
+        this(ncode, nconsts, nsymbols, nmax_stack, nmax_maps, nhas_value, null);
+    }
+
+    CompiledStatement(int[] ncode, double[] nconsts, SymbolTable nsymbols,
+            int nmax_stack, int nmax_maps, boolean nhas_value, MapBulk nbulk) {
+        bulk = nbulk;
+        code = ncode;
+        consts = nconsts;
+        symbols = nsymbols;
+        max_stack = nmax_stack;
+        max_maps = nmax_maps;
+        has_value = nhas_value;
+    }
+
+    static int operandCount(int opcode) {
+        switch (opcode) {
+            case OP_PUSH_CONST:
+            case OP_LOAD_SCALAR:
+            case OP_STORE_SCALAR:
+            case OP_MAP_CHECK:
+            case OP_DEFMAP:
+            case OP_ELEMENT:
+            case OP_REDUCE:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    // The copy over target made by linkedTo, or null.
+    CompiledStatement findLinked(SymbolTable target) {
+        if (target == symbols) {
+            return this;
+        }
+        for (CompiledStatement cs : links) {
+            if (cs.symbols == target) {
+                return cs;
+            }
+        }
+        return null;
+    }
+
+    // This statement with its slots translated by name to another table.
+    CompiledStatement linkedTo(SymbolTable target) {
+        CompiledStatement cs = findLinked(target);
+        if (cs != null) {
+            return cs;
+        }
+        int[] ncode = code.clone();
+        for (int pc = 0; pc < code.length; pc += 1 + operandCount(code[pc])) {
+            int operand = (operandCount(code[pc]) > 0) ? code[pc + 1] : 0;
+            switch (code[pc]) {
+                case OP_LOAD_SCALAR:
+                case OP_STORE_SCALAR:
+                case OP_MAP_CHECK:
+                case OP_DEFMAP:
+                case OP_ELEMENT:
+                    ncode[pc + 1] = target.intern(symbols.name(operand));
+                    break;
+                case OP_REDUCE:
+                    ncode[pc + 1] = target.intern(symbols.name(operand >>> 2)) << 2 | (operand & 3);
+                    break;
+                default:
+                    break;
+            }
+        }
+        cs = new CompiledStatement(ncode, consts, target, max_stack, max_maps, has_value, bulk);
+        synchronized (this) {
+            CompiledStatement raced = findLinked(target);
+            if (raced != null) {
+                return raced;
+            }
+            CompiledStatement[] old = links;
+            CompiledStatement[] nlinks = new CompiledStatement[Math.min(old.length + 1, MAX_LINKS)];
+            nlinks[0] = cs;
+            System.arraycopy(old, 0, nlinks, 1, nlinks.length - 1);
+            links = nlinks;
+        }
+        return cs;
+    }
+
+    // Returns the statement value, or NaN if has_value is false.
+    double execute(ExecutionContext econtext) {
+        if (econtext.symbols != symbols) {
+            return linkedTo(econtext.symbols).execute(econtext);
+        }
+        final int[] code = this.code;
+        double[] stack = new double[max_stack];
+        DoubleDoubleMap[] mstack = new DoubleDoubleMap[max_maps];
+        int sp = 0;
+        int mp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case OP_PUSH_CONST:
+                    stack[sp++] = consts[code[pc++]];
+                    break;
+                case OP_LOAD_SCALAR:
+                    stack[sp++] = econtext.loadScalar(code[pc++]);
+                    break;
+                case OP_STORE_SCALAR:
+                    econtext.storeScalar(code[pc++], stack[sp - 1]);
+                    break;
+                case OP_MAP_CHECK:
+                    mstack[mp++] = econtext.requireMap(code[pc++]);
+                    break;
+                case OP_MAP_LOAD: {
+                    DoubleDoubleMap themap = mstack[--mp];
+                    stack[sp - 1] = themap.getOrFail(stack[sp - 1]);
+                    break;
+                }
+                case OP_MAP_STORE: {
+                    DoubleDoubleMap themap = mstack[--mp];
+                    double ivalue = stack[--sp];
+                    themap.put(ivalue, stack[sp - 1]);
+                    break;
+                }
+                case OP_ADD:
+                    --sp;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case OP_SUB:
+                    --sp;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case OP_MUL:
+                    --sp;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case OP_DIV:
+                    --sp;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case OP_POW:
+                    --sp;
+                    stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+                    break;
+                case OP_NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case OP_SWAP: {
+                    double t = stack[sp - 1];
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = t;
+                    break;
+                }
+                case OP_FAIL_ASSIGN:
+                    throw new DCExecutionError("Not implemented: assignValue");
+                case OP_DEFMAP:
+                    econtext.createMap(code[pc++]);
+                    break;
+                case OP_REDUCE: {
+                    int operand = code[pc++];
+                    stack[sp++] = MapBulk.reduce(econtext, operand >>> 2, operand & 3);
+                    break;
+                }
+                case OP_BULK:
+                    bulk.execute(econtext);
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode at " + (pc - 1));
+            }
+        }
+        return has_value ? stack[0] : Double.NaN;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            sb.append(String.format("%4d: %s", pc, OPCODE_NAMES[opcode]));
+            if (operandCount(opcode) > 0) {
+                int operand = code[pc + 1];
+                if (opcode == OP_PUSH_CONST) {
+                    sb.append(' ').append(consts[operand]);
+                } else if (opcode == OP_REDUCE) {
+                    sb.append(' ').append(MapBulk.FUNCTIONS[operand & 3]).append(' ').append(symbols.name(operand >>> 2));
+                } else {
+                    sb.append(' ').append(symbols.name(operand));
+                }
+            }
+            sb.append('\n');
+            pc += 1 + operandCount(opcode);
+        }
+        if (bulk != null) {
+            sb.append(bulk);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.*;
+
+// Threads executing statements against one shared context: either a
+// ConcurrentExecutionContext without locking, or a plain ExecutionContext
+// with every statement under one coarse lock. Each thread counts its own
+// scalar, fills its own keys of a shared map and reads them back, and all
+// threads overwrite the same cell of a second map.
+public class ConcurrentContextBench {
+
+    static CompiledStatement compile(String text, ExecutionContext econtext) {
+        gr04Parser parser = new gr04Parser(new CommonTokenStream(new gr04Lexer(new ANTLRInputStream(text))));
+        parser.setErrorHandler(new BailErrorStrategy());
+        return StatementCompiler.compile(parser.statement(), econtext.symbols);
+    }
+
+    // Returns statements per second; throws if the final state is wrong.
+    static double run(ExecutionContext econtext, boolean coarse, int threads, int iterations)
+            throws Exception {
+        Object lock = new Object();
+        compile("@defmap zz", econtext).execute(econtext);
+        compile("@defmap shared", econtext).execute(econtext);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            CompiledStatement[] program = {
+                compile(String.format("k%d=k%d+1", t, t), econtext),
+                compile(String.format("zz[k%d*%d+%d]=k%d", t, threads, t, t), econtext),
+                compile(String.format("s%d=s%d+zz[k%d*%d+%d]", t, t, t, threads, t), econtext),
+                compile(String.format("shared[1]=k%d", t), econtext),
+            };
+            compile(String.format("k%d=s%d=0", t, t), econtext).execute(econtext);
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < iterations; ++i) {
+                    for (CompiledStatement cs : program) {
+                        if (coarse) {
+                            synchronized (lock) {
+                                cs.execute(econtext);
+                            }
+                        } else {
+                            cs.execute(econtext);
+                        }
+                    }
+                }
+            }));
+        }
+        long t0 = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long t1 = System.nanoTime();
+        double expected_sum = (double) iterations * (iterations + 1) / 2;
+        for (int t = 0; t < threads; ++t) {
+            if (econtext.getScalar("s" + t) != expected_sum) {
+                throw new IllegalStateException("ConcurrentContextBench: lost update in thread " + t);
+            }
+        }
+        if (econtext.getMap("zz").size() != threads * iterations) {
+            throw new IllegalStateException("ConcurrentContextBench: lost map elements");
+        }
+        return 4.0 * threads * iterations / ((t1 - t0) / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int max_threads = (args.length > 0) ? Integer.valueOf(args[0]) : Runtime.getRuntime().availableProcessors();
+        int iterations = (args.length > 1) ? Integer.valueOf(args[1]) : 200000;
+        List<Integer> thread_counts = new ArrayList<>();
+        for (int threads = 1; threads < max_threads; threads *= 2) {
+            thread_counts.add(threads);
+        }
+        thread_counts.add(max_threads);
+        for (int round = 0; round < 2; ++round) {
+            for (int threads : thread_counts) {
+                double striped = run(new ConcurrentExecutionContext(new SymbolTable()), false, threads, iterations);
+                double coarse = run(new ExecutionContext(new SymbolTable()), true, threads, iterations);
+                System.out.printf("%2d threads: striped %10.0f statements/s, coarse lock %10.0f statements/s\n",
+                        threads, striped, coarse);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// ExecutionContext which many threads may execute statements against.
+// Scalars are double bits in AtomicLongArray chunks and maps are
+// StripedDoubleDoubleMap; chunks are allocated on demand and never move,
+// so no access needs to copy or lock the whole table. Only adding a chunk
+// locks, and copies the chunk directory when it is full.
+//
+// Atomicity is per variable access: every scalar read or write and every
+// map element read or write is atomic, and @defmap publishes a new empty
+// map atomically. A statement is the sequence of these accesses, so other
+// threads may see a chain like yx[2]=yx[3]=4 half done, and a=a+1 may
+// lose updates. Statements which need to be atomic as a whole are run
+// through executeExclusive(), which excludes other exclusive statements.
+class ConcurrentExecutionContext extends ExecutionContext {
+    static final int CHUNK_BITS = 10;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int INITIAL_CHUNKS = 16;
+    static final long NAN_BITS = Double.doubleToRawLongBits(Double.NaN);
+
+    // Replaced by a larger copy under directory_lock
+    volatile AtomicReferenceArray<AtomicLongArray> scalar_chunks = new AtomicReferenceArray<>(INITIAL_CHUNKS);
+    volatile AtomicReferenceArray<AtomicReferenceArray<DoubleDoubleMap>> map_chunks =
+            new AtomicReferenceArray<>(INITIAL_CHUNKS);
+    final Object directory_lock = new Object();
+    final Object exclusive_lock = new Object();
+
+    ConcurrentExecutionContext() {
+        this(new SymbolTable());
+    }
+
+    ConcurrentExecutionContext(SymbolTable nsymbols) {
+        super(nsymbols);
+    }
+
+    // directory itself, or a copy with room for index; call with directory_lock
+    static <T> AtomicReferenceArray<T> withRoom(AtomicReferenceArray<T> directory, int index) {
+        if (index < directory.length()) {
+            return directory;
+        }
+        int length = directory.length();
+        while (length <= index) {
+            length *= 2;
+        }
+        AtomicReferenceArray<T> grown = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < directory.length(); ++i) {
+            grown.set(i, directory.get(i));
+        }
+        return grown;
+    }
+
+    AtomicLongArray scalarChunk(int slot, boolean create) {
+        int index = slot >>> CHUNK_BITS;
+        AtomicReferenceArray<AtomicLongArray> directory = scalar_chunks;
+        AtomicLongArray chunk = (index < directory.length()) ? directory.get(index) : null;
+        if (chunk == null && create) {
+            synchronized (directory_lock) {
+                directory = withRoom(scalar_chunks, index);
+                chunk = directory.get(index);
+                if (chunk == null) {
+                    long[] initial = new long[CHUNK_SIZE];
+                    java.util.Arrays.fill(initial, NAN_BITS);
+                    chunk = new AtomicLongArray(initial);
+                    directory.set(index, chunk);
+                }
+                scalar_chunks = directory;
+            }
+        }
+        return chunk;
+    }
+
+    AtomicReferenceArray<DoubleDoubleMap> mapChunk(int slot, boolean create) {
+        int index = slot >>> CHUNK_BITS;
+        AtomicReferenceArray<AtomicReferenceArray<DoubleDoubleMap>> directory = map_chunks;
+        AtomicReferenceArray<DoubleDoubleMap> chunk = (index < directory.length()) ? directory.get(index) : null;
+        if (chunk == null && create) {
+            synchronized (directory_lock) {
+                directory = withRoom(map_chunks, index);
+                chunk = directory.get(index);
+                if (chunk == null) {
+                    chunk = new AtomicReferenceArray<>(CHUNK_SIZE);
+                    directory.set(index, chunk);
+                }
+                map_chunks = directory;
+            }
+        }
+        return chunk;
+    }
+
+    @Override
+    double loadScalar(int slot) {
+        AtomicLongArray chunk = scalarChunk(slot, false);
+        return (chunk != null)
+                ? Double.longBitsToDouble(chunk.get(slot & (CHUNK_SIZE - 1)))
+                : Double.NaN;
+    }
+
+    @Override
+    void storeScalar(int slot, double value) {
+        scalarChunk(slot, true).set(slot & (CHUNK_SIZE - 1), Double.doubleToRawLongBits(value));
+    }
+
+    // Atomic read-modify-write of a scalar; returns the new value.
+    double addScalar(int slot, double delta) {
+        AtomicLongArray chunk = scalarChunk(slot, true);
+        int i = slot & (CHUNK_SIZE - 1);
+        for (;;) {
+            long old_bits = chunk.get(i);
+            double new_value = Double.longBitsToDouble(old_bits) + delta;
+            if (chunk.compareAndSet(i, old_bits, Double.doubleToRawLongBits(new_value))) {
+                return new_value;
+            }
+        }
+    }
+
+    @Override
+    DoubleDoubleMap mapAt(int slot) {
+        AtomicReferenceArray<DoubleDoubleMap> chunk = mapChunk(slot, false);
+        return (chunk != null) ? chunk.get(slot & (CHUNK_SIZE - 1)) : null;
+    }
+
+    @Override
+    void createMap(int slot, int expected_size) {
+        setMap(slot, new StripedDoubleDoubleMap(expected_size));
+    }
+
+    @Override
+    void setMap(int slot, DoubleDoubleMap themap) {
+        mapChunk(slot, true).set(slot & (CHUNK_SIZE - 1), themap);
+    }
+
+    // Runs a statement as one unit with respect to other exclusive statements.
+    double executeExclusive(CompiledStatement cs) {
+        synchronized (exclusive_lock) {
+            return cs.execute(this);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeVisitor;
+
+// Optimization pass over a gr04 parse tree, done in place before the tree
+// is visited:
+//  - a subtree made only of numbers and arithmetic, e.g. 2**3**2,
+//    -(3+4)*5 or the index in zxcv[(3-2)], is computed once and replaced
+//    by a Folded node holding its value;
+//  - a chain of unary signs over a non-constant operand, e.g. --x or
+//    -+-x, is replaced by one UnaryChain node.
+// The value is computed by MyVisitor itself, so IEEE results (-0, NaN,
+// infinities) and the gr04 precedence (-2**2 is 4) stay as they were.
+// Constant arithmetic cannot fail, so no error moves or disappears.
+//
+// A replacement node extends the context class of the rule it stands in
+// for, so the typed getters of its parent still find it, and keeps the
+// original subtree as its only child: MyVisitor (a ConstantFolder.Visitor)
+// uses the replacement, other visitors see the original through
+// visitChildren().
+class ConstantFolder {
+
+    interface Visitor<T> {
+        T visitFolded(Folded ctx);
+
+        T visitUnaryChain(UnaryChain ctx);
+    }
+
+    interface Folded {
+        double value();
+    }
+
+    // Rule nodes no longer visited
+    int removed = 0;
+    int folded = 0;
+    int chains = 0;
+
+    // Returns the tree root, which is replaced if the whole tree is constant.
+    ParseTree fold(ParseTree tree) {
+        if (!(tree instanceof ParserRuleContext)) {
+            return tree;
+        }
+        ParserRuleContext ctx = (ParserRuleContext) tree;
+        if (isConstant(ctx)) {
+            return (countRules(ctx) > 1) ? replace(ctx, makeFolded(ctx)) : ctx;
+        }
+        if (isChainTop(ctx)) {
+            UnaryChain chain = makeChain((gr04Parser.UnaryContext) ctx);
+            if (chain != null) {
+                replace(ctx, chain);
+                fold(chain.operand);
+                return chain;
+            }
+        }
+        for (int i = 0; i < ctx.getChildCount(); ++i) {
+            fold(ctx.getChild(i));
+        }
+        return ctx;
+    }
+
+    static boolean isExpression(ParseTree tree) {
+        return tree instanceof gr04Parser.ExpressionContext
+                || tree instanceof gr04Parser.AssignmentContext
+                || tree instanceof gr04Parser.AddsubContext
+                || tree instanceof gr04Parser.MuldivContext
+                || tree instanceof gr04Parser.PowerContext
+                || tree instanceof gr04Parser.UnaryContext
+                || tree instanceof gr04Parser.PrimaryContext
+                || tree instanceof gr04Parser.AtomContext;
+    }
+
+    static boolean isConstant(ParserRuleContext ctx) {
+        if (!isExpression(ctx)
+                || ctx instanceof gr04Parser.Asg1Context
+                || ctx instanceof gr04Parser.PrimindexContext
+                || ctx instanceof gr04Parser.PrimallContext
+                || ctx instanceof gr04Parser.PrimreduceContext
+                || ctx instanceof gr04Parser.AtomidContext) {
+            return false;
+        }
+        for (int i = 0; i < ctx.getChildCount(); ++i) {
+            ParseTree child = ctx.getChild(i);
+            if (child instanceof ParserRuleContext && !isConstant((ParserRuleContext) child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int countRules(ParseTree tree) {
+        int count = (tree instanceof ParserRuleContext) ? 1 : 0;
+        for (int i = 0; i < tree.getChildCount(); ++i) {
+            count += countRules(tree.getChild(i));
+        }
+        return count;
+    }
+
+    static boolean isSign(ParseTree tree) {
+        return tree instanceof gr04Parser.UnplusContext || tree instanceof gr04Parser.UnminusContext;
+    }
+
+    static boolean isChainTop(ParserRuleContext ctx) {
+        return isSign(ctx) && !isSign(ctx.getParent());
+    }
+
+    ParserRuleContext makeFolded(ParserRuleContext ctx) {
+        double value = new MyVisitor().visit(ctx).getRValue(null);
+        ++folded;
+        removed += countRules(ctx) - 1;
+        if (ctx instanceof gr04Parser.ExpressionContext) {
+            return new FoldedExpression(ctx, value);
+        } else if (ctx instanceof gr04Parser.AssignmentContext) {
+            return new FoldedAssignment(ctx, value);
+        } else if (ctx instanceof gr04Parser.AddsubContext) {
+            return new FoldedAddsub(ctx, value);
+        } else if (ctx instanceof gr04Parser.MuldivContext) {
+            return new FoldedMuldiv(ctx, value);
+        } else if (ctx instanceof gr04Parser.PowerContext) {
+            return new FoldedPower(ctx, value);
+        } else if (ctx instanceof gr04Parser.UnaryContext) {
+            return new FoldedUnary(ctx, value);
+        } else {
+            return new FoldedPrimary(ctx, value);
+        }
+    }
+
+    // Two or more signs; the operand is the first Un0 below them.
+    UnaryChain makeChain(gr04Parser.UnaryContext top) {
+        int length = 0;
+        boolean negate = false;
+        boolean forced = false;
+        gr04Parser.UnaryContext node = top;
+        while (isSign(node)) {
+            if (node instanceof gr04Parser.UnminusContext) {
+                negate = !negate;
+                forced = true;
+            }
+            ++length;
+            node = (gr04Parser.UnaryContext) node.getChild(1);
+        }
+        if (length < 2) {
+            return null;
+        }
+        ++chains;
+        removed += length - 1;
+        return new UnaryChain(top, node, negate, forced);
+    }
+
+    static ParserRuleContext replace(ParserRuleContext original, ParserRuleContext replacement) {
+        ParserRuleContext parent = original.getParent();
+        if (parent != null) {
+            parent.children.set(parent.children.indexOf(original), replacement);
+        }
+        replacement.addChild(original);
+        original.parent = replacement;
+        return replacement;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T accept(Folded ctx, ParseTreeVisitor<? extends T> visitor) {
+        if (visitor instanceof Visitor) {
+            return ((Visitor<? extends T>) visitor).visitFolded(ctx);
+        }
+        return visitor.visitChildren((ParserRuleContext) ctx);
+    }
+
+    static final class FoldedExpression extends gr04Parser.ExpressionContext implements Folded {
+        final double value;
+
+        FoldedExpression(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            return ConstantFolder.accept(this, visitor);
+        }
+    }
+
+    static final class FoldedAssignment extends gr04Parser.AssignmentContext implements Folded {
+        final double value;
+
+        FoldedAssignment(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            return ConstantFolder.accept(this, visitor);
+        }
+    }
+
+    static final class FoldedAddsub extends gr04Parser.AddsubContext implements Folded {
+        final double value;
+
+        FoldedAddsub(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            return ConstantFolder.accept(this, visitor);
+        }
+    }
+
+    static final class FoldedMuldiv extends gr04Parser.MuldivContext implements Folded {
+        final double value;
+
+        FoldedMuldiv(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            return ConstantFolder.accept(this, visitor);
+        }
+    }
+
+    static final class FoldedPower extends gr04Parser.PowerContext implements Folded {
+        final double value;
+
+        FoldedPower(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            return ConstantFolder.accept(this, visitor);
+        }
+    }
+
+    static final class FoldedUnary extends gr04Parser.UnaryContext implements Folded {
+        final double value;
+
+        FoldedUnary(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            return ConstantFolder.accept(this, visitor);
+        }
+    }
+
+    static final class FoldedPrimary extends gr04Parser.PrimaryContext implements Folded {
+        final double value;
+
+        FoldedPrimary(ParserRuleContext original, double nvalue) {
+            super(original.getParent(), original.invokingState);
+            value = nvalue;
+        }
+
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            return ConstantFolder.accept(this, visitor);
+        }
+    }
+
+    // Signs over operand: without any '-' it is the operand itself (which
+    // stays assignable, as in (+x)=1); otherwise its value, negated if
+    // negate, taken at this point as -x would take it.
+    static final class UnaryChain extends gr04Parser.UnaryContext {
+        final gr04Parser.UnaryContext operand;
+        final boolean negate;
+        final boolean forced;
+
+        UnaryChain(gr04Parser.UnaryContext original, gr04Parser.UnaryContext noperand,
+                boolean nnegate, boolean nforced) {
+            super(original.getParent(), original.invokingState);
+            operand = noperand;
+            negate = nnegate;
+            forced = nforced;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T accept(ParseTreeVisitor<? extends T> visitor) {
+            if (visitor instanceof Visitor) {
+                return ((Visitor<? extends T>) visitor).visitUnaryChain(this);
+            }
+            return visitor.visitChildren(this);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+class DCSyntaxError extends RuntimeException {
+    DCSyntaxError(String what) {
+        super(what);
+    }
+}
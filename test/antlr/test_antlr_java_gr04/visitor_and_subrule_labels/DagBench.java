@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+// Runs generated scripts of independent columns, each a chain of
+// statements over its own scalars and map, sequentially and with
+// DagExecutor on 1 to N threads, and checks that the contexts agree.
+// One column is the narrow case: a single chain, nothing to run in
+// parallel, so it shows the cost of the scheduling.
+public class DagBench {
+
+    static String[] script(int size, int columns) {
+        List<String> script = new ArrayList<>();
+        for (int g = 0; g < columns; ++g) {
+            script.add(String.format("@defmap t%d", g));
+            script.add(String.format("c%d=%d", g, g));
+            script.add(String.format("r%d=0", g));
+            script.add(String.format("x%d=%d", g, g + 1));
+        }
+        for (int i = 0; script.size() < size - 1; ++i) {
+            int g = i % columns;
+            switch ((i / columns) % 3) {
+                case 0:
+                    script.add(String.format("c%d=(c%d+x%d)*%d/(c%d*c%d+1)+x%d/(c%d**2+2)", g, g, g, i % 7 + 1, g, g, g, g));
+                    break;
+                case 1:
+                    script.add(String.format("t%d[%d]=c%d*2-x%d", g, i % 8, g, g));
+                    break;
+                default:
+                    script.add(String.format("r%d=r%d+t%d[%d]/(1+c%d)", g, g, g, (i - columns) % 8, g));
+                    break;
+            }
+        }
+        StringBuilder total = new StringBuilder("total=r0");
+        for (int g = 1; g < columns; ++g) {
+            total.append("+r").append(g);
+        }
+        script.add(total.toString());
+        return script.toArray(new String[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0) ? Integer.valueOf(args[0]) : 100000;
+        int max_threads = (args.length > 1) ? Integer.valueOf(args[1]) : Runtime.getRuntime().availableProcessors();
+        int runs = 10;
+        System.out.printf("%d processors\n", Runtime.getRuntime().availableProcessors());
+        for (int columns : new int[]{1, 16, 256}) {
+            DagExecutor executor = new DagExecutor(script(size, columns));
+            System.out.printf("%d columns\n", columns);
+            ExecutionContext reference = new ExecutionContext(executor.symbols);
+            double expected = executor.runSequential(reference);
+            double sequential_ms = 0;
+            for (int round = 0; round < 2; ++round) {
+                long t0 = System.nanoTime();
+                for (int run = 0; run < runs; ++run) {
+                    executor.runSequential(new ExecutionContext(executor.symbols));
+                }
+                sequential_ms = (System.nanoTime() - t0) / 1e6 / runs;
+            }
+            System.out.printf("  sequential  %8.2f ms\n", sequential_ms);
+            List<Integer> thread_counts = new ArrayList<>();
+            for (int threads = 1; threads < max_threads; threads *= 2) {
+                thread_counts.add(threads);
+            }
+            thread_counts.add(max_threads);
+            for (int threads : thread_counts) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    double ms = 0;
+                    for (int round = 0; round < 2; ++round) {
+                        long t0 = System.nanoTime();
+                        for (int run = 0; run < runs; ++run) {
+                            ExecutionContext econtext = new ExecutionContext(executor.symbols);
+                            double result = executor.run(econtext, pool);
+                            if (Double.compare(result, expected) != 0 || !MyTest.sameContext(econtext, reference)) {
+                                throw new IllegalStateException("DagBench: contexts differ, " + columns + " columns");
+                            }
+                        }
+                        ms = (System.nanoTime() - t0) / 1e6 / runs;
+                    }
+                    System.out.printf("  %2d threads  %8.2f ms, speedup %5.2f\n", threads, ms, sequential_ms / ms);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            System.out.print("  " + executor.stats());
+        }
+    }
+}
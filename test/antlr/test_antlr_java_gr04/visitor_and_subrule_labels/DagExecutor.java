@@ -0,0 +1,378 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.antlr.v4.runtime.*;
+
+// Runs the statements of one gr04 script in parallel where they do not
+// depend on each other. Read and write sets come from the compiled code:
+// scalars by slot, maps by slot as a whole. A map is not split by cells,
+// constant or computed, since a put may rehash or regrow it under a reader
+// of another cell; requireMap() reads the map slot, @defmap writes it, and
+// m[*]=... writes m and reads what its element code reads. A statement
+// waits for the last writer of everything it touches and for the readers
+// of what it writes since that writer, so every item sees the reads and
+// writes of sequential execution, in the same order.
+//
+// Ready statements are forked on a fork-join pool; a statement which makes
+// several others ready runs one of them itself, so a chain of dependent
+// statements stays on one thread. If a statement fails, the context is put
+// back as it was before the run and the script is run again sequentially,
+// to the error and the context of sequential execution: maps the script
+// stores into before it creates them are copied before every run that may
+// fail. The map objects themselves are not kept, only their contents.
+// One run at a time.
+class DagExecutor {
+    final SymbolTable symbols = new SymbolTable();
+    final CompiledStatement[] statements;
+    // The statements which wait for each statement, and how many each waits for
+    final int[][] successors;
+    final int[] predecessors;
+    final int[] roots;
+    final int edges;
+    // Statements in the longest chain of dependent statements
+    final int depth;
+    // Statement whose value is the result of the script, or -1
+    final int result_statement;
+    // false for scripts of scalars only, which cannot fail
+    final boolean may_fail;
+    // Maps stored into before the script creates them
+    final int[] stored_maps;
+
+    // The run in progress
+    ExecutionContext econtext;
+    AtomicIntegerArray remaining;
+    double[] results;
+    volatile boolean failed = false;
+
+    long parallel_runs = 0;
+    long sequential_reruns = 0;
+
+    final class Task extends CountedCompleter<Void> {
+        // -1 for the root task, which forks the roots
+        final int first;
+
+        Task(CountedCompleter<?> parent, int nfirst) {
+            super(parent);
+            first = nfirst;
+        }
+
+        @Override
+        public void compute() {
+            if (first < 0) {
+                for (int root : roots) {
+                    addToPendingCount(1);
+                    new Task(this, root).fork();
+                }
+            } else {
+                for (int i = first; i >= 0; ) {
+                    i = execute(i, this);
+                }
+            }
+            tryComplete();
+        }
+    }
+
+    DagExecutor(String[] script) {
+        statements = new CompiledStatement[script.length];
+        for (int i = 0; i < script.length; ++i) {
+            gr04Parser parser = new gr04Parser(new CommonTokenStream(new gr04Lexer(new ANTLRInputStream(script[i]))));
+            parser.setErrorHandler(new BailErrorStrategy());
+            statements[i] = StatementCompiler.compile(parser.statement(), symbols);
+        }
+        int[][] reads = new int[script.length][];
+        int[][] writes = new int[script.length][];
+        boolean fails = false;
+        int result = -1;
+        for (int i = 0; i < statements.length; ++i) {
+            List<Integer> read_list = new ArrayList<>();
+            List<Integer> write_list = new ArrayList<>();
+            fails |= analyze(statements[i], read_list, write_list);
+            reads[i] = IncrementalEngine.toArray(read_list);
+            writes[i] = IncrementalEngine.toArray(write_list);
+            if (statements[i].has_value) {
+                result = i;
+            }
+        }
+        may_fail = fails;
+        result_statement = result;
+        // Items are 2 * slot for a scalar, 2 * slot + 1 for a map
+        int items = 2 * symbols.size();
+        int[] last_writer = new int[items];
+        Arrays.fill(last_writer, -1);
+        List<List<Integer>> readers = new ArrayList<>();
+        for (int item = 0; item < items; ++item) {
+            readers.add(new ArrayList<>());
+        }
+        boolean[] created = new boolean[symbols.size()];
+        List<Integer> stored = new ArrayList<>();
+        List<List<Integer>> successor_lists = new ArrayList<>();
+        predecessors = new int[statements.length];
+        int[] levels = new int[statements.length];
+        int[][] pred_arrays = new int[statements.length][];
+        int[] marks = new int[statements.length];
+        int[] implied = new int[statements.length];
+        Arrays.fill(marks, -1);
+        Arrays.fill(implied, -1);
+        int nedges = 0;
+        int max_level = 0;
+        List<Integer> root_list = new ArrayList<>();
+        for (int i = 0; i < statements.length; ++i) {
+            successor_lists.add(new ArrayList<>());
+            List<Integer> preds = new ArrayList<>();
+            for (int item : reads[i]) {
+                addPredecessor(preds, marks, i, last_writer[item]);
+            }
+            for (int item : writes[i]) {
+                addPredecessor(preds, marks, i, last_writer[item]);
+                for (int reader : readers.get(item)) {
+                    addPredecessor(preds, marks, i, reader);
+                }
+            }
+            // An edge from a predecessor of another predecessor is implied
+            for (int pred : preds) {
+                for (int before : pred_arrays[pred]) {
+                    if (marks[before] == i) {
+                        implied[before] = i;
+                    }
+                }
+            }
+            List<Integer> direct = new ArrayList<>();
+            for (int pred : preds) {
+                if (implied[pred] != i) {
+                    direct.add(pred);
+                }
+            }
+            preds = direct;
+            pred_arrays[i] = IncrementalEngine.toArray(preds);
+            int level = 1;
+            for (int pred : preds) {
+                successor_lists.get(pred).add(i);
+                level = Math.max(level, levels[pred] + 1);
+            }
+            levels[i] = level;
+            max_level = Math.max(max_level, level);
+            predecessors[i] = preds.size();
+            nedges += preds.size();
+            if (preds.isEmpty()) {
+                root_list.add(i);
+            }
+            for (int item : reads[i]) {
+                readers.get(item).add(i);
+            }
+            for (int item : writes[i]) {
+                last_writer[item] = i;
+                readers.get(item).clear();
+            }
+            for (int pc = 0; pc < statements[i].code.length;
+                    pc += 1 + CompiledStatement.operandCount(statements[i].code[pc])) {
+                if (statements[i].code[pc] == CompiledStatement.OP_DEFMAP) {
+                    created[statements[i].code[pc + 1]] = true;
+                }
+            }
+            for (int item : writes[i]) {
+                if ((item & 1) != 0 && !created[item >>> 1] && !stored.contains(item >>> 1)) {
+                    stored.add(item >>> 1);
+                }
+            }
+        }
+        successors = new int[statements.length][];
+        for (int i = 0; i < statements.length; ++i) {
+            successors[i] = IncrementalEngine.toArray(successor_lists.get(i));
+        }
+        roots = IncrementalEngine.toArray(root_list);
+        edges = nedges;
+        depth = max_level;
+        stored_maps = IncrementalEngine.toArray(stored);
+    }
+
+    static void addPredecessor(List<Integer> preds, int[] marks, int statement, int pred) {
+        if (pred >= 0 && pred != statement && marks[pred] != statement) {
+            marks[pred] = statement;
+            preds.add(pred);
+        }
+    }
+
+    // Adds the items the statement reads and writes; true if it may fail
+    // (any map access, and not assignable targets).
+    boolean analyze(CompiledStatement cs, List<Integer> reads, List<Integer> writes) {
+        boolean fails = false;
+        int[] mstack = new int[Math.max(cs.max_maps, 1)];
+        int mp = 0;
+        int[] code = cs.code;
+        for (int pc = 0; pc < code.length; pc += 1 + CompiledStatement.operandCount(code[pc])) {
+            int operand = (pc + 1 < code.length) ? code[pc + 1] : 0;
+            switch (code[pc]) {
+                case CompiledStatement.OP_LOAD_SCALAR:
+                    reads.add(2 * operand);
+                    break;
+                case CompiledStatement.OP_STORE_SCALAR:
+                    writes.add(2 * operand);
+                    break;
+                case CompiledStatement.OP_MAP_CHECK:
+                    mstack[mp++] = operand;
+                    fails = true;
+                    break;
+                case CompiledStatement.OP_MAP_LOAD:
+                    reads.add(2 * mstack[--mp] + 1);
+                    break;
+                case CompiledStatement.OP_MAP_STORE:
+                    writes.add(2 * mstack[--mp] + 1);
+                    break;
+                case CompiledStatement.OP_DEFMAP:
+                    writes.add(2 * operand + 1);
+                    break;
+                case CompiledStatement.OP_REDUCE:
+                    reads.add(2 * (operand >>> 2) + 1);
+                    fails = true;
+                    break;
+                case CompiledStatement.OP_FAIL_ASSIGN:
+                    fails = true;
+                    break;
+                case CompiledStatement.OP_BULK:
+                    analyzeBulk(cs.bulk, reads, writes);
+                    fails = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return fails;
+    }
+
+    // Element code has its own symbol table; see MapBulk.execute().
+    void analyzeBulk(MapBulk bulk, List<Integer> reads, List<Integer> writes) {
+        writes.add(2 * symbols.intern(bulk.target) + 1);
+        int[] code = bulk.element.code;
+        for (int pc = 0; pc < code.length; pc += 1 + CompiledStatement.operandCount(code[pc])) {
+            int operand = (pc + 1 < code.length) ? code[pc + 1] : 0;
+            switch (code[pc]) {
+                case CompiledStatement.OP_LOAD_SCALAR:
+                    reads.add(2 * symbols.intern(bulk.element.symbols.name(operand)));
+                    break;
+                case CompiledStatement.OP_STORE_SCALAR:
+                    writes.add(2 * symbols.intern(bulk.element.symbols.name(operand)));
+                    break;
+                case CompiledStatement.OP_ELEMENT:
+                    reads.add(2 * symbols.intern(bulk.element.symbols.name(operand)) + 1);
+                    break;
+                case CompiledStatement.OP_REDUCE:
+                    reads.add(2 * symbols.intern(bulk.element.symbols.name(operand >>> 2)) + 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // Runs statement i; of the statements it makes ready, forks all but
+    // one, which is returned to run next on this thread (or -1).
+    int execute(int i, Task task) {
+        if (failed) {
+            return -1;
+        }
+        try {
+            results[i] = statements[i].execute(econtext);
+        } catch (RuntimeException exc) {
+            failed = true;
+            return -1;
+        }
+        int next = -1;
+        for (int successor : successors[i]) {
+            if (remaining.decrementAndGet(successor) == 0) {
+                if (next < 0) {
+                    next = successor;
+                } else {
+                    task.addToPendingCount(1);
+                    new Task(task, successor).fork();
+                }
+            }
+        }
+        return next;
+    }
+
+    // The value of the last statement with a value, NaN if there is none,
+    // as sequential execution leaves econtext. Errors are those of
+    // sequential execution, thrown after it.
+    double run(ExecutionContext necontext, ForkJoinPool pool) {
+        if (necontext.symbols != symbols) {
+            throw new IllegalArgumentException("Context uses another symbol table");
+        }
+        // Statements store into different slots, which must not move
+        necontext.reserveSlots();
+        double[] saved_scalars = null;
+        DoubleDoubleMap[] saved_maps = null;
+        DoubleDoubleMap[] saved_contents = null;
+        // Through the slot accessors, which a context may override
+        int nslots = symbols.size();
+        if (may_fail) {
+            saved_scalars = new double[nslots];
+            saved_maps = new DoubleDoubleMap[nslots];
+            for (int slot = 0; slot < nslots; ++slot) {
+                saved_scalars[slot] = necontext.loadScalar(slot);
+                saved_maps[slot] = necontext.mapAt(slot);
+            }
+            saved_contents = new DoubleDoubleMap[stored_maps.length];
+            for (int j = 0; j < stored_maps.length; ++j) {
+                DoubleDoubleMap themap = necontext.mapAt(stored_maps[j]);
+                if (themap != null) {
+                    saved_contents[j] = new DoubleDoubleMap(themap.size());
+                    themap.forEach(saved_contents[j]::put);
+                }
+            }
+        }
+        econtext = necontext;
+        remaining = new AtomicIntegerArray(predecessors);
+        results = new double[statements.length];
+        failed = false;
+        ++parallel_runs;
+        try {
+            pool.invoke(new Task(null, -1));
+        } finally {
+            econtext = null;
+            remaining = null;
+        }
+        if (failed) {
+            for (int slot = 0; slot < nslots; ++slot) {
+                necontext.storeScalar(slot, saved_scalars[slot]);
+                DoubleDoubleMap created = necontext.mapAt(slot);
+                if (created != saved_maps[slot] && created instanceof OffHeapDoubleDoubleMap) {
+                    // Made by @defmap in the failed run, referenced nowhere else
+                    ((OffHeapDoubleDoubleMap) created).close();
+                }
+                necontext.setMap(slot, saved_maps[slot]);
+            }
+            // Into the same objects: a map attached to a file stays attached
+            for (int j = 0; j < stored_maps.length; ++j) {
+                if (saved_contents[j] != null) {
+                    DoubleDoubleMap themap = saved_maps[stored_maps[j]];
+                    themap.clear();
+                    saved_contents[j].forEach(themap::put);
+                }
+            }
+            ++sequential_reruns;
+            return runSequential(necontext);
+        }
+        return (result_statement >= 0) ? results[result_statement] : Double.NaN;
+    }
+
+    double runSequential(ExecutionContext necontext) {
+        double result = Double.NaN;
+        for (CompiledStatement cs : statements) {
+            double value = cs.execute(necontext);
+            if (cs.has_value) {
+                result = value;
+            }
+        }
+        return result;
+    }
+
+    String stats() {
+        return String.format("%d statements, %d edges, %d roots, depth %d (parallelism %.1f);"
+                + " %d parallel runs, %d sequential reruns\n",
+                statements.length, edges, roots.length, depth, (double) statements.length / Math.max(depth, 1),
+                parallel_runs, sequential_reruns);
+    }
+}
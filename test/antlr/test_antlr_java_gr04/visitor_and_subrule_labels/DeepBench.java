@@ -0,0 +1,55 @@
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+// Evaluates statements nested as deep as the given size: a right-nested
+// power chain a**a**...**2 and a left-nested sum a+a+...+a. The parser
+// recurses per level, so it runs on a thread with a large stack; both
+// evaluators then run on the main thread with the default stack.
+public class DeepBench {
+
+    static ParseTree parse(String text) throws Exception {
+        ParseTree[] tree = new ParseTree[1];
+        Thread parsing = new Thread(null, () -> {
+            gr04Parser parser = new gr04Parser(new CommonTokenStream(new gr04Lexer(new ANTLRInputStream(text))));
+            parser.setErrorHandler(new BailErrorStrategy());
+            tree[0] = parser.statement();
+        }, "parse", 4L << 30);
+        parsing.start();
+        parsing.join();
+        return tree[0];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0) ? Integer.valueOf(args[0]) : 1000000;
+        StringBuilder pow = new StringBuilder("p=");
+        StringBuilder sum = new StringBuilder("s=a");
+        for (int i = 0; i < size; ++i) {
+            pow.append("a**");
+            sum.append("+a");
+        }
+        pow.append("2");
+        ExecutionContext econtext = new ExecutionContext();
+        econtext.setScalar("a", 1);
+        for (StringBuilder text : new StringBuilder[]{pow, sum}) {
+            long t0 = System.nanoTime();
+            ParseTree tree = parse(text.toString());
+            long t1 = System.nanoTime();
+            StackEvaluator evaluator = new StackEvaluator(econtext);
+            double result = evaluator.evaluateValue(tree);
+            long t2 = System.nanoTime();
+            String visited;
+            try {
+                MyVisitor visitor = new MyVisitor();
+                visitor.econtext = econtext;
+                visitor.visit(tree);
+                visited = "completed";
+            } catch (StackOverflowError exc) {
+                visited = "StackOverflowError";
+            }
+            System.out.printf("%.12s... depth %d: parse %7.1f ms, StackEvaluator %6.1f ms = %s"
+                    + " (work stack %d, value stack %d entries); MyVisitor: %s\n",
+                    text, size, (t1 - t0) / 1e6, (t2 - t1) / 1e6, result,
+                    evaluator.nodes.length, evaluator.svs.length, visited);
+        }
+    }
+}
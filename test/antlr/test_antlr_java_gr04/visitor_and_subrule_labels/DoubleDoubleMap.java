@@ -0,0 +1,244 @@
+// Open addressing (linear probing) map from double to double over parallel
+// key/value arrays. Keys are compared as Double.equals() does, i.e. by
+// Double.doubleToLongBits(): -0.0 and 0.0 are distinct keys, all NaNs are
+// the same key. This keeps the semantics of the former Map<Double, Double>.
+class DoubleDoubleMap {
+    // Key bits of an unused slot; the key +0.0 itself is kept aside.
+    static final long FREE_KEY = 0L;
+    static final int MIN_CAPACITY = 8;
+    // Entries per updateValues() chunk
+    static final int CHUNK = 1024;
+    // reduce() functions
+    static final int SUM = 0;
+    static final int MIN = 1;
+    static final int MAX = 2;
+
+    interface EntryConsumer {
+        void accept(double key, double value);
+    }
+
+    // Gets n keys and values and rewrites the values in place.
+    interface ChunkUpdater {
+        void update(double[] keys, double[] values, int n);
+    }
+
+    long[] keys;
+    double[] values;
+    int mask;
+    int size = 0;       // entries in the arrays, not counting +0.0
+    int resize_at;
+    boolean has_zero_key = false;
+    double zero_value;
+
+    DoubleDoubleMap() {
+        this(MIN_CAPACITY);
+    }
+
+    DoubleDoubleMap(int expected_size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expected_size) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new double[capacity];
+        mask = capacity - 1;
+        resize_at = capacity * 3 / 4;
+    }
+
+    // MurmurHash3 finalizer: integral doubles differ only in high bits.
+    static long mix(long bits) {
+        long h = bits;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int hash(long bits) {
+        return (int) mix(bits);
+    }
+
+    int size() {
+        return size + (has_zero_key ? 1 : 0);
+    }
+
+    // Slot index of the key, or -1 if absent. Only valid for non-zero bits.
+    int find(long bits) {
+        int pos = hash(bits) & mask;
+        for (;;) {
+            long k = keys[pos];
+            if (k == bits) {
+                return pos;
+            }
+            if (k == FREE_KEY) {
+                return -1;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    boolean containsKey(double key) {
+        long bits = Double.doubleToLongBits(key);
+        if (bits == FREE_KEY) {
+            return has_zero_key;
+        }
+        return find(bits) >= 0;
+    }
+
+    // Single lookup replacement for containsKey() followed by get().
+    double getOrFail(double key) {
+        long bits = Double.doubleToLongBits(key);
+        if (bits == FREE_KEY) {
+            if (!has_zero_key) {
+                throw new DCExecutionError("Map element not found");
+            }
+            return zero_value;
+        }
+        int pos = find(bits);
+        if (pos < 0) {
+            throw new DCExecutionError("Map element not found");
+        }
+        return values[pos];
+    }
+
+    // Removes every entry. New arrays, so that positions cached by
+    // AstNode.ConstIndexed are not taken for the new entries.
+    void clear() {
+        allocate(keys.length);
+        size = 0;
+        has_zero_key = false;
+    }
+
+    void put(double key, double value) {
+        long bits = Double.doubleToLongBits(key);
+        if (bits == FREE_KEY) {
+            has_zero_key = true;
+            zero_value = value;
+            return;
+        }
+        int pos = hash(bits) & mask;
+        for (;;) {
+            long k = keys[pos];
+            if (k == bits) {
+                values[pos] = value;
+                return;
+            }
+            if (k == FREE_KEY) {
+                keys[pos] = bits;
+                values[pos] = value;
+                if (++size >= resize_at) {
+                    rehash(keys.length * 2);
+                }
+                return;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    // Entries in no particular order.
+    void forEach(EntryConsumer consumer) {
+        if (has_zero_key) {
+            consumer.accept(0.0, zero_value);
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            long bits = keys[i];
+            if (bits != FREE_KEY) {
+                consumer.accept(Double.longBitsToDouble(bits), values[i]);
+            }
+        }
+    }
+
+    // Sets values of all entries, a chunk of entries at a time and in no
+    // particular order. The updater must not add keys to this map; if it
+    // throws, chunks already done keep their new values.
+    void updateValues(ChunkUpdater updater) {
+        double[] chunk_keys = new double[CHUNK];
+        double[] chunk_values = new double[CHUNK];
+        int[] positions = new int[CHUNK];
+        int n = 0;
+        if (has_zero_key) {
+            chunk_keys[0] = 0.0;
+            chunk_values[0] = zero_value;
+            positions[0] = -1;
+            n = 1;
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            long bits = keys[i];
+            if (bits != FREE_KEY) {
+                chunk_keys[n] = Double.longBitsToDouble(bits);
+                chunk_values[n] = values[i];
+                positions[n++] = i;
+                if (n == CHUNK) {
+                    updateChunk(updater, chunk_keys, chunk_values, positions, n);
+                    n = 0;
+                }
+            }
+        }
+        if (n > 0) {
+            updateChunk(updater, chunk_keys, chunk_values, positions, n);
+        }
+    }
+
+    void updateChunk(ChunkUpdater updater, double[] chunk_keys, double[] chunk_values, int[] positions, int n) {
+        updater.update(chunk_keys, chunk_values, n);
+        for (int j = 0; j < n; ++j) {
+            if (positions[j] < 0) {
+                zero_value = chunk_values[j];
+            } else {
+                values[positions[j]] = chunk_values[j];
+            }
+        }
+    }
+
+    static double identity(int function) {
+        return (function == SUM) ? 0.0 : (function == MIN) ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+    }
+
+    static double combine(int function, double acc, double value) {
+        switch (function) {
+            case SUM:
+                return acc + value;
+            case MIN:
+                return Math.min(acc, value);
+            default:
+                return Math.max(acc, value);
+        }
+    }
+
+    // SUM, MIN or MAX of all values; the identity for an empty map.
+    double reduce(int function) {
+        double acc = identity(function);
+        if (has_zero_key) {
+            acc = combine(function, acc, zero_value);
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != FREE_KEY) {
+                acc = combine(function, acc, values[i]);
+            }
+        }
+        return acc;
+    }
+
+    void rehash(int capacity) {
+        long[] old_keys = keys;
+        double[] old_values = values;
+        allocate(capacity);
+        for (int i = 0; i < old_keys.length; ++i) {
+            long bits = old_keys[i];
+            if (bits != FREE_KEY) {
+                int pos = hash(bits) & mask;
+                while (keys[pos] != FREE_KEY) {
+                    pos = (pos + 1) & mask;
+                }
+                keys[pos] = bits;
+                values[pos] = old_values[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+// Steady-state cost of executing one already parsed statement with each
+// execution engine: tree walk with MyVisitor (also after ConstantFolder)
+// and with StackEvaluator, CompiledStatement interpreter, self-specializing
+// AstNode tree and JIT bytecode.
+// Each engine is warmed up before it is measured.
+public class EngineBench {
+
+    interface Execution {
+        double run();
+    }
+
+    static final String[] SETUP = {"@defmap zz", "zz[1]=3", "zz[2]=5", "a=1", "b=2", "c=3"};
+
+    static void measure(String name, Execution execution, int iterations) {
+        double sink = 0;
+        for (int i = 0; i < iterations; ++i) {
+            sink += execution.run();
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            sink += execution.run();
+        }
+        long t1 = System.nanoTime();
+        System.out.printf("%-12s %8.1f ns/op (sink=%s)\n", name, (double) (t1 - t0) / iterations, sink);
+    }
+
+    static ParseTree parse(String text) {
+        gr04Parser parser = new gr04Parser(new CommonTokenStream(new gr04Lexer(new ANTLRInputStream(text))));
+        parser.setErrorHandler(new BailErrorStrategy());
+        return parser.statement();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String text = (args.length > 0) ? args[0] : "d = zz[1]*a + zz[2]/b - c**2 + (e = -a*b)";
+        int iterations = (args.length > 1) ? Integer.valueOf(args[1]) : 2000000;
+        ExecutionContext econtext = new ExecutionContext();
+        for (String line : SETUP) {
+            AstBuilder.build(parse(line)).execute(econtext);
+        }
+        ParseTree tree = parse(text);
+        MyVisitor visitor = new MyVisitor();
+        visitor.econtext = econtext;
+        StackEvaluator stack = new StackEvaluator(econtext);
+        ConstantFolder folder = new ConstantFolder();
+        ParseTree folded = folder.fold(parse(text));
+        CompiledStatement cs = StatementCompiler.compile(tree, econtext.symbols);
+        AstNode.Root root = AstBuilder.build(tree);
+        CompiledCode jitted = BytecodeCompiler.compile(cs);
+        System.out.printf("Statement: %s\n", text);
+        System.out.printf("Folding: %d subtrees, %d sign chains, %d rule nodes removed\n",
+                folder.folded, folder.chains, folder.removed);
+        for (int round = 0; round < 3; ++round) {
+            measure("MyVisitor", () -> visitor.visit(tree).getRValue(econtext), iterations);
+            measure("folded", () -> visitor.visit(folded).getRValue(econtext), iterations);
+            measure("stack", () -> stack.evaluateValue(tree), iterations);
+            measure("compiled", () -> cs.execute(econtext), iterations);
+            measure("ast", () -> root.execute(econtext), iterations);
+            measure("jit", () -> jitted.run(econtext), iterations);
+        }
+    }
+}
@@ -1,17 +1,104 @@
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
+// Variables and maps live in arrays indexed by SymbolTable slots; an unset
+// scalar reads as NaN and a map which was not created is null.
 class ExecutionContext {
-    Map<String, Double> scalars = null;
-    Map<String, Map<Double, Double>> maps = null;
+    SymbolTable symbols = null;
+    double[] scalars = null;
+    DoubleDoubleMap[] maps = null;
+    // @defmap makes OffHeapDoubleDoubleMap instead of AdaptiveDoubleDoubleMap
+    boolean offheap_maps = false;
 
     ExecutionContext() {
-        scalars = new HashMap<>();
-        maps = new HashMap<>();
+        this(new SymbolTable());
+    }
+
+    ExecutionContext(SymbolTable nsymbols) {
+        symbols = nsymbols;
+        scalars = new double[0];
+        maps = new DoubleDoubleMap[0];
+    }
+
+    double loadScalar(int slot) {
+        return (slot < scalars.length) ? scalars[slot] : Double.NaN;
+    }
+
+    void storeScalar(int slot, double value) {
+        if (slot >= scalars.length) {
+            int old_length = scalars.length;
+            scalars = Arrays.copyOf(scalars, Math.max(slot + 1, symbols.size()));
+            Arrays.fill(scalars, old_length, scalars.length, Double.NaN);
+        }
+        scalars[slot] = value;
+    }
+
+    // Grows the arrays to every slot of the symbol table, so that threads
+    // storing into different slots do not reallocate them under each other.
+    void reserveSlots() {
+        int size = symbols.size();
+        if (scalars.length < size) {
+            int old_length = scalars.length;
+            scalars = Arrays.copyOf(scalars, size);
+            Arrays.fill(scalars, old_length, size, Double.NaN);
+        }
+        if (maps.length < size) {
+            maps = Arrays.copyOf(maps, size);
+        }
+    }
+
+    DoubleDoubleMap mapAt(int slot) {
+        return (slot < maps.length) ? maps[slot] : null;
+    }
+
+    DoubleDoubleMap requireMap(int slot) {
+        DoubleDoubleMap themap = mapAt(slot);
+        if (themap == null) {
+            throw new DCExecutionError("Map not found");
+        }
+        return themap;
+    }
+
+    void createMap(int slot) {
+        createMap(slot, 0);
+    }
+
+    // A new empty map, sized for expected_size entries.
+    void createMap(int slot, int expected_size) {
+        setMap(slot, offheap_maps ? new OffHeapDoubleDoubleMap(expected_size)
+                : new AdaptiveDoubleDoubleMap(expected_size));
+    }
+
+    void setMap(int slot, DoubleDoubleMap themap) {
+        if (slot >= maps.length) {
+            maps = Arrays.copyOf(maps, Math.max(slot + 1, symbols.size()));
+        }
+        maps[slot] = themap;
+    }
+
+    // Access by name, for callers outside of compiled code.
+
+    double getScalar(String name) {
+        int slot = symbols.lookup(name);
+        return (slot >= 0) ? loadScalar(slot) : Double.NaN;
+    }
+
+    void setScalar(String name, double value) {
+        storeScalar(symbols.intern(name), value);
+    }
+
+    DoubleDoubleMap getMap(String name) {
+        int slot = symbols.lookup(name);
+        return (slot >= 0) ? mapAt(slot) : null;
     }
 
     void createMap(String mapname) {
-        maps.put(mapname, new HashMap<>());
+        createMap(symbols.intern(mapname));
+    }
+
+    // Binds a name to the map kept in a file, see OffHeapDoubleDoubleMap.open().
+    // Such a map is not thread-safe, even in a ConcurrentExecutionContext.
+    void attachMap(String mapname, java.nio.file.Path file) {
+        setMap(symbols.intern(mapname), OffHeapDoubleDoubleMap.open(file));
     }
 
 }
@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Executes statements against one ExecutionContext with a single lexer,
+// parser and visitor, which are reset for each new input instead of being
+// constructed again. Error handling and listeners are set up once.
+// Not thread-safe: use one session per thread.
+class Gr04Session {
+
+    // Character buffer refilled in place for each statement.
+    static final class ReusableInputStream extends ANTLRInputStream {
+        ReusableInputStream() {
+            data = new char[256];
+        }
+
+        void reset(CharSequence text) {
+            int length = text.length();
+            if (length > data.length) {
+                data = new char[Math.max(length, data.length * 2)];
+            }
+            for (int i = 0; i < length; ++i) {
+                data[i] = text.charAt(i);
+            }
+            n = length;
+            p = 0;
+        }
+    }
+
+    // NB BufferedTokenStream.setTokenSource() does not clear fetchedEOF,
+    // so the stream would stay at EOF after the first statement.
+    static final class ReusableTokenStream extends CommonTokenStream {
+        ReusableTokenStream(TokenSource source) {
+            super(source);
+        }
+
+        void reset(TokenSource source) {
+            setTokenSource(source);
+            fetchedEOF = false;
+        }
+    }
+
+    ExecutionContext econtext;
+    final ReusableInputStream input = new ReusableInputStream();
+    final gr04Lexer lexer;
+    final ReusableTokenStream tokens;
+    final gr04Parser parser;
+    final MyVisitor visitor = new MyVisitor();
+    final ANTLRErrorStrategy error_handler;
+    final List<ANTLRErrorListener> error_listeners;
+    final BailErrorStrategy bail_handler = new BailErrorStrategy();
+    // Two-stage mode: try SLL prediction with bail-out first and reparse
+    // in full LL with the normal error handling only if that fails.
+    boolean two_stage = false;
+    long two_stage_parses = 0;
+    long ll_fallbacks = 0;
+
+    Gr04Session(ExecutionContext necontext) {
+        this(necontext, false);
+    }
+
+    // A strict session throws ParseCancellationException on the first
+    // syntax error instead of reporting it and recovering.
+    Gr04Session(ExecutionContext necontext, boolean strict) {
+        econtext = necontext;
+        lexer = new gr04Lexer(input);
+        tokens = new ReusableTokenStream(lexer);
+        parser = new gr04Parser(tokens);
+        if (strict) {
+            parser.setErrorHandler(new BailErrorStrategy());
+            lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        }
+        error_handler = parser.getErrorHandler();
+        error_listeners = new ArrayList<>(parser.getErrorListeners());
+        visitor.econtext = econtext;
+    }
+
+    // Gives this session its own DFA caches instead of the static ones the
+    // generated lexer and parser share: no cross-thread synchronization on
+    // them, at the cost of warming up the DFA per session.
+    void usePrivateDfa() {
+        ATN lexer_atn = lexer.getATN();
+        lexer.setInterpreter(new LexerATNSimulator(lexer, lexer_atn, newDfa(lexer_atn),
+                new PredictionContextCache()));
+        ATN parser_atn = parser.getATN();
+        parser.setInterpreter(new ParserATNSimulator(parser, parser_atn, newDfa(parser_atn),
+                new PredictionContextCache()));
+    }
+
+    static DFA[] newDfa(ATN atn) {
+        DFA[] dfa = new DFA[atn.getNumberOfDecisions()];
+        for (int i = 0; i < dfa.length; ++i) {
+            dfa[i] = new DFA(atn.getDecisionState(i), i);
+        }
+        return dfa;
+    }
+
+    // Rebinds the session, e.g. for a worker serving many contexts.
+    void setContext(ExecutionContext necontext) {
+        econtext = necontext;
+        visitor.econtext = econtext;
+    }
+
+    ParseTree parse(CharSequence text) {
+        input.reset(text);
+        lexer.setInputStream(input);
+        tokens.reset(lexer);
+        parser.setTokenStream(tokens);
+        if (!two_stage) {
+            return parser.statement();
+        }
+        ++two_stage_parses;
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.setErrorHandler(bail_handler);
+        parser.removeErrorListeners();
+        try {
+            return parser.statement();
+        } catch (ParseCancellationException exc) {
+            ++ll_fallbacks;
+            // NB reset() also rewinds the token stream
+            parser.reset();
+            useNormalParsing();
+            return parser.statement();
+        }
+    }
+
+    void useNormalParsing() {
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        parser.setErrorHandler(error_handler);
+        parser.removeErrorListeners();
+        for (ANTLRErrorListener listener : error_listeners) {
+            parser.addErrorListener(listener);
+        }
+    }
+
+    void setTwoStage(boolean ntwo_stage) {
+        two_stage = ntwo_stage;
+        if (!two_stage) {
+            useNormalParsing();
+        }
+    }
+
+    String parseStats() {
+        return String.format("two-stage parses=%d LL fallbacks=%d (%.3f%%)",
+                two_stage_parses, ll_fallbacks,
+                (two_stage_parses > 0) ? 100.0 * ll_fallbacks / two_stage_parses : 0.0);
+    }
+
+    // Returns null if the statement yields no value.
+    Double execute(CharSequence text) {
+        SemanticValue rsv = visitor.visit(parse(text));
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    // Returns the value of the last statement which has one, or NaN.
+    double execute(CharSequence[] lines) {
+        double result = Double.NaN;
+        for (CharSequence line : lines) {
+            Double line_result = execute(line);
+            if (line_result != null) {
+                result = line_result;
+            }
+        }
+        return result;
+    }
+}
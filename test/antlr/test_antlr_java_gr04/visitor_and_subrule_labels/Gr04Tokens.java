@@ -0,0 +1,35 @@
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.Vocabulary;
+
+// Token types of the generated gr04Lexer, looked up by literal so that
+// hand-written code does not depend on the T__n numbering.
+class Gr04Tokens {
+    static final int ASSIGN = literalType("=");
+    static final int PLUS = literalType("+");
+    static final int MINUS = literalType("-");
+    static final int STAR = literalType("*");
+    static final int SLASH = literalType("/");
+    static final int DSTAR = literalType("**");
+    static final int LPAREN = literalType("(");
+    static final int RPAREN = literalType(")");
+    static final int LBRACK = literalType("[");
+    static final int RBRACK = literalType("]");
+    static final int KW_DEFMAP = gr04Lexer.KW_DEFMAP;
+    static final int IDENTIFIER = gr04Lexer.IDENTIFIER;
+    static final int NUMBER = gr04Lexer.NUMBER;
+    static final int EOF = Token.EOF;
+
+    static int literalType(String literal) {
+        return literalType(gr04Lexer.VOCABULARY, literal);
+    }
+
+    static int literalType(Vocabulary vocabulary, String literal) {
+        String quoted = "'" + literal + "'";
+        for (int type = 1; type <= vocabulary.getMaxTokenType(); ++type) {
+            if (quoted.equals(vocabulary.getLiteralName(type))) {
+                return type;
+            }
+        }
+        throw new IllegalStateException("No token for " + quoted);
+    }
+}
@@ -0,0 +1,347 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Translates a gr05 program into a Gr05Program. Statements are compiled as
+// by StatementCompiler, whose rules are repeated here for the gr05 contexts.
+//
+// Hoisting: inside a loop, a sum, difference, product, quotient, power or
+// negation made only of numbers and of scalars which the loop never assigns
+// is computed once on loop entry into a hidden scalar, and the statement
+// loads that instead. A scalar counts as assigned if it is a for variable
+// or appears anywhere in the target of an assignment inside the loop,
+// nested loops included. Map elements and reductions are never hoisted,
+// since any statement may change maps. Each subtree goes to the outermost
+// loop for which it is invariant. Arithmetic cannot fail, so computing it
+// early (even for a loop which runs zero times) changes no result.
+class Gr05Compiler extends gr05BaseVisitor<CodeBuilder.Ref> {
+    final SymbolTable symbols;
+    final boolean hoist;
+    CodeBuilder builder;
+    // Per enclosing loop, outermost first: its assigned scalars, the
+    // statements computing its hoisted values and their slots
+    final List<Set<String>> loop_written = new ArrayList<>();
+    final List<List<CompiledStatement>> loop_hoisted = new ArrayList<>();
+    final List<List<Integer>> loop_temps = new ArrayList<>();
+    int hoisted_count = 0;
+    // Compiling a hoisted subtree, whose parts are not hoisted again
+    boolean in_hoisted = false;
+
+    Gr05Compiler(SymbolTable nsymbols, boolean nhoist) {
+        symbols = nsymbols;
+        hoist = nhoist;
+    }
+
+    Gr05Program compileProgram(gr05Parser.ProgramContext ctx) {
+        return new Gr05Program(compileBlock(ctx.block()), symbols);
+    }
+
+    Gr05Program.Step[] compileBlock(gr05Parser.BlockContext ctx) {
+        List<Gr05Program.Step> steps = new ArrayList<>();
+        for (ParseTree child : ctx.children != null ? ctx.children : new ArrayList<ParseTree>()) {
+            if (child instanceof gr05Parser.LoopwhileContext) {
+                steps.add(compileWhile((gr05Parser.LoopwhileContext) child));
+            } else if (child instanceof gr05Parser.LoopforContext) {
+                steps.add(compileFor((gr05Parser.LoopforContext) child));
+            } else if (child instanceof gr05Parser.StatementContext) {
+                steps.add(new Gr05Program.Statement(compileStatement(child), !loop_written.isEmpty()));
+            }
+        }
+        return steps.toArray(new Gr05Program.Step[0]);
+    }
+
+    CompiledStatement compileStatement(ParseTree tree) {
+        CodeBuilder saved = builder;
+        builder = new CodeBuilder(symbols);
+        try {
+            CodeBuilder.Ref result = visit(tree);
+            return builder.finish(result);
+        } finally {
+            builder = saved;
+        }
+    }
+
+    Gr05Program.Step compileWhile(gr05Parser.LoopwhileContext ctx) {
+        enterLoop(ctx);
+        try {
+            CompiledCode condition = BytecodeCompiler.compile(compileStatement(ctx.expression()));
+            Gr05Program.Step[] body = compileBlock(ctx.block());
+            return new Gr05Program.While(condition, body, hoistedStatements(), hoistedSlots());
+        } finally {
+            leaveLoop();
+        }
+    }
+
+    // The bounds belong to the enclosing code, as they are computed once.
+    Gr05Program.Step compileFor(gr05Parser.LoopforContext ctx) {
+        CompiledStatement first = compileStatement(ctx.expression(0));
+        CompiledStatement last = compileStatement(ctx.expression(1));
+        enterLoop(ctx);
+        try {
+            Gr05Program.Step[] body = compileBlock(ctx.block());
+            return new Gr05Program.For(symbols.intern(ctx.IDENTIFIER().getText()),
+                    first, last, body, hoistedStatements(), hoistedSlots());
+        } finally {
+            leaveLoop();
+        }
+    }
+
+    void enterLoop(gr05Parser.LoopContext ctx) {
+        Set<String> written = new HashSet<>();
+        collectWritten(ctx, written);
+        loop_written.add(written);
+        loop_hoisted.add(new ArrayList<>());
+        loop_temps.add(new ArrayList<>());
+    }
+
+    void leaveLoop() {
+        int last = loop_written.size() - 1;
+        loop_written.remove(last);
+        loop_hoisted.remove(last);
+        loop_temps.remove(last);
+    }
+
+    CompiledStatement[] hoistedStatements() {
+        return loop_hoisted.get(loop_hoisted.size() - 1).toArray(new CompiledStatement[0]);
+    }
+
+    int[] hoistedSlots() {
+        return loop_temps.get(loop_temps.size() - 1).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static void collectWritten(ParseTree tree, Set<String> written) {
+        if (tree instanceof gr05Parser.LoopforContext) {
+            written.add(((gr05Parser.LoopforContext) tree).IDENTIFIER().getText());
+        }
+        if (tree instanceof gr05Parser.Asg1Context) {
+            collectNames(((gr05Parser.Asg1Context) tree).primary(), written);
+        }
+        for (int i = 0; i < tree.getChildCount(); ++i) {
+            collectWritten(tree.getChild(i), written);
+        }
+    }
+
+    static void collectNames(ParseTree tree, Set<String> names) {
+        if (tree instanceof gr05Parser.AtomidContext) {
+            names.add(tree.getText());
+        }
+        for (int i = 0; i < tree.getChildCount(); ++i) {
+            collectNames(tree.getChild(i), names);
+        }
+    }
+
+    static boolean isArithmetic(ParseTree tree) {
+        return tree instanceof gr05Parser.AsplusContext
+                || tree instanceof gr05Parser.AsminusContext
+                || tree instanceof gr05Parser.MdmulContext
+                || tree instanceof gr05Parser.MddivContext
+                || tree instanceof gr05Parser.PwrpwrContext
+                || tree instanceof gr05Parser.UnminusContext;
+    }
+
+    static boolean isInvariant(ParseTree tree, Set<String> written) {
+        if (tree instanceof gr05Parser.AtomidContext) {
+            return !written.contains(tree.getText());
+        }
+        if (tree instanceof gr05Parser.Asg1Context
+                || tree instanceof gr05Parser.PrimindexContext
+                || tree instanceof gr05Parser.PrimallContext
+                || tree instanceof gr05Parser.PrimreduceContext) {
+            return false;
+        }
+        for (int i = 0; i < tree.getChildCount(); ++i) {
+            ParseTree child = tree.getChild(i);
+            if (!(child instanceof TerminalNode) && !isInvariant(child, written)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public CodeBuilder.Ref visit(ParseTree tree) {
+        if (hoist && !in_hoisted && !builder.element_mode && isArithmetic(tree)) {
+            for (int level = 0; level < loop_written.size(); ++level) {
+                if (isInvariant(tree, loop_written.get(level))) {
+                    return hoist((ParserRuleContext) tree, level);
+                }
+            }
+        }
+        return super.visit(tree);
+    }
+
+    // Compiles "%hN = tree" into the prelude of the loop at the given level
+    // and loads %hN in its place.
+    CodeBuilder.Ref hoist(ParserRuleContext tree, int level) {
+        String temp = "%h" + hoisted_count++;
+        CodeBuilder saved = builder;
+        builder = new CodeBuilder(symbols);
+        in_hoisted = true;
+        try {
+            CodeBuilder.Ref value = super.visit(tree);
+            loop_hoisted.get(level).add(builder.finish(builder.assign(builder.scalar(temp), value)));
+        } finally {
+            builder = saved;
+            in_hoisted = false;
+        }
+        CodeBuilder.Ref ref = builder.scalar(temp);
+        loop_temps.get(level).add(ref.slot);
+        builder.materialize(ref);
+        return CodeBuilder.Ref.VALUE_REF;
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt1(gr05Parser.Stmt1Context ctx) {
+        return visit(ctx.stmt_defmap());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt2(gr05Parser.Stmt2Context ctx) {
+        return visit(ctx.stmt_bulk());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt0(gr05Parser.Stmt0Context ctx) {
+        return visit(ctx.expression());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt_defmap(gr05Parser.Stmt_defmapContext ctx) {
+        builder.defmap(ctx.IDENTIFIER().getText());
+        return null;
+    }
+
+    // The element code has its own symbol table, so nothing in it is hoisted.
+    @Override
+    public CodeBuilder.Ref visitStmt_bulk(gr05Parser.Stmt_bulkContext ctx) {
+        CodeBuilder saved = builder;
+        builder = new CodeBuilder(new SymbolTable());
+        builder.element_mode = true;
+        CompiledStatement element;
+        try {
+            element = builder.finish(visit(ctx.expression()));
+        } finally {
+            builder = saved;
+        }
+        builder.bulk(ctx.IDENTIFIER().getText(), element);
+        return null;
+    }
+
+    @Override
+    public CodeBuilder.Ref visitExpression(gr05Parser.ExpressionContext ctx) {
+        return visit(ctx.assignment());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsg0(gr05Parser.Asg0Context ctx) {
+        return visit(ctx.addsub());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsg1(gr05Parser.Asg1Context ctx) {
+        CodeBuilder.Ref lvalue = visit(ctx.primary());
+        CodeBuilder.Ref rvalue = visit(ctx.assignment());
+        return builder.assign(lvalue, rvalue);
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAs0(gr05Parser.As0Context ctx) {
+        return visit(ctx.muldiv());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsplus(gr05Parser.AsplusContext ctx) {
+        return binary(CompiledStatement.OP_ADD, ctx.addsub(), ctx.muldiv());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsminus(gr05Parser.AsminusContext ctx) {
+        return binary(CompiledStatement.OP_SUB, ctx.addsub(), ctx.muldiv());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitMd0(gr05Parser.Md0Context ctx) {
+        return visit(ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitMdmul(gr05Parser.MdmulContext ctx) {
+        return binary(CompiledStatement.OP_MUL, ctx.muldiv(), ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitMddiv(gr05Parser.MddivContext ctx) {
+        return binary(CompiledStatement.OP_DIV, ctx.muldiv(), ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPwr0(gr05Parser.Pwr0Context ctx) {
+        return visit(ctx.unary());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPwrpwr(gr05Parser.PwrpwrContext ctx) {
+        return binary(CompiledStatement.OP_POW, ctx.unary(), ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitUn0(gr05Parser.Un0Context ctx) {
+        return visit(ctx.primary());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitUnplus(gr05Parser.UnplusContext ctx) {
+        return visit(ctx.unary());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitUnminus(gr05Parser.UnminusContext ctx) {
+        return builder.negate(visit(ctx.unary()));
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimexpr(gr05Parser.PrimexprContext ctx) {
+        return visit(ctx.expression());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimindex(gr05Parser.PrimindexContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        return builder.indexed(name, visit(ctx.expression()));
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimall(gr05Parser.PrimallContext ctx) {
+        return builder.element(ctx.IDENTIFIER().getText());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimreduce(gr05Parser.PrimreduceContext ctx) {
+        return builder.reduce(ctx.IDENTIFIER(0).getText(), ctx.IDENTIFIER(1).getText());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimatom(gr05Parser.PrimatomContext ctx) {
+        return visit(ctx.atom());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAtomnum(gr05Parser.AtomnumContext ctx) {
+        return builder.constant(Double.valueOf(ctx.NUMBER().getText()));
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAtomid(gr05Parser.AtomidContext ctx) {
+        return builder.scalar(ctx.getText());
+    }
+
+    CodeBuilder.Ref binary(int opcode, ParseTree left, ParseTree right) {
+        builder.materialize(visit(left));
+        builder.materialize(visit(right));
+        return builder.binary(opcode);
+    }
+}
@@ -0,0 +1,149 @@
+import org.antlr.v4.runtime.*;
+
+// A gr05 script compiled once by Gr05Compiler: gr04 statements as
+// CompiledStatement code and loops over blocks of them, so a loop body is
+// never parsed again however often it runs. Statements inside loops are
+// also translated to bytecode by BytecodeCompiler.
+// Loop-invariant arithmetic is computed once per loop entry into hidden
+// scalars (named %h0, %h1, ... which no identifier can be); they are
+// reset to unset (NaN) when the loop ends.
+class Gr05Program {
+
+    abstract static class Step {
+        // Value of the statement, NaN for loops and statements without one
+        abstract double run(ExecutionContext econtext);
+    }
+
+    static final class Statement extends Step {
+        final CompiledStatement cs;
+        final CompiledCode code;
+
+        Statement(CompiledStatement ncs, boolean jit) {
+            cs = ncs;
+            code = jit ? BytecodeCompiler.compile(cs) : cs::execute;
+        }
+
+        @Override
+        double run(ExecutionContext econtext) {
+            return code.run(econtext);
+        }
+    }
+
+    abstract static class Loop extends Step {
+        final Step[] body;
+        // Statements "%hN = invariant expression" and their slots
+        final CompiledStatement[] hoisted;
+        final int[] temps;
+
+        Loop(Step[] nbody, CompiledStatement[] nhoisted, int[] ntemps) {
+            body = nbody;
+            hoisted = nhoisted;
+            temps = ntemps;
+        }
+
+        @Override
+        final double run(ExecutionContext econtext) {
+            for (CompiledStatement cs : hoisted) {
+                cs.execute(econtext);
+            }
+            try {
+                iterate(econtext);
+            } finally {
+                for (int slot : temps) {
+                    econtext.storeScalar(slot, Double.NaN);
+                }
+            }
+            return Double.NaN;
+        }
+
+        abstract void iterate(ExecutionContext econtext);
+    }
+
+    static final class While extends Loop {
+        final CompiledCode condition;
+
+        While(CompiledCode ncondition, Step[] nbody, CompiledStatement[] nhoisted, int[] ntemps) {
+            super(nbody, nhoisted, ntemps);
+            condition = ncondition;
+        }
+
+        // NaN, like zero, is false
+        @Override
+        void iterate(ExecutionContext econtext) {
+            for (;;) {
+                double value = condition.run(econtext);
+                if (value == 0 || Double.isNaN(value)) {
+                    return;
+                }
+                runBlock(body, econtext);
+            }
+        }
+    }
+
+    static final class For extends Loop {
+        final int slot;
+        final CompiledStatement first;
+        final CompiledStatement last;
+
+        For(int nslot, CompiledStatement nfirst, CompiledStatement nlast,
+                Step[] nbody, CompiledStatement[] nhoisted, int[] ntemps) {
+            super(nbody, nhoisted, ntemps);
+            slot = nslot;
+            first = nfirst;
+            last = nlast;
+        }
+
+        // The body may assign the variable; the next iteration sets it again.
+        @Override
+        void iterate(ExecutionContext econtext) {
+            double from = first.execute(econtext);
+            double to = last.execute(econtext);
+            for (double i = 0; from + i <= to; ++i) {
+                econtext.storeScalar(slot, from + i);
+                runBlock(body, econtext);
+            }
+        }
+    }
+
+    final Step[] steps;
+    final SymbolTable symbols;
+
+    Gr05Program(Step[] nsteps, SymbolTable nsymbols) {
+        steps = nsteps;
+        symbols = nsymbols;
+    }
+
+    static double runBlock(Step[] block, ExecutionContext econtext) {
+        double result = Double.NaN;
+        for (Step step : block) {
+            result = step.run(econtext);
+        }
+        return result;
+    }
+
+    // Value of the last top-level step. Loops and compiled bytecode hold
+    // slots of the table the program was compiled over.
+    double execute(ExecutionContext econtext) {
+        if (econtext.symbols != symbols) {
+            throw new IllegalArgumentException("Context uses another symbol table");
+        }
+        return runBlock(steps, econtext);
+    }
+
+    static gr05Parser.ProgramContext parse(CharSequence text) {
+        gr05Lexer lexer = new gr05Lexer(new ANTLRInputStream(text.toString()));
+        gr05Parser parser = new gr05Parser(new CommonTokenStream(lexer));
+        parser.setErrorHandler(new BailErrorStrategy());
+        lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        return parser.program();
+    }
+
+    static Gr05Program compile(CharSequence text) {
+        return compile(text, new SymbolTable(), true);
+    }
+
+    static Gr05Program compile(CharSequence text, SymbolTable symbols, boolean hoist) {
+        return new Gr05Compiler(symbols, hoist).compileProgram(parse(text));
+    }
+}
@@ -1,15 +1,17 @@
 class IdentifierSV extends SemanticValue {
     String varname;
+    int slot;
 
-    IdentifierSV(String nvarname) {
+    IdentifierSV(String nvarname, int nslot) {
         varname = nvarname;
+        slot = nslot;
     }
 
     double getRValue(ExecutionContext econtext) {
-        return econtext.scalars.getOrDefault(varname, Double.NaN);
+        return econtext.loadScalar(slot);
     }
 
     void assignValue(double new_value, ExecutionContext econtext) {
-        econtext.scalars.put(varname, new_value);
+        econtext.storeScalar(slot, new_value);
     }
 }
@@ -0,0 +1,95 @@
+// Changes one input of a generated spreadsheet-like script and compares
+// IncrementalEngine.update() with running everything again: parsed and
+// visited line by line by a Gr04Session, as compiled statements, and as a
+// traced full run of the engine. The script has 100 independent columns,
+// each accumulating over its own input, scalars and one map cell.
+public class IncrementalBench {
+    static final int COLUMNS = 100;
+
+    static String[] script(int size) {
+        String[] script = new String[size];
+        int n = 0;
+        script[n++] = "@defmap t";
+        for (int g = 0; g < COLUMNS; ++g) {
+            script[n++] = String.format("c%d=0", g);
+            script[n++] = String.format("r%d=0", g);
+        }
+        for (int i = 0; n < size - 1; ++i) {
+            int g = i % COLUMNS;
+            switch ((i / COLUMNS) % 3) {
+                case 0:
+                    script[n++] = String.format("c%d=c%d/2+x%d+%d", g, g, g, i);
+                    break;
+                case 1:
+                    script[n++] = String.format("t[%d]=c%d*2-x%d", g, g, g);
+                    break;
+                default:
+                    script[n++] = String.format("r%d=r%d+t[%d]", g, g, g);
+                    break;
+            }
+        }
+        StringBuilder total = new StringBuilder("total=r0");
+        for (int g = 1; g < COLUMNS; ++g) {
+            total.append("+r").append(g);
+        }
+        script[n] = total.toString();
+        return script;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0) ? Integer.valueOf(args[0]) : 100000;
+        int updates = (args.length > 1) ? Integer.valueOf(args[1]) : 200;
+        String[] script = script(size);
+        IncrementalEngine engine = new IncrementalEngine(script);
+        double[] inputs = new double[COLUMNS];
+        for (int g = 0; g < COLUMNS; ++g) {
+            inputs[g] = g;
+            engine.setInput("x" + g, g);
+        }
+        for (int round = 0; round < 3; ++round) {
+            long t0 = System.nanoTime();
+            Gr04Session session = new Gr04Session(new ExecutionContext(new SymbolTable()), true);
+            for (int g = 0; g < COLUMNS; ++g) {
+                session.econtext.setScalar("x" + g, inputs[g]);
+            }
+            double visited = session.execute(script);
+            long t1 = System.nanoTime();
+            ExecutionContext plain = new ExecutionContext(engine.symbols);
+            for (int g = 0; g < COLUMNS; ++g) {
+                plain.setScalar("x" + g, inputs[g]);
+            }
+            double compiled = 0;
+            for (IncrementalEngine.Statement statement : engine.statements) {
+                compiled = statement.cs.execute(plain);
+            }
+            long t2 = System.nanoTime();
+            double traced = engine.run();
+            long t3 = System.nanoTime();
+            long executed = 0;
+            for (int u = 0; u < updates; ++u) {
+                int g = (u * 37) % COLUMNS;
+                inputs[g] += 1;
+                engine.setInput("x" + g, inputs[g]);
+                engine.update();
+                executed += engine.executed;
+            }
+            long t4 = System.nanoTime();
+            if (visited != compiled || compiled != traced) {
+                throw new IllegalStateException("IncrementalBench: " + visited + " " + compiled + " " + traced);
+            }
+            System.out.printf("%d statements: visited %7.1f ms, compiled %6.1f ms, traced run %6.1f ms;"
+                    + " update %6.3f ms (%d statements re-executed)\n",
+                    size, (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t3 - t2) / 1e6,
+                    (t4 - t3) / 1e6 / updates, executed / updates);
+        }
+        // The updated state against a full run with the final inputs
+        IncrementalEngine full = new IncrementalEngine(script);
+        for (int g = 0; g < COLUMNS; ++g) {
+            full.setInput("x" + g, inputs[g]);
+        }
+        if (full.run() != engine.result() || engine.fallbacks != 0) {
+            throw new IllegalStateException("IncrementalBench: " + full.result() + " != " + engine.result());
+        }
+        System.out.println(engine.stats());
+    }
+}
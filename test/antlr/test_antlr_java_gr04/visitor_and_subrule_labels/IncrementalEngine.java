@@ -0,0 +1,595 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.antlr.v4.runtime.*;
+
+// Spreadsheet-like execution of a gr04 script over input scalars. A full
+// run executes every statement and records, for each scalar and map cell,
+// the statements which read it and the statements which wrote it with the
+// value written. When inputs are changed, update() re-executes only the
+// statements downstream of the change, in script order, and stops where a
+// statement writes the same values as before. The results, the context and
+// the errors are those of a full run with the new inputs.
+//
+// A re-executed statement reads every key as it was at its own place in the
+// script: the value of the last writer before it, or the input (NaN for an
+// unset scalar; a cell is absent before it is written or after @defmap).
+// So s=s+x further down does not leak into an earlier reader of s.
+//
+// Whole-map statements are not tracked per cell: a change reaching
+// m[*]=... (which may read and write anything) or sum(m) and the like falls
+// back to a full run, as does an error, once it has been thrown.
+// Not thread-safe.
+class IncrementalEngine {
+    // The "statement" before the script, which sets the inputs
+    static final int INPUT = -1;
+    static final int NONE = Integer.MAX_VALUE;
+
+    // Thrown by replay when it cannot go on; update() runs all instead.
+    static final class Fallback extends RuntimeException {
+        Fallback() {
+            super(null, null, false, false);
+        }
+    }
+
+    static final Fallback FALLBACK = new Fallback();
+
+    // A scalar or a map cell, with its readers and writers in the last run,
+    // in script order.
+    static final class Key {
+        final int slot;
+        final boolean cell;
+        final double index;
+        // Before the script: the input value, NaN if unset; cells are absent
+        double initial = Double.NaN;
+        int[] readers = new int[2];
+        int nreaders = 0;
+        int[] writers = new int[2];
+        double[] values = new double[2];
+        int nwriters = 0;
+        // Execution stamps of the statement now running
+        int read_by = 0;
+        int written_by = 0;
+        double written_value;
+        int mark = 0;
+
+        Key(int nslot, boolean ncell, double nindex) {
+            slot = nslot;
+            cell = ncell;
+            index = nindex;
+        }
+
+        // Position of the last writer before statement, or -1
+        int writerBefore(int statement) {
+            int pos = Arrays.binarySearch(writers, 0, nwriters, statement);
+            return ((pos >= 0) ? pos : -pos - 1) - 1;
+        }
+
+        int nextWriter(int statement) {
+            int pos = writerBefore(statement + 1) + 1;
+            return (pos < nwriters) ? writers[pos] : NONE;
+        }
+
+        void addReader(int statement) {
+            int pos = Arrays.binarySearch(readers, 0, nreaders, statement);
+            if (pos < 0) {
+                pos = -pos - 1;
+                if (nreaders == readers.length) {
+                    readers = Arrays.copyOf(readers, nreaders * 2);
+                }
+                System.arraycopy(readers, pos, readers, pos + 1, nreaders - pos);
+                readers[pos] = statement;
+                ++nreaders;
+            }
+        }
+
+        void removeReader(int statement) {
+            int pos = Arrays.binarySearch(readers, 0, nreaders, statement);
+            if (pos >= 0) {
+                System.arraycopy(readers, pos + 1, readers, pos, --nreaders - pos);
+            }
+        }
+
+        // Sets the value written by statement; false if it was there already
+        boolean setWriter(int statement, double value) {
+            int pos = Arrays.binarySearch(writers, 0, nwriters, statement);
+            if (pos >= 0) {
+                if (Double.doubleToLongBits(values[pos]) == Double.doubleToLongBits(value)) {
+                    return false;
+                }
+                values[pos] = value;
+                return true;
+            }
+            pos = -pos - 1;
+            if (nwriters == writers.length) {
+                writers = Arrays.copyOf(writers, nwriters * 2);
+                values = Arrays.copyOf(values, nwriters * 2);
+            }
+            System.arraycopy(writers, pos, writers, pos + 1, nwriters - pos);
+            System.arraycopy(values, pos, values, pos + 1, nwriters - pos);
+            writers[pos] = statement;
+            values[pos] = value;
+            ++nwriters;
+            return true;
+        }
+
+        void removeWriter(int statement) {
+            int pos = Arrays.binarySearch(writers, 0, nwriters, statement);
+            if (pos >= 0) {
+                --nwriters;
+                System.arraycopy(writers, pos + 1, writers, pos, nwriters - pos);
+                System.arraycopy(values, pos + 1, values, pos, nwriters - pos);
+            }
+        }
+    }
+
+    static final class Statement {
+        final String text;
+        final CompiledStatement cs;
+        final boolean bulk;
+        // Maps read as a whole by sum(m), min(m) etc.
+        final int[] reduced;
+        Key[] reads = new Key[0];
+        Key[] writes = new Key[0];
+        double result = Double.NaN;
+
+        Statement(String ntext, CompiledStatement ncs, boolean nbulk, int[] nreduced) {
+            text = ntext;
+            cs = ncs;
+            bulk = nbulk;
+            reduced = nreduced;
+        }
+    }
+
+    // The context of the statements. While one runs, scalars and cells go
+    // through the engine: in a full run to record them, in a replay to read
+    // them as of the statement and to keep the writes aside.
+    final class TracingContext extends ExecutionContext {
+        TracingMap[] tracing_maps = new TracingMap[0];
+
+        TracingContext(SymbolTable nsymbols) {
+            super(nsymbols);
+        }
+
+        @Override
+        double loadScalar(int slot) {
+            if (running < 0) {
+                return super.loadScalar(slot);
+            }
+            Key key = scalarKey(slot);
+            if (key.written_by == stamp) {
+                return key.written_value;
+            }
+            noteRead(key);
+            return replaying ? versioned(key) : super.loadScalar(slot);
+        }
+
+        @Override
+        void storeScalar(int slot, double value) {
+            if (running < 0 || !replaying) {
+                super.storeScalar(slot, value);
+            }
+            if (running >= 0) {
+                noteWrite(scalarKey(slot), value);
+            }
+        }
+
+        @Override
+        DoubleDoubleMap requireMap(int slot) {
+            if (running < 0) {
+                return super.requireMap(slot);
+            }
+            if (!replaying) {
+                super.requireMap(slot);
+            } else if (lastBefore(defmaps[slot], running) == INPUT) {
+                throw new DCExecutionError("Map not found");
+            }
+            if (slot >= tracing_maps.length) {
+                tracing_maps = Arrays.copyOf(tracing_maps, symbols.size());
+            }
+            if (tracing_maps[slot] == null) {
+                tracing_maps[slot] = new TracingMap(slot);
+            }
+            return tracing_maps[slot];
+        }
+
+        void storeFinal(int slot, double value) {
+            super.storeScalar(slot, value);
+        }
+    }
+
+    // Stands for a map in the statements; reductions, only done in full
+    // runs, go to the map itself.
+    final class TracingMap extends DoubleDoubleMap {
+        final int slot;
+
+        TracingMap(int nslot) {
+            slot = nslot;
+        }
+
+        @Override
+        double getOrFail(double index) {
+            Key key = cellKey(slot, index);
+            if (key.written_by == stamp) {
+                return key.written_value;
+            }
+            noteRead(key);
+            return replaying ? versioned(key) : econtext.mapAt(slot).getOrFail(index);
+        }
+
+        @Override
+        void put(double index, double value) {
+            if (!replaying) {
+                econtext.mapAt(slot).put(index, value);
+            }
+            noteWrite(cellKey(slot, index), value);
+        }
+
+        @Override
+        int size() {
+            return econtext.mapAt(slot).size();
+        }
+
+        @Override
+        double reduce(int function) {
+            return econtext.mapAt(slot).reduce(function);
+        }
+    }
+
+    final SymbolTable symbols = new SymbolTable();
+    final Statement[] statements;
+    final int[] bulks;
+    // Per map slot, the statements which create it and which reduce it
+    final int[][] defmaps;
+    final int[][] reducers;
+    final Map<Integer, Double> inputs = new LinkedHashMap<>();
+    final Map<Integer, Double> changed_inputs = new LinkedHashMap<>();
+    TracingContext econtext;
+    Key[] scalar_keys;
+    List<Map<Double, Key>> cell_keys;
+    // false until a full run has succeeded, and after an error
+    boolean valid = false;
+
+    // The statement running and its execution stamp
+    int running = -1;
+    int stamp = 0;
+    boolean replaying = false;
+    final List<Key> reads = new ArrayList<>();
+    final List<Key> writes = new ArrayList<>();
+    final PriorityQueue<Integer> pending = new PriorityQueue<>();
+    final boolean[] queued;
+    // Keys whose value at the end of the script may have changed
+    final List<Key> finals = new ArrayList<>();
+
+    long full_runs = 0;
+    long replays = 0;
+    long fallbacks = 0;
+    // Statements executed by the last update()
+    int executed = 0;
+
+    IncrementalEngine(String[] script) {
+        statements = new Statement[script.length];
+        List<Integer> bulk_list = new ArrayList<>();
+        Map<Integer, List<Integer>> defmap_lists = new HashMap<>();
+        Map<Integer, List<Integer>> reducer_lists = new HashMap<>();
+        for (int i = 0; i < script.length; ++i) {
+            gr04Parser parser = new gr04Parser(new CommonTokenStream(new gr04Lexer(new ANTLRInputStream(script[i]))));
+            parser.setErrorHandler(new BailErrorStrategy());
+            CompiledStatement cs = StatementCompiler.compile(parser.statement(), symbols);
+            List<Integer> reduced = new ArrayList<>();
+            boolean bulk = false;
+            for (int pc = 0; pc < cs.code.length; pc += 1 + CompiledStatement.operandCount(cs.code[pc])) {
+                switch (cs.code[pc]) {
+                    case CompiledStatement.OP_DEFMAP:
+                        defmap_lists.computeIfAbsent(cs.code[pc + 1], slot -> new ArrayList<>()).add(i);
+                        break;
+                    case CompiledStatement.OP_REDUCE:
+                        reduced.add(cs.code[pc + 1] >>> 2);
+                        reducer_lists.computeIfAbsent(cs.code[pc + 1] >>> 2, slot -> new ArrayList<>()).add(i);
+                        break;
+                    case CompiledStatement.OP_BULK:
+                        bulk = true;
+                        bulk_list.add(i);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            statements[i] = new Statement(script[i], cs, bulk, toArray(reduced));
+        }
+        bulks = toArray(bulk_list);
+        defmaps = new int[symbols.size()][];
+        reducers = new int[symbols.size()][];
+        for (int slot = 0; slot < defmaps.length; ++slot) {
+            defmaps[slot] = toArray(defmap_lists.getOrDefault(slot, new ArrayList<>()));
+            reducers[slot] = toArray(reducer_lists.getOrDefault(slot, new ArrayList<>()));
+        }
+        queued = new boolean[script.length];
+    }
+
+    static int[] toArray(List<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    // The last element below statement, or INPUT
+    static int lastBefore(int[] sorted, int statement) {
+        int pos = Arrays.binarySearch(sorted, statement);
+        pos = ((pos >= 0) ? pos : -pos - 1) - 1;
+        return (pos >= 0) ? sorted[pos] : INPUT;
+    }
+
+    // The first element above statement, or NONE
+    static int firstAfter(int[] sorted, int statement) {
+        int pos = Arrays.binarySearch(sorted, statement + 1);
+        pos = (pos >= 0) ? pos : -pos - 1;
+        return (pos < sorted.length) ? sorted[pos] : NONE;
+    }
+
+    // Whether an element is in (after, end]
+    static boolean within(int[] sorted, int after, int end) {
+        int first = firstAfter(sorted, after);
+        return first != NONE && first <= end;
+    }
+
+    ExecutionContext context() {
+        return econtext;
+    }
+
+    // The value of the last statement, NaN if it has none
+    double result() {
+        return (statements.length > 0) ? statements[statements.length - 1].result : Double.NaN;
+    }
+
+    // Takes effect with the next run() or update().
+    void setInput(String name, double value) {
+        int slot = symbols.intern(name);
+        inputs.put(slot, value);
+        changed_inputs.put(slot, value);
+    }
+
+    Key scalarKey(int slot) {
+        if (slot >= scalar_keys.length) {
+            scalar_keys = Arrays.copyOf(scalar_keys, Math.max(slot + 1, symbols.size()));
+        }
+        Key key = scalar_keys[slot];
+        if (key == null) {
+            key = new Key(slot, false, 0);
+            scalar_keys[slot] = key;
+        }
+        return key;
+    }
+
+    // Cells are told apart as DoubleDoubleMap keys are, by Double.equals()
+    Key cellKey(int slot, double index) {
+        while (cell_keys.size() <= slot) {
+            cell_keys.add(null);
+        }
+        Map<Double, Key> keys = cell_keys.get(slot);
+        if (keys == null) {
+            keys = new HashMap<>();
+            cell_keys.set(slot, keys);
+        }
+        return keys.computeIfAbsent(index, i -> new Key(slot, true, i));
+    }
+
+    void noteRead(Key key) {
+        if (key.read_by != stamp) {
+            key.read_by = stamp;
+            reads.add(key);
+        }
+    }
+
+    void noteWrite(Key key, double value) {
+        if (key.written_by != stamp) {
+            key.written_by = stamp;
+            writes.add(key);
+        }
+        key.written_value = value;
+    }
+
+    // The key as the running statement would see it in a full run
+    double versioned(Key key) {
+        int pos = key.writerBefore(running);
+        int writer = (pos >= 0) ? key.writers[pos] : INPUT;
+        if (writer < lastBefore(bulks, running)) {
+            throw FALLBACK;
+        }
+        if (!key.cell) {
+            return (pos >= 0) ? key.values[pos] : key.initial;
+        }
+        if (pos < 0 || writer < lastBefore(defmaps[key.slot], running)) {
+            throw new DCExecutionError("Map element not found");
+        }
+        return key.values[pos];
+    }
+
+    // Runs the whole script against a new context.
+    double run() {
+        valid = false;
+        changed_inputs.clear();
+        econtext = new TracingContext(symbols);
+        scalar_keys = new Key[symbols.size()];
+        cell_keys = new ArrayList<>();
+        for (Map.Entry<Integer, Double> input : inputs.entrySet()) {
+            scalarKey(input.getKey()).initial = input.getValue();
+            econtext.storeScalar(input.getKey(), input.getValue());
+        }
+        for (int i = 0; i < statements.length; ++i) {
+            Statement statement = statements[i];
+            if (statement.bulk) {
+                // Not traced: it counts as reading and writing everything
+                statement.result = statement.cs.execute(econtext);
+                continue;
+            }
+            begin(i, false);
+            try {
+                statement.result = statement.cs.execute(econtext);
+            } finally {
+                running = -1;
+            }
+            for (Key key : reads) {
+                key.addReader(i);
+            }
+            for (Key key : writes) {
+                key.setWriter(i, key.written_value);
+            }
+            statement.reads = reads.toArray(new Key[0]);
+            statement.writes = writes.toArray(new Key[0]);
+        }
+        ++full_runs;
+        executed = statements.length;
+        valid = true;
+        return result();
+    }
+
+    // Applies the changed inputs, as run() would.
+    double update() {
+        if (!valid) {
+            return run();
+        }
+        try {
+            replay();
+            ++replays;
+            return result();
+        } catch (Fallback exc) {
+            ++fallbacks;
+            return run();
+        } catch (RuntimeException exc) {
+            valid = false;
+            throw exc;
+        } finally {
+            running = -1;
+            replaying = false;
+            while (!pending.isEmpty()) {
+                queued[pending.poll()] = false;
+            }
+            finals.clear();
+        }
+    }
+
+    void begin(int statement, boolean nreplaying) {
+        running = statement;
+        replaying = nreplaying;
+        ++stamp;
+        reads.clear();
+        writes.clear();
+    }
+
+    void replay() {
+        executed = 0;
+        for (Map.Entry<Integer, Double> input : changed_inputs.entrySet()) {
+            Key key = scalarKey(input.getKey());
+            double value = input.getValue();
+            if (Double.doubleToLongBits(key.initial) != Double.doubleToLongBits(value)) {
+                key.initial = value;
+                changed(key, INPUT);
+            }
+        }
+        changed_inputs.clear();
+        while (!pending.isEmpty()) {
+            int i = pending.poll();
+            queued[i] = false;
+            reexecute(i);
+        }
+        // Only now: a cell may lose its writer before it gets another one
+        for (Key key : finals) {
+            storeFinal(key);
+        }
+    }
+
+    void reexecute(int i) {
+        Statement statement = statements[i];
+        if (statement.bulk || statement.reduced.length > 0) {
+            throw FALLBACK;
+        }
+        ++executed;
+        begin(i, true);
+        int execution = stamp;
+        statement.result = statement.cs.execute(econtext);
+        running = -1;
+        replaying = false;
+        // Reads which are new, reads which are gone
+        int old_mark = ++stamp;
+        for (Key key : statement.reads) {
+            key.mark = old_mark;
+        }
+        for (Key key : reads) {
+            if (key.mark != old_mark) {
+                key.addReader(i);
+            }
+        }
+        for (Key key : statement.reads) {
+            if (key.read_by != execution) {
+                key.removeReader(i);
+            }
+        }
+        for (Key key : writes) {
+            if (key.setWriter(i, key.written_value)) {
+                changed(key, i);
+            }
+        }
+        for (Key key : statement.writes) {
+            if (key.written_by != execution) {
+                key.removeWriter(i);
+                changed(key, i);
+            }
+        }
+        statement.reads = reads.toArray(new Key[reads.size()]);
+        statement.writes = writes.toArray(new Key[writes.size()]);
+    }
+
+    // The value of key after statement changed: schedules its readers up to
+    // the next writer, which reads it first, or to the next @defmap of a
+    // cell's map; at the end of the script, the context is to be updated.
+    void changed(Key key, int statement) {
+        int end = key.nextWriter(statement);
+        if (within(bulks, statement, end)) {
+            throw FALLBACK;
+        }
+        if (key.cell) {
+            end = Math.min(end, firstAfter(defmaps[key.slot], statement));
+            if (within(reducers[key.slot], statement, end)) {
+                throw FALLBACK;
+            }
+        }
+        int first = Arrays.binarySearch(key.readers, 0, key.nreaders, statement + 1);
+        for (int r = (first >= 0) ? first : -first - 1; r < key.nreaders && key.readers[r] <= end; ++r) {
+            int reader = key.readers[r];
+            if (!queued[reader]) {
+                queued[reader] = true;
+                pending.add(reader);
+            }
+        }
+        if (end == NONE) {
+            finals.add(key);
+        }
+    }
+
+    void storeFinal(Key key) {
+        int last = key.nwriters - 1;
+        if (!key.cell) {
+            econtext.storeFinal(key.slot, (last >= 0) ? key.values[last] : key.initial);
+            return;
+        }
+        DoubleDoubleMap themap = econtext.mapAt(key.slot);
+        if (last >= 0 && key.writers[last] > lastBefore(defmaps[key.slot], NONE)) {
+            themap.put(key.index, key.values[last]);
+        } else if (themap != null && themap.containsKey(key.index)) {
+            // No removal from maps
+            throw FALLBACK;
+        }
+    }
+
+    String stats() {
+        return String.format("statements=%d full_runs=%d replays=%d fallbacks=%d last_executed=%d",
+                statements.length, full_runs, replays, fallbacks, executed);
+    }
+}
@@ -1,5 +1,3 @@
-import java.util.Map;
-
 class IndexedReferenceSV extends SemanticValue {
 
     IdentifierSV base;
@@ -12,23 +10,14 @@ class IndexedReferenceSV extends SemanticValue {
 
     @Override
     double getRValue(ExecutionContext econtext) {
-        Map<Double, Double> themap = econtext.maps.get(base.varname);
-        if (themap == null) {
-            throw new DCExecutionError("Map not found");
-        }
+        DoubleDoubleMap themap = econtext.requireMap(base.slot);
         double ivalue = index.getRValue(econtext);
-        if (!themap.containsKey(ivalue)) {
-            throw new DCExecutionError("Map element not found");
-        }
-        return themap.get(ivalue);
+        return themap.getOrFail(ivalue);
     }
 
     @Override
     void assignValue(double new_value, ExecutionContext econtext) {
-        Map<Double, Double> themap = econtext.maps.get(base.varname);
-        if (themap == null) {
-            throw new DCExecutionError("Map not found");
-        }
+        DoubleDoubleMap themap = econtext.requireMap(base.slot);
         double ivalue = index.getRValue(econtext);
         themap.put(ivalue, new_value);
     }
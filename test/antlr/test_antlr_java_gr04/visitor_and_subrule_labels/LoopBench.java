@@ -0,0 +1,58 @@
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// The same work as a gr04 script with every iteration written out, run by
+// ScriptRunner, and as a gr05 program with loops, compiled once with and
+// without hoisting.
+public class LoopBench {
+    static final String LOOP = "@defmap zz; s=0; a=3; b=4;\n"
+            + "for (j=0, %d) {\n"
+            + "  for (k=0, 999) { zz[k]=(j*1000+k)*2+1; s=s+zz[k]/(a*b+k); }\n"
+            + "}\n"
+            + "s;\n";
+
+    public static void main(String[] args) throws Exception {
+        int outer = ((args.length > 0) ? Integer.valueOf(args[0]) : 1000000) / 1000;
+        String program_text = String.format(LOOP, outer - 1);
+        Path script = Files.createTempFile("gr04bench", ".txt");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(script, StandardCharsets.US_ASCII)) {
+                writer.write("@defmap zz\ns=0\na=3\nb=4\n");
+                for (int j = 0; j < outer; ++j) {
+                    for (int k = 0; k < 1000; ++k) {
+                        writer.write(String.format("zz[%d]=(%d*1000+%d)*2+1; s=s+zz[%d]/(a*b+%d)\n", k, j, k, k, k));
+                    }
+                }
+                writer.write("s\n");
+            }
+            System.out.printf("%d iterations: script %d bytes, program %d bytes\n",
+                    outer * 1000, Files.size(script), program_text.length());
+            for (int round = 0; round < 3; ++round) {
+                long t0 = System.nanoTime();
+                ScriptRunner runner = new ScriptRunner(new ExecutionContext(new SymbolTable()));
+                double unrolled = runner.run(script);
+                long t1 = System.nanoTime();
+                String line = String.format("unrolled %7.1f ms", (t1 - t0) / 1e6);
+                for (boolean hoist : new boolean[]{false, true}) {
+                    SymbolTable symbols = new SymbolTable();
+                    long t2 = System.nanoTime();
+                    Gr05Compiler compiler = new Gr05Compiler(symbols, hoist);
+                    Gr05Program program = compiler.compileProgram(Gr05Program.parse(program_text));
+                    long t3 = System.nanoTime();
+                    double looped = program.execute(new ExecutionContext(symbols));
+                    long t4 = System.nanoTime();
+                    if (looped != unrolled) {
+                        throw new IllegalStateException("LoopBench: " + looped + " != " + unrolled);
+                    }
+                    line += String.format(", %s compile %5.1f ms run %7.1f ms (%d hoisted)",
+                            hoist ? "hoisted" : "looped", (t3 - t2) / 1e6, (t4 - t3) / 1e6, compiler.hoisted_count);
+                }
+                System.out.println(line);
+            }
+        } finally {
+            Files.delete(script);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.Arrays;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Whole-map forms of gr04. The bulk assignment m[*] = expression sets every
+// element of m; in the expression x[*] is the element of map x with the
+// same key, so m[*] is the element's own value. sum(m), min(m), max(m)
+// and count(m) reduce all values of m.
+//
+// An assignment is one pass over the map storage (updateValues()): a
+// chunk of entries at a time, the expression is evaluated over the chunk
+// by BatchEvaluator and the results are stored in place, so no element is
+// parsed, looked up by key in m or boxed. Elements are independent and
+// processed in no particular order: scalars and reductions read as they
+// were before the statement (or as assigned earlier for the same
+// element), and a scalar assigned in the expression ends with the value
+// of the last element processed. The expression may read maps only as
+// x[*] and may not assign map elements, so the keys of m stay the same.
+// If an x[*] element is missing, the statement fails before m is changed.
+// Like CompiledStatement, a MapBulk may be executed by several threads.
+class MapBulk {
+    static final String[] FUNCTIONS = {"sum", "min", "max", "count"};
+    static final int COUNT = 3;
+    static final BatchKernels kernels = BatchKernels.best();
+
+    final String target;
+    final CompiledStatement element;
+
+    MapBulk(String ntarget, CompiledStatement nelement) {
+        target = ntarget;
+        element = nelement;
+        // Checks the code once
+        new BatchEvaluator(element, kernels);
+    }
+
+    static MapBulk compile(String target, ParseTree expression) {
+        return new MapBulk(target, StatementCompiler.compileElement(expression));
+    }
+
+    // Index into FUNCTIONS; the first three are DoubleDoubleMap.reduce() functions.
+    static int function(String name) {
+        for (int i = 0; i < FUNCTIONS.length; ++i) {
+            if (FUNCTIONS[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new DCExecutionError("Unknown function: " + name);
+    }
+
+    static double reduce(ExecutionContext econtext, int slot, int function) {
+        DoubleDoubleMap themap = econtext.requireMap(slot);
+        if (function == COUNT) {
+            return themap.size();
+        }
+        if (function != DoubleDoubleMap.SUM && themap.size() == 0) {
+            throw new DCExecutionError("Map is empty");
+        }
+        return themap.reduce(function);
+    }
+
+    void execute(ExecutionContext econtext) {
+        DoubleDoubleMap themap = econtext.requireMap(econtext.symbols.intern(target));
+        int nsymbols = element.symbols.size();
+        int[] slots = new int[nsymbols];
+        for (int slot = 0; slot < nsymbols; ++slot) {
+            slots[slot] = econtext.symbols.intern(element.symbols.name(slot));
+        }
+        // Scalars and reductions are read once, as constant columns
+        double[][] bound = new double[nsymbols][];
+        double[][] elements = new double[nsymbols][];
+        DoubleDoubleMap[] sources = new DoubleDoubleMap[nsymbols];
+        double[][] reduced = new double[4 * nsymbols][];
+        final int[] code = element.code;
+        for (int pc = 0; pc < code.length; pc += 1 + CompiledStatement.operandCount(code[pc])) {
+            int operand = (pc + 1 < code.length) ? code[pc + 1] : 0;
+            switch (code[pc]) {
+                case CompiledStatement.OP_LOAD_SCALAR:
+                    if (bound[operand] == null) {
+                        bound[operand] = column(econtext.loadScalar(slots[operand]));
+                    }
+                    break;
+                case CompiledStatement.OP_ELEMENT:
+                    if (sources[operand] == null) {
+                        sources[operand] = econtext.requireMap(slots[operand]);
+                        elements[operand] = new double[DoubleDoubleMap.CHUNK];
+                    }
+                    break;
+                case CompiledStatement.OP_REDUCE:
+                    if (reduced[operand] == null) {
+                        reduced[operand] = column(reduce(econtext, slots[operand >>> 2], operand & 3));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        // Every x[*] element is looked for before the first chunk is stored
+        for (DoubleDoubleMap source : sources) {
+            if (source != null && source != themap) {
+                themap.forEach((key, value) -> {
+                    if (!source.containsKey(key)) {
+                        throw new DCExecutionError("Map element not found");
+                    }
+                });
+            }
+        }
+        BatchEvaluator evaluator = new BatchEvaluator(element, kernels);
+        double[] last = new double[nsymbols];
+        boolean[] assigned = new boolean[nsymbols];
+        themap.updateValues((keys, values, n) -> {
+            for (int slot = 0; slot < nsymbols; ++slot) {
+                DoubleDoubleMap source = sources[slot];
+                if (source == themap) {
+                    elements[slot] = values;
+                } else if (source != null) {
+                    double[] column = elements[slot];
+                    for (int i = 0; i < n; ++i) {
+                        column[i] = source.getOrFail(keys[i]);
+                    }
+                }
+            }
+            evaluator.evaluate(bound, elements, reduced, values, n);
+            for (int slot = 0; slot < nsymbols; ++slot) {
+                if (evaluator.outputs[slot] != null) {
+                    last[slot] = evaluator.outputs[slot][n - 1];
+                    assigned[slot] = true;
+                }
+            }
+        });
+        for (int slot = 0; slot < nsymbols; ++slot) {
+            if (assigned[slot]) {
+                econtext.storeScalar(slots[slot], last[slot]);
+            }
+        }
+    }
+
+    static double[] column(double value) {
+        double[] column = new double[DoubleDoubleMap.CHUNK];
+        Arrays.fill(column, value);
+        return column;
+    }
+
+    @Override
+    public String toString() {
+        return target + "[*] =\n" + element;
+    }
+}
@@ -1,33 +1,228 @@
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.*;
 
 public class MyTest {
     int m_verbose = 0;
 
+    // One way to execute a statement line against a context.
+    // Returns null if the statement yields no value.
+    interface Engine {
+        Double runLine(String expr_line, ExecutionContext econtext, boolean strict) throws Exception;
+    }
+
+    Map<String, Engine> engines = new LinkedHashMap<>();
+    StatementCache cache = new StatementCache(1000, 1 << 20);
+
+    MyTest() {
+        engines.put("visitor", this::runVisitor);
+        engines.put("folded", this::runFolded);
+        engines.put("folded_compiled", this::runFoldedCompiled);
+        engines.put("stack", this::runStack);
+        engines.put("folded_stack", this::runFoldedStack);
+        engines.put("treeless", this::runTreeless);
+        engines.put("compiled", this::runCompiled);
+        engines.put("cached", this::runCached);
+        engines.put("session", this::runSession);
+        engines.put("session_sll", this::runSessionTwoStage);
+        engines.put("pratt", this::runPratt);
+        engines.put("bytes", this::runBytes);
+        engines.put("bytes_visitor", this::runBytesVisitor);
+        engines.put("jit", this::runJit);
+        engines.put("tiered", this::runTiered);
+        engines.put("ast", this::runAst);
+    }
+
+    gr04Parser makeParser(String expr_line, boolean strict) throws Exception {
+        InputStream string_reading = new ByteArrayInputStream(expr_line.getBytes(StandardCharsets.UTF_8));
+        ANTLRInputStream input = new ANTLRInputStream(string_reading);
+        gr04Lexer lexer = new gr04Lexer(input);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        gr04Parser parser = new gr04Parser(tokens);
+        if (strict && m_verbose <= 0) {
+            parser.setErrorHandler(new BailErrorStrategy());
+            lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        }
+        return parser;
+    }
+
+    Double runVisitor(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        // What to call in parser is the starting rule.
+        ParseTree tree = makeParser(expr_line, strict).statement();
+        MyVisitor visitor = new MyVisitor();
+        visitor.verbose = m_verbose;
+        // NB visit() has no extra arguments
+        visitor.econtext = econtext;
+        SemanticValue rsv = visitor.visit(tree);
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    Double runFolded(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        ConstantFolder folder = new ConstantFolder();
+        ParseTree tree = folder.fold(makeParser(expr_line, strict).statement());
+        if (m_verbose > 0) {
+            System.out.printf("__: folded %d, chains %d, removed %d\n", folder.folded, folder.chains, folder.removed);
+        }
+        MyVisitor visitor = new MyVisitor();
+        visitor.verbose = m_verbose;
+        visitor.econtext = econtext;
+        SemanticValue rsv = visitor.visit(tree);
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    // Other visitors see the original subtrees under the folded nodes
+    Double runFoldedCompiled(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        ParseTree tree = new ConstantFolder().fold(makeParser(expr_line, strict).statement());
+        CompiledStatement cs = StatementCompiler.compile(tree);
+        double result = cs.execute(econtext);
+        return cs.has_value ? result : null;
+    }
+
+    Double runStack(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        SemanticValue rsv = new StackEvaluator(econtext).evaluate(makeParser(expr_line, strict).statement());
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    Double runFoldedStack(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        ParseTree tree = new ConstantFolder().fold(makeParser(expr_line, strict).statement());
+        SemanticValue rsv = new StackEvaluator(econtext).evaluate(tree);
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    Double runTreeless(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        SemanticValue rsv = new TreelessEvaluator(econtext).evaluate(expr_line);
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    Double runCompiled(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        ParseTree tree = makeParser(expr_line, strict).statement();
+        CompiledStatement cs = StatementCompiler.compile(tree);
+        if (m_verbose > 0) {
+            System.out.print(cs);
+        }
+        double result = cs.execute(econtext);
+        return cs.has_value ? result : null;
+    }
+
+    Double runCached(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        CompiledStatement cs = cache.get(expr_line, econtext.symbols);
+        double result = cs.execute(econtext);
+        return cs.has_value ? result : null;
+    }
+
+    Gr04Session session = null;
+    boolean session_strict = false;
+
+    Double runSession(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        if (session == null || session.econtext != econtext || session_strict != strict) {
+            session = new Gr04Session(econtext, strict && m_verbose <= 0);
+            session.visitor.verbose = m_verbose;
+            session_strict = strict;
+        }
+        return session.execute(expr_line);
+    }
+
+    Gr04Session two_stage_session = null;
+    boolean two_stage_strict = false;
+
+    Double runSessionTwoStage(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        if (two_stage_session == null || two_stage_session.econtext != econtext || two_stage_strict != strict) {
+            two_stage_session = new Gr04Session(econtext, strict && m_verbose <= 0);
+            two_stage_session.visitor.verbose = m_verbose;
+            two_stage_session.setTwoStage(true);
+            two_stage_strict = strict;
+        }
+        return two_stage_session.execute(expr_line);
+    }
+
+    Double runPratt(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        gr04Lexer lexer = new gr04Lexer(new ANTLRInputStream(expr_line));
+        if (strict && m_verbose <= 0) {
+            lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        }
+        CompiledStatement cs = PrattParser.compile(lexer.getAllTokens());
+        double result = cs.execute(econtext);
+        return cs.has_value ? result : null;
+    }
+
+    ByteLexer byte_lexer = new ByteLexer();
+
+    Double runBytes(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        byte_lexer.tokenize(expr_line.getBytes(StandardCharsets.US_ASCII));
+        CompiledStatement cs = byte_lexer.toPrattParser().compileStatement(econtext.symbols);
+        double result = cs.execute(econtext);
+        return cs.has_value ? result : null;
+    }
+
+    Double runBytesVisitor(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        byte_lexer.tokenize(expr_line.getBytes(StandardCharsets.US_ASCII));
+        gr04Parser parser = new gr04Parser(new CommonTokenStream(byte_lexer.tokenSource()));
+        if (strict && m_verbose <= 0) {
+            parser.setErrorHandler(new BailErrorStrategy());
+            parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        }
+        MyVisitor visitor = new MyVisitor();
+        visitor.verbose = m_verbose;
+        visitor.econtext = econtext;
+        SemanticValue rsv = visitor.visit(parser.statement());
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    Double runJit(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        // The bytecode holds the slots of the context
+        CompiledStatement cs = StatementCompiler.compile(makeParser(expr_line, strict).statement(), econtext.symbols);
+        double result = BytecodeCompiler.compile(cs).run(econtext);
+        return cs.has_value ? result : null;
+    }
+
+    TieredEngine tiered = new TieredEngine(2);
+
+    Double runTiered(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        return tiered.execute(expr_line, econtext);
+    }
+
+    // Trees are kept per statement text, so later runs see rewritten nodes.
+    Map<String, AstNode.Root> ast_roots = new java.util.HashMap<>();
+
+    Double runAst(String expr_line, ExecutionContext econtext, boolean strict) throws Exception {
+        AstNode.Root root = ast_roots.get(expr_line);
+        if (root == null) {
+            root = AstBuilder.build(makeParser(expr_line, strict).statement());
+            ast_roots.put(expr_line, root);
+        }
+        double result = root.execute(econtext);
+        return root.has_value ? result : null;
+    }
+
     void testBlock(String test_name, String[] expr_block, double expected) throws Exception {
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            testBlock(entry.getKey(), entry.getValue(), test_name, expr_block, expected);
+        }
+    }
+
+    void testBlock(String engine_name, Engine engine, String test_name, String[] expr_block, double expected)
+            throws Exception {
         if (m_verbose > 0) {
-            System.out.printf("testExpression(<%s>)\n", test_name);
+            System.out.printf("testExpression(<%s>, %s)\n", test_name, engine_name);
         }
         try {
             ExecutionContext econtext = new ExecutionContext();
             Double result = Double.NaN;
             for (String expr_line : expr_block) {
-                InputStream string_reading = new ByteArrayInputStream(expr_line.getBytes(StandardCharsets.UTF_8));
-                ANTLRInputStream input = new ANTLRInputStream(string_reading);
-                gr04Lexer lexer = new gr04Lexer(input);
-                CommonTokenStream tokens = new CommonTokenStream(lexer);
-                gr04Parser parser = new gr04Parser(tokens);
-                ParseTree tree = parser.statement();
-                MyVisitor visitor = new MyVisitor();
-                visitor.verbose = m_verbose;
-                // NB visit() has no extra arguments
-                visitor.econtext = econtext;
-                SemanticValue rsv = visitor.visit(tree);
-                if (rsv != null) {
-                    result = rsv.getRValue(econtext);
+                Double line_result = engine.runLine(expr_line, econtext, false);
+                if (line_result != null) {
+                    result = line_result;
                 }
             }
             if (m_verbose > 0) {
@@ -35,49 +230,1287 @@ public class MyTest {
             }
             if (result != expected) {
                 String et = String.format(
-                        "Test failed: expr=<%s> expected=%s result=%s",
-                        test_name, expected, result);
+                        "Test failed: expr=<%s> engine=%s expected=%s result=%s",
+                        test_name, engine_name, expected, result);
                 throw new RuntimeException(et);
             }
         } catch (RuntimeException exc) {
-            String msg = String.format("Test failed: expr=<%s> exception=<%s>", test_name, exc);
+            String msg = String.format("Test failed: expr=<%s> engine=%s exception=<%s>",
+                    test_name, engine_name, exc);
             System.out.println(msg);
             throw exc;
         }
     }
 
+    void testBlockScalar(String test_name, String[] expr_block, String varname, double expected)
+            throws Exception {
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            ExecutionContext econtext = new ExecutionContext();
+            for (String expr_line : expr_block) {
+                entry.getValue().runLine(expr_line, econtext, false);
+            }
+            double result = econtext.getScalar(varname);
+            if (m_verbose > 0) {
+                System.out.printf("testBlockScalar(<%s>, %s): %s=%s\n",
+                        test_name, entry.getKey(), varname, result);
+            }
+            if (Double.doubleToLongBits(result) != Double.doubleToLongBits(expected)) {
+                String et = String.format(
+                        "Test failed: expr=<%s> engine=%s expected %s=%s result=%s",
+                        test_name, entry.getKey(), varname, expected, result);
+                throw new RuntimeException(et);
+            }
+        }
+    }
+
+    void testBlockError(String test_name, String[] expr_block, String expected_error) throws Exception {
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            String engine_name = entry.getKey();
+            String error = null;
+            try {
+                ExecutionContext econtext = new ExecutionContext();
+                for (String expr_line : expr_block) {
+                    entry.getValue().runLine(expr_line, econtext, false);
+                }
+            } catch (DCExecutionError exc) {
+                error = exc.getMessage();
+            }
+            if (m_verbose > 0) {
+                System.out.printf("testBlockError(<%s>, %s): %s\n", test_name, engine_name, error);
+            }
+            if (!expected_error.equals(error)) {
+                String et = String.format(
+                        "Test failed: expr=<%s> engine=%s expected error=<%s> got=<%s>",
+                        test_name, engine_name, expected_error, error);
+                throw new RuntimeException(et);
+            }
+        }
+    }
+
+    void testCache() throws Exception {
+        StatementCache small = new StatementCache(1, 1 << 20);
+        ExecutionContext econtext = new ExecutionContext();
+        small.execute("a=1", econtext);
+        small.execute("a=a+1", econtext);
+        small.execute("a=a+1", econtext);
+        small.execute("b=a*10", econtext);
+        double result = small.execute("a=a+1", econtext);
+        if (m_verbose > 0) {
+            System.out.println("testCache: " + small);
+        }
+        if (result != 4 || econtext.getScalar("b") != 30 || small.hits() != 1 || small.misses() != 4
+                || small.evictions() != 3 || small.size() != 1) {
+            throw new RuntimeException("Test failed: testCache " + small);
+        }
+        StatementCache tiny = new StatementCache(100, 1);
+        tiny.execute("c=1", econtext);
+        if (tiny.size() != 0 || tiny.evictions() != 1) {
+            throw new RuntimeException("Test failed: testCache weight bound " + tiny);
+        }
+        // Hits run against the caller's context
+        ExecutionContext other = new ExecutionContext();
+        other.setScalar("a", 100);
+        if (small.execute("a=a+1", other) != 101 || econtext.getScalar("a") != 4) {
+            throw new RuntimeException("Test failed: testCache context binding");
+        }
+        // Each context keeps its relinked copy; only the first use of a
+        // table relinks, and does not count as a hit
+        if (small.hits() != 1 || small.relinks() != 1 || small.misses() != 4) {
+            throw new RuntimeException("Test failed: testCache relink counted " + small);
+        }
+        for (int i = 0; i < 4; ++i) {
+            small.execute("a=a+1", (i % 2 == 0) ? econtext : other);
+        }
+        CompiledStatement entry = small.get("a=a+1");
+        if (small.hits() != 6 || small.relinks() != 1 || entry.links.length != 2
+                || entry.findLinked(econtext.symbols) != small.get("a=a+1", econtext.symbols)
+                || econtext.getScalar("a") != 6 || other.getScalar("a") != 103) {
+            throw new RuntimeException("Test failed: testCache relinked copies " + small);
+        }
+    }
+
+    void testSession() throws Exception {
+        Gr04Session strict_session = new Gr04Session(new ExecutionContext(), true);
+        double result = strict_session.execute(new CharSequence[]{
+                "@defmap zz", new StringBuilder("zz[1]=a=3"), "b=zz[1]*a"});
+        boolean failed = false;
+        try {
+            strict_session.execute("2+");
+        } catch (RuntimeException exc) {
+            failed = true;
+        }
+        // The session stays usable after a syntax error
+        Double after = strict_session.execute("b+1");
+        if (result != 9 || !failed || after != 10) {
+            String et = String.format("Test failed: testSession result=%s failed=%s after=%s",
+                    result, failed, after);
+            throw new RuntimeException(et);
+        }
+
+        // SLL is enough for valid gr04 input; only the syntax error falls back to LL
+        Gr04Session two_stage = new Gr04Session(new ExecutionContext(), true);
+        two_stage.setTwoStage(true);
+        result = two_stage.execute(new CharSequence[]{
+                "@defmap yx", "yx[1]=50", "yx[2]=yx[3]=4", "(a)=(yx[(3-2)])", "-a**2+yx[2]"});
+        failed = false;
+        try {
+            two_stage.execute("(a=");
+        } catch (RuntimeException exc) {
+            failed = true;
+        }
+        if (m_verbose > 0) {
+            System.out.println("testSession: " + two_stage.parseStats());
+        }
+        if (result != 2504 || !failed || two_stage.two_stage_parses != 6 || two_stage.ll_fallbacks != 1) {
+            String et = String.format("Test failed: testSession two-stage result=%s failed=%s %s",
+                    result, failed, two_stage.parseStats());
+            throw new RuntimeException(et);
+        }
+
+        // A tree visited again resolves its identifiers in the table of the
+        // context it is visited for
+        ParseTree tree = makeParser("b=zz[c]+sum(zz)", true).statement();
+        MyVisitor visitor = new MyVisitor();
+        visitor.econtext = strict_session.econtext;
+        strict_session.execute("c=1");
+        Double first = visitor.visit(tree).getRValue(strict_session.econtext);
+        ExecutionContext other = new ExecutionContext();
+        other.symbols.intern("zz");
+        runVisitor("@defmap zz", other, true);
+        runVisitor("zz[2]=5", other, true);
+        other.setScalar("c", 2);
+        visitor.econtext = other;
+        Double value = visitor.visit(tree).getRValue(other);
+        if (first != 6 || value != 10) {
+            throw new RuntimeException(String.format("Test failed: testSession visitor slots first=%s value=%s",
+                    first, value));
+        }
+    }
+
+    // ByteLexer must give the same tokens and numbers as gr04Lexer.
+    void testByteLexer() throws Exception {
+        String[] inputs = {"@defmap zz", "@defmapx", "a**b*c* *d", " (x_1 [\t2]\n)=-+3/4 ",
+                "12345678901234567890123", "9007199254740993", "007", "2**-2**"};
+        for (String input : inputs) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(input.length() + 2);
+            buffer.put((byte) '(').put(input.getBytes(StandardCharsets.US_ASCII)).put((byte) ')');
+            buffer.position(1).limit(input.length() + 1);
+            int count = byte_lexer.tokenize(buffer);
+            gr04Lexer lexer = new gr04Lexer(new ANTLRInputStream(input));
+            java.util.List<? extends Token> expected = lexer.getAllTokens();
+            boolean same = (count == expected.size());
+            for (int i = 0; same && i < count; ++i) {
+                Token token = expected.get(i);
+                same = byte_lexer.type(i) == token.getType()
+                        && byte_lexer.text(i).equals(token.getText())
+                        && (token.getType() != gr04Lexer.NUMBER
+                            || byte_lexer.number(i) == Double.valueOf(token.getText()));
+            }
+            if (!same) {
+                throw new RuntimeException("Test failed: testByteLexer <" + input + ">");
+            }
+        }
+        // Many tokens before a number: numbers grows past several doublings of tokens
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; ++i) {
+            sb.append("a+");
+        }
+        sb.append("17+b+123456789012345678901");
+        int count = byte_lexer.tokenize(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        if (count != 605 || byte_lexer.number(600) != 17 || byte_lexer.number(604) != 123456789012345678901.0
+                || byte_lexer.type(602) != gr04Lexer.IDENTIFIER) {
+            throw new RuntimeException("Test failed: testByteLexer long input, count=" + count);
+        }
+        boolean failed = false;
+        try {
+            byte_lexer.tokenize("2$".getBytes(StandardCharsets.US_ASCII));
+        } catch (DCSyntaxError exc) {
+            failed = true;
+        }
+        if (!failed) {
+            throw new RuntimeException("Test failed: testByteLexer accepted '$'");
+        }
+        // Token lengths up to what the packed form holds
+        byte[] longest = new byte[ByteLexer.MAX_TOKEN_LENGTH + 1];
+        Arrays.fill(longest, (byte) 'x');
+        count = byte_lexer.tokenize(ByteBuffer.wrap(longest, 1, ByteLexer.MAX_TOKEN_LENGTH));
+        long token = byte_lexer.tokens[0];
+        String error = null;
+        try {
+            byte_lexer.tokenize(longest);
+        } catch (DCSyntaxError exc) {
+            error = exc.getMessage();
+        }
+        if (count != 1 || ByteLexer.start(token) != 1 || ByteLexer.length(token) != ByteLexer.MAX_TOKEN_LENGTH
+                || !"Token longer than 16777215 bytes at offset 0".equals(error)) {
+            throw new RuntimeException("Test failed: testByteLexer token length, error=" + error);
+        }
+    }
+
+    void testScriptRunner() throws Exception {
+        java.nio.file.Path script = java.nio.file.Files.createTempFile("gr04script", ".txt");
+        try {
+            // A tiny buffer forces statements across refills and buffer growth
+            java.nio.file.Files.write(script, "@defmap zz\r\nzz[1]=5;; a=zz[1]*2\n\n b = a + 100 ;c=b"
+                    .getBytes(StandardCharsets.US_ASCII));
+            ScriptRunner runner = new ScriptRunner(new ExecutionContext(), 4);
+            double result = runner.run(script);
+            if (result != 110 || runner.statements != 5 || runner.econtext.getScalar("a") != 10) {
+                throw new RuntimeException("Test failed: testScriptRunner " + runner.report());
+            }
+            ScriptRunner.generate(script, 200);
+            ScriptRunner small = new ScriptRunner(new ExecutionContext(), 16);
+            ScriptRunner large = new ScriptRunner(new ExecutionContext());
+            small.run(script);
+            large.run(script);
+            if (m_verbose > 0) {
+                System.out.println("testScriptRunner: " + large.report());
+            }
+            if (small.statements != 402 || small.econtext.getScalar("s") != large.econtext.getScalar("s")) {
+                throw new RuntimeException("Test failed: testScriptRunner buffer size " + small.report());
+            }
+            // A statement of 300 tokens, numbers after many identifiers
+            StringBuilder text = new StringBuilder("x=2\nt=");
+            for (int i = 0; i < 149; ++i) {
+                text.append("x+");
+            }
+            text.append("1\n");
+            java.nio.file.Files.write(script, text.toString().getBytes(StandardCharsets.US_ASCII));
+            ScriptRunner longer = new ScriptRunner(new ExecutionContext(), 16);
+            if (longer.run(script) != 299 || longer.statements != 2) {
+                throw new RuntimeException("Test failed: testScriptRunner long statement " + longer.report());
+            }
+        } finally {
+            java.nio.file.Files.delete(script);
+        }
+    }
+
+    void testTiered() throws Exception {
+        TieredEngine engine = new TieredEngine(3, 2);
+        ExecutionContext econtext = new ExecutionContext();
+        engine.execute("@defmap zz", econtext);
+        engine.execute("k=1", econtext);
+        double sum = 0;
+        for (int i = 0; i < 10; ++i) {
+            sum += engine.execute("zz[k]=(k=k+1)**2/2", econtext);
+        }
+        // k goes 2..11, so the sum is (4+9+...+121)/2
+        if (sum != 252.5 || engine.promotions != 1 || engine.compiledStatements().size() != 1
+                || engine.statement("zz[k]=(k=k+1)**2/2").tier() != 1) {
+            throw new RuntimeException("Test failed: testTiered promotion\n" + engine.stats());
+        }
+        // A missing key in compiled code gives the interpreter's error, which
+        // is the script's, so the statement stays compiled
+        for (int i = 0; i < 3; ++i) {
+            engine.execute("zz[k-9]", econtext);
+        }
+        engine.execute("k=100", econtext);
+        String error = null;
+        try {
+            engine.execute("zz[k-9]", econtext);
+        } catch (DCExecutionError exc) {
+            error = exc.getMessage();
+        }
+        if (!"Map element not found".equals(error) || engine.deopts != 0
+                || engine.statement("zz[k-9]").tier() != 1) {
+            throw new RuntimeException("Test failed: testTiered script error\n" + engine.stats());
+        }
+        // Any other exception from compiled code deoptimizes
+        TieredEngine.TieredStatement ts = engine.statement("zz[k-9]");
+        ts.last_compiled = c -> {
+            throw new IllegalStateException("broken code");
+        };
+        error = null;
+        try {
+            engine.execute("zz[k-9]", econtext);
+        } catch (IllegalStateException exc) {
+            error = exc.getMessage();
+        }
+        engine.execute("k=11", econtext);
+        double element = engine.execute("zz[k-9]", econtext);
+        if (m_verbose > 0) {
+            System.out.print(engine.stats());
+        }
+        if (!"broken code".equals(error) || engine.deopts != 1 || ts.tier() != 0
+                || element != econtext.getMap("zz").getOrFail(2)) {
+            throw new RuntimeException("Test failed: testTiered deopt\n" + engine.stats());
+        }
+        // Contexts with tables of their own take turns: each runs compiled
+        // code for its table once the statement is promoted
+        ExecutionContext[] contexts = {new ExecutionContext(), new ExecutionContext()};
+        contexts[1].symbols.intern("other");
+        int[] tiers = new int[2];
+        for (int i = 0; i < 8; ++i) {
+            ExecutionContext context = contexts[i % 2];
+            context.setScalar("a", i);
+            double result = engine.execute("b=a*2+1", context);
+            tiers[i % 2] = engine.statement("b=a*2+1").tier();
+            if (result != 2 * i + 1 || context.getScalar("b") != result) {
+                throw new RuntimeException("Test failed: testTiered contexts result=" + result);
+            }
+        }
+        if (tiers[0] != 1 || tiers[1] != 1 || engine.statement("b=a*2+1").compiled.size() != 2
+                || engine.statement("b=a*2+1").promotions != 1) {
+            throw new RuntimeException("Test failed: testTiered contexts\n" + engine.stats());
+        }
+    }
+
+    void testAst() throws Exception {
+        ExecutionContext econtext = new ExecutionContext();
+        AstNode.Root defmap = AstBuilder.build(makeParser("@defmap zz", true).statement());
+        AstNode.Root fill = AstBuilder.build(makeParser("zz[k]=k=k+1", true).statement());
+        AstNode.Root read = AstBuilder.build(makeParser("zz[3]*2+a", true).statement());
+        defmap.execute(econtext);
+        econtext.setScalar("k", 0);
+        econtext.setScalar("a", 1);
+        long rewrites0 = AstNode.rewrites;
+        for (int i = 0; i < 3; ++i) {
+            fill.execute(econtext);
+        }
+        double sum = 0;
+        // The map's arrays are replaced after zz[3] got cached
+        for (int i = 0; i < 97; ++i) {
+            fill.execute(econtext);
+            sum += read.execute(econtext);
+        }
+        // zz[k] and its index k, k twice more in fill; zz[3] and a in read
+        long rewrites = AstNode.rewrites - rewrites0;
+        AstNode.Mul mul = (AstNode.Mul) ((AstNode.Binary) read.body).left;
+        if (sum != 97 * 7 || rewrites != 6 || !(mul.left instanceof AstNode.ConstIndexed)
+                || ((AstNode.ConstIndexed) mul.left).cached_keys != econtext.getMap("zz").keys) {
+            throw new RuntimeException("Test failed: testAst sum=" + sum + " rewrites=" + rewrites);
+        }
+        // A new map with the same name must not be served from the cache
+        defmap.execute(econtext);
+        String error = null;
+        try {
+            read.execute(econtext);
+        } catch (DCExecutionError exc) {
+            error = exc.getMessage();
+        }
+        if (!"Map element not found".equals(error)) {
+            throw new RuntimeException("Test failed: testAst stale map cache, error=" + error);
+        }
+    }
+
+    // Batch results must equal row-by-row execution bit for bit.
+    void testBatch(BatchKernels kernels) throws Exception {
+        int rows = 2 * BatchEvaluator.CHUNK + 37;
+        java.util.Random random = new java.util.Random(13);
+        double[] specials = {Double.NaN, -0.0, 0.0, Double.POSITIVE_INFINITY, 1e308};
+        Map<String, double[]> columns = new LinkedHashMap<>();
+        for (String name : new String[]{"a", "b", "c"}) {
+            double[] column = new double[rows];
+            for (int i = 0; i < rows; ++i) {
+                column[i] = (random.nextInt(10) == 0) ? specials[random.nextInt(specials.length)]
+                        : random.nextInt(21) - 10 + random.nextDouble();
+            }
+            columns.put(name, column);
+        }
+        String[] exprs = {"a*b + c**2", "(d=a*2)+d*b-d", "a+never", "-a/b**-c", "(a=b)+a*(a=c)+a", "7"};
+        for (String expr : exprs) {
+            BatchEvaluator batch = new BatchEvaluator(expr, kernels);
+            double[] result = batch.evaluate(columns, rows);
+            CompiledStatement cs = StatementCompiler.compile(makeParser(expr, true).statement());
+            for (int i = 0; i < rows; ++i) {
+                ExecutionContext econtext = new ExecutionContext();
+                for (Map.Entry<String, double[]> column : columns.entrySet()) {
+                    econtext.setScalar(column.getKey(), column.getValue()[i]);
+                }
+                double expected = cs.execute(econtext);
+                boolean same = Double.doubleToLongBits(result[i]) == Double.doubleToLongBits(expected);
+                for (Map.Entry<String, double[]> column : batch.assigned.entrySet()) {
+                    same = same && Double.doubleToLongBits(column.getValue()[i])
+                            == Double.doubleToLongBits(econtext.getScalar(column.getKey()));
+                }
+                if (!same) {
+                    String et = String.format("Test failed: testBatch expr=<%s> kernels=%s row=%d expected=%s result=%s",
+                            expr, kernels.name(), i, expected, result[i]);
+                    throw new RuntimeException(et);
+                }
+            }
+        }
+        boolean failed = false;
+        try {
+            new BatchEvaluator("zz[1]+a", kernels);
+        } catch (IllegalArgumentException exc) {
+            failed = true;
+        }
+        if (!failed) {
+            throw new RuntimeException("Test failed: testBatch accepted a map expression");
+        }
+    }
+
+    void testParallel() throws Exception {
+        List<ParallelExecutor.Job> jobs = new ArrayList<>();
+        for (int j = 0; j < 200; ++j) {
+            CharSequence[] script = {"@defmap zz", "a=" + j, "zz[a]=a*2", "b=zz[" + j + "]+1"};
+            if (j == 17) {
+                script[3] = "zz[1]";
+            }
+            jobs.add(new ParallelExecutor.Job(script, new ExecutionContext()));
+        }
+        for (boolean private_dfa : new boolean[]{false, true}) {
+            ParallelExecutor executor = new ParallelExecutor(4, private_dfa);
+            executor.runAll(jobs);
+            if (m_verbose > 0) {
+                System.out.println("testParallel: " + executor.contention());
+            }
+            for (int j = 0; j < jobs.size(); ++j) {
+                ParallelExecutor.Job job = jobs.get(j);
+                boolean ok = (j == 17)
+                        ? job.error instanceof DCExecutionError
+                        : job.error == null && job.result == 2 * j + 1 && job.econtext.getScalar("b") == 2 * j + 1;
+                if (!ok) {
+                    throw new RuntimeException("Test failed: testParallel job " + j + " error=" + job.error);
+                }
+                jobs.set(j, new ParallelExecutor.Job(job.script, new ExecutionContext()));
+            }
+        }
+    }
+
+    void testConcurrentContext() throws Exception {
+        // Checks per-thread sums and the map size itself
+        ConcurrentContextBench.run(new ConcurrentExecutionContext(new SymbolTable()), false, 4, 5000);
+        ConcurrentExecutionContext econtext = new ConcurrentExecutionContext();
+        CompiledStatement increment = StatementCompiler.compile(makeParser("c=c+1", true).statement());
+        econtext.setScalar("c", 0);
+        int slot = econtext.symbols.intern("d");
+        econtext.storeScalar(slot, 0);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < 2000; ++i) {
+                    econtext.executeExclusive(increment);
+                    econtext.addScalar(slot, 1);
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (econtext.getScalar("c") != 8000 || econtext.getScalar("d") != 8000) {
+            throw new RuntimeException("Test failed: testConcurrentContext c=" + econtext.getScalar("c")
+                    + " d=" + econtext.getScalar("d"));
+        }
+        // Slots far past the first chunk directory
+        int far = 4096 * ConcurrentExecutionContext.CHUNK_SIZE + 5;
+        econtext.storeScalar(far, 2.5);
+        econtext.setMap(far + 1, new DoubleDoubleMap(8));
+        if (econtext.loadScalar(far) != 2.5 || econtext.mapAt(far + 1) == null || econtext.mapAt(far) != null
+                || !Double.isNaN(econtext.loadScalar(far + 1)) || econtext.getScalar("d") != 8000) {
+            throw new RuntimeException("Test failed: testConcurrentContext far slots");
+        }
+        // All engines work on it like on a plain context, and on contexts
+        // with symbol tables of their own, in which the names have other slots
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            SymbolTable other = new SymbolTable();
+            other.intern("mm");
+            other.intern("zz");
+            ExecutionContext[] contexts = {new ConcurrentExecutionContext(), new ExecutionContext(other)};
+            for (ExecutionContext context : contexts) {
+                for (String line : new String[]{"@defmap yx", "yx[1]=50", "yx[2]=yx[3]=4", "mm=8"}) {
+                    entry.getValue().runLine(line, context, false);
+                }
+            }
+            for (ExecutionContext context : contexts) {
+                Double result = entry.getValue().runLine("yx[1]*mm + yx[2]/yx[3]", context, false);
+                if (result != 401 || !Double.isNaN(context.getScalar("zz"))) {
+                    throw new RuntimeException("Test failed: testConcurrentContext engine=" + entry.getKey()
+                            + " context=" + context.getClass().getName());
+                }
+            }
+        }
+        // A compiled statement runs against contexts of other tables in turn
+        ExecutionContext first = new ExecutionContext();
+        ExecutionContext second = new ExecutionContext();
+        second.symbols.intern("zz");
+        first.setScalar("c", 1);
+        second.setScalar("c", 10);
+        for (int i = 0; i < 3; ++i) {
+            increment.execute(first);
+            increment.execute(second);
+        }
+        if (first.getScalar("c") != 4 || second.getScalar("c") != 13 || first.symbols.lookup("zz") >= 0) {
+            throw new RuntimeException("Test failed: testConcurrentContext relinked c=" + first.getScalar("c")
+                    + "," + second.getScalar("c"));
+        }
+    }
+
+    void testCheckpoint() throws Exception {
+        ExecutionContext econtext = new ExecutionContext(new SymbolTable());
+        econtext.setScalar("a", 5);
+        econtext.setScalar("negzero", -0.0);
+        econtext.setScalar("unset", Double.NaN);
+        econtext.createMap("zz");
+        econtext.createMap("empty");
+        DoubleDoubleMap zz = econtext.getMap("zz");
+        for (int i = 0; i < 10000; ++i) {
+            zz.put(i * 0.5, i);
+        }
+        zz.put(-0.0, -1);
+        zz.put(Double.NaN, 7);
+        zz.put(Double.NEGATIVE_INFINITY, Double.NaN);
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("gr04checkpoint", ".bin");
+        try {
+            Checkpoint.write(econtext, file);
+            // Another SymbolTable with other slots, and windows far smaller than the file
+            SymbolTable other = new SymbolTable();
+            other.intern("b");
+            other.intern("zz");
+            ExecutionContext[] targets = {
+                Checkpoint.restore(file),
+                new ExecutionContext(other),
+                new ConcurrentExecutionContext(new SymbolTable()),
+            };
+            Checkpoint.restore(file, targets[1], 64);
+            Checkpoint.restore(file, targets[2], 1000);
+            for (ExecutionContext target : targets) {
+                DoubleDoubleMap restored = target.getMap("zz");
+                boolean ok = target.getScalar("a") == 5
+                        && Double.doubleToRawLongBits(target.getScalar("negzero")) == Double.doubleToRawLongBits(-0.0)
+                        && target.symbols.lookup("unset") < 0
+                        && restored != null && restored.size() == zz.size()
+                        && target.getMap("empty").size() == 0
+                        && restored.getOrFail(0.0) == 0 && restored.getOrFail(-0.0) == -1
+                        && restored.getOrFail(Double.NaN) == 7
+                        && Double.isNaN(restored.getOrFail(Double.NEGATIVE_INFINITY));
+                for (int i = 0; ok && i < 10000; ++i) {
+                    ok = restored.getOrFail(i * 0.5) == i;
+                }
+                if (!ok) {
+                    throw new RuntimeException("Test failed: testCheckpoint " + target.getClass().getName());
+                }
+            }
+            // Truncated file
+            java.nio.channels.FileChannel.open(file, java.nio.file.StandardOpenOption.WRITE).truncate(1000).close();
+            boolean failed = false;
+            try {
+                Checkpoint.restore(file);
+            } catch (java.io.EOFException exc) {
+                failed = true;
+            }
+            if (!failed) {
+                throw new RuntimeException("Test failed: testCheckpoint truncated file restored");
+            }
+        } finally {
+            java.nio.file.Files.delete(file);
+        }
+    }
+
+    void testOffHeap() throws Exception {
+        // Small pages so that the table spans many of them
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("gr04offheap", ".bin");
+        try {
+            OffHeapDoubleDoubleMap themap = new OffHeapDoubleDoubleMap(file, 0, 4);
+            for (int i = 1; i <= 100000; ++i) {
+                themap.put(i * 3, -i);
+            }
+            themap.put(0.0, 1);
+            themap.put(-0.0, 2);
+            themap.put(Double.NaN, 3);
+            themap.put(3, 33);
+            themap.flush();
+            for (OffHeapDoubleDoubleMap m : new OffHeapDoubleDoubleMap[]{themap, OffHeapDoubleDoubleMap.open(file)}) {
+                int[] count = {0};
+                m.forEach((key, value) -> ++count[0]);
+                boolean ok = m.size() == 100003 && count[0] == 100003
+                        && m.getOrFail(0.0) == 1 && m.getOrFail(-0.0) == 2 && m.getOrFail(Double.NaN) == 3
+                        && m.getOrFail(3) == 33 && m.getOrFail(300000) == -100000
+                        && !m.containsKey(1) && m.containsKey(6);
+                if (!ok) {
+                    throw new RuntimeException("Test failed: testOffHeap map size=" + m.size());
+                }
+            }
+            // Growing unmaps the old table at once, close() the current one
+            java.nio.file.Path proc_maps = java.nio.file.Paths.get("/proc/self/maps");
+            if (java.nio.file.Files.isReadable(proc_maps)) {
+                java.nio.file.Path grown_file = java.nio.file.Files.createTempFile("gr04grow", ".bin");
+                String grown_name = grown_file.getFileName().toString();
+                try {
+                    OffHeapDoubleDoubleMap grown = new OffHeapDoubleDoubleMap(grown_file, 0, 4);
+                    for (int i = 0; i < 20000; ++i) {
+                        grown.put(i, i);
+                    }
+                    long mapped = java.nio.file.Files.readAllLines(proc_maps).stream()
+                            .filter(line -> line.contains(grown_name)).count();
+                    int pages = grown.pages.length;
+                    grown.close();
+                    long closed = java.nio.file.Files.readAllLines(proc_maps).stream()
+                            .filter(line -> line.contains(grown_name)).count();
+                    boolean rejected = false;
+                    try {
+                        grown.containsKey(1);
+                    } catch (NullPointerException exc) {
+                        rejected = true;
+                    }
+                    OffHeapDoubleDoubleMap reopened = OffHeapDoubleDoubleMap.open(grown_file);
+                    boolean kept = reopened.size() == 20000 && reopened.getOrFail(19999) == 19999;
+                    reopened.close();
+                    if (mapped < 1 || mapped > pages + 1 || closed != 0 || !rejected || !kept) {
+                        throw new RuntimeException(String.format("Test failed: testOffHeap mappings %d of %d pages,"
+                                + " %d after close", mapped, pages, closed));
+                    }
+                } finally {
+                    java.nio.file.Files.deleteIfExists(grown_file);
+                }
+            }
+            // Kept between contexts through the file
+            ExecutionContext econtext = new ExecutionContext();
+            econtext.attachMap("pp", file);
+            engines.get("compiled").runLine("pp[7]=pp[3]+1", econtext, true);
+            ((OffHeapDoubleDoubleMap) econtext.getMap("pp")).flush();
+            ExecutionContext later = new ExecutionContext();
+            later.attachMap("pp", file);
+            if (engines.get("visitor").runLine("pp[7]*pp[-0]", later, true) != 68) {
+                throw new RuntimeException("Test failed: testOffHeap attached map");
+            }
+        } finally {
+            java.nio.file.Files.delete(file);
+        }
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            ExecutionContext econtext = new ExecutionContext();
+            econtext.offheap_maps = true;
+            for (String line : new String[]{"@defmap yx", "yx[1]=50", "yx[2]=yx[3]=4", "mm=8", "yx[0]=1", "yx[-0]=2"}) {
+                entry.getValue().runLine(line, econtext, false);
+            }
+            Double result = entry.getValue().runLine("yx[1]*mm + yx[2]/yx[3] + yx[0]*10 + yx[-0]", econtext, false);
+            if (result != 413 || !(econtext.getMap("yx") instanceof OffHeapDoubleDoubleMap)) {
+                throw new RuntimeException("Test failed: testOffHeap engine=" + entry.getKey());
+            }
+        }
+    }
+
+    // Maps over several chunks, in every kind of map storage
+    void testBulk() throws Exception {
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            ExecutionContext[] contexts = {new ExecutionContext(), new ConcurrentExecutionContext(), new ExecutionContext()};
+            contexts[2].offheap_maps = true;
+            for (ExecutionContext econtext : contexts) {
+                Engine engine = entry.getValue();
+                engine.runLine("@defmap zz", econtext, true);
+                engine.runLine("@defmap yy", econtext, true);
+                DoubleDoubleMap zz = econtext.getMap("zz");
+                DoubleDoubleMap yy = econtext.getMap("yy");
+                for (int i = 0; i < 5000; ++i) {
+                    zz.put(i, i);
+                    yy.put(i, 2);
+                }
+                engine.runLine("k=3", econtext, true);
+                engine.runLine("zz[*]=zz[*]*yy[*]+k", econtext, true);
+                double sum = engine.runLine("sum(zz)", econtext, true);
+                double max = engine.runLine("max(zz)", econtext, true);
+                if (sum != 5000.0 * 4999 + 3 * 5000 || max != 2 * 4999 + 3 || zz.getOrFail(17) != 37) {
+                    throw new RuntimeException(String.format("Test failed: testBulk engine=%s context=%s sum=%s",
+                            entry.getKey(), econtext.getClass().getName(), sum));
+                }
+                // A missing element leaves every element and scalar as it was
+                engine.runLine("@defmap xx", econtext, true);
+                for (int i = 0; i < 4999; ++i) {
+                    econtext.getMap("xx").put(i, 1);
+                }
+                String error = null;
+                try {
+                    engine.runLine("zz[*]=k=zz[*]+xx[*]", econtext, true);
+                } catch (DCExecutionError exc) {
+                    error = exc.getMessage();
+                }
+                if (!"Map element not found".equals(error) || engine.runLine("sum(zz)", econtext, true) != sum
+                        || econtext.getScalar("k") != 3) {
+                    throw new RuntimeException(String.format("Test failed: testBulk missing engine=%s context=%s"
+                            + " error=%s", entry.getKey(), econtext.getClass().getName(), error));
+                }
+            }
+        }
+    }
+
+    // gr05 programs, each with and without hoisting
+    void testLoops() throws Exception {
+        Object[][] cases = {
+            {"s=0; for (i=1, 10) { for (j=1, i) { s=s+i*j; } } s;", 1705.0},
+            {"n=0; for (i=1, 0) { n=n+1; } n;", 0.0},
+            {"c=0; while (10-c) { c=c+1; } c*2;", 20.0},
+            {"while (unset_in_gr05) { ; } 7;", 7.0},
+            {"a=3; b=4; s=0; for (i=1, 1000) { s=s+(a*b+1)*i; t=-(a*b); } s+t;", 13.0 * 500500 - 12},
+            {"x=1; for (i=1, 3) { y=x*2; x=x+1; } y;", 6.0},
+            {"x=1; for (i=1, 3) { for (j=1, 2) { y=x*2+j; } x=x+1; } y;", 8.0},
+            {"for (i=1, 3) { i=i*10; k=i; } k;", 30.0},
+            {"@defmap m; for (i=0, 99) { m[i]=i*i; } for (k=1, 2) { m[*]=m[*]+k; } sum(m);", 328650.0},
+        };
+        for (boolean hoist : new boolean[]{false, true}) {
+            for (Object[] c : cases) {
+                ExecutionContext econtext = new ExecutionContext();
+                Gr05Compiler compiler = new Gr05Compiler(econtext.symbols, hoist);
+                Gr05Program program = compiler.compileProgram(Gr05Program.parse((String) c[0]));
+                double result = program.execute(econtext);
+                if (result != (Double) c[1] || (!hoist && compiler.hoisted_count != 0)) {
+                    throw new RuntimeException(String.format("Test failed: testLoops %s hoist=%s result=%s",
+                            c[0], hoist, result));
+                }
+            }
+        }
+        // a*b+1 and -(a*b) once; x*2 only on each entry of the inner loop
+        Gr05Compiler compiler = new Gr05Compiler(new SymbolTable(), true);
+        compiler.compileProgram(Gr05Program.parse((String) cases[4][0]));
+        if (compiler.hoisted_count != 2) {
+            throw new RuntimeException("Test failed: testLoops hoisted " + compiler.hoisted_count);
+        }
+        compiler = new Gr05Compiler(new SymbolTable(), true);
+        Gr05Program.Step[] steps = compiler.compileProgram(Gr05Program.parse((String) cases[6][0])).steps;
+        if (compiler.hoisted_count != 1 || ((Gr05Program.Loop) steps[1]).hoisted.length != 0) {
+            throw new RuntimeException("Test failed: testLoops hoisted assigned scalar");
+        }
+        // An error leaves the loop; hidden scalars are unset again
+        ExecutionContext econtext = new ExecutionContext();
+        Gr05Program program = Gr05Program.compile(
+                "a=2; @defmap p; for (j=1, 5) { p[j]=j; } @defmap q; q[1]=0; for (i=1, 9) { q[i+1]=q[i]+a*a; z=p[i]; }",
+                econtext.symbols, true);
+        try {
+            program.execute(econtext);
+            throw new RuntimeException("Test failed: testLoops no error");
+        } catch (DCExecutionError exc) {
+            if (!exc.getMessage().equals("Map element not found") || econtext.getMap("q").getOrFail(7) != 24
+                    || !Double.isNaN(econtext.getScalar("%h0"))) {
+                throw new RuntimeException("Test failed: testLoops error " + exc.getMessage());
+            }
+        }
+        try {
+            Gr05Program.compile("for (i=1) { }");
+            throw new RuntimeException("Test failed: testLoops syntax");
+        } catch (org.antlr.v4.runtime.misc.ParseCancellationException exc) {
+            // expected
+        }
+        // Names in gr04, keywords in gr05
+        ExecutionContext names = new ExecutionContext();
+        runCompiled("while=for=3", names, true);
+        for (String text : new String[]{"while=1;", "x=for+1;"}) {
+            try {
+                Gr05Program.compile(text, names.symbols, true);
+                throw new RuntimeException("Test failed: testLoops keyword " + text);
+            } catch (org.antlr.v4.runtime.misc.ParseCancellationException exc) {
+                // expected
+            }
+        }
+        if (names.getScalar("while") != 3) {
+            throw new RuntimeException("Test failed: testLoops gr04 name while");
+        }
+    }
+
+    void testFolding() throws Exception {
+        Object[][] counts = {
+            // text, folded subtrees, sign chains, rule nodes removed
+            {"2**3**2", 1, 0, 15},
+            {"zxcv[(3-2)]", 1, 0, 20},
+            {"d=--a+-(3+4)*5", 1, 1, 24},
+            {"a=b", 0, 0, 0},
+        };
+        for (Object[] c : counts) {
+            ConstantFolder folder = new ConstantFolder();
+            folder.fold(makeParser((String) c[0], true).statement());
+            if (folder.folded != (Integer) c[1] || folder.chains != (Integer) c[2] || folder.removed != (Integer) c[3]) {
+                throw new RuntimeException(String.format("Test failed: testFolding <%s> folded %d chains %d removed %d",
+                        c[0], folder.folded, folder.chains, folder.removed));
+            }
+        }
+        testBlockScalar("fold -0", new String[]{"x=-(0*5)"}, "x", -0.0);
+        testBlockScalar("fold --0", new String[]{"x=--0"}, "x", 0.0);
+        testBlockScalar("fold -a", new String[]{"a=0", "x=-+-(-a)"}, "x", -0.0);
+        testBlockScalar("fold NaN", new String[]{"x=-(0/0)*2"}, "x", Double.NaN);
+        testBlockScalar("fold pow", new String[]{"x=-2**2"}, "x", 4);
+        // The index is taken before the assigned value is computed
+        testBlockScalar("fold chain index", new String[]{"@defmap m", "a=1", "m[--a]=(a=2)", "x=m[1]"}, "x", 2);
+        testBlockScalar("fold plus chain", new String[]{"a=1", "(++a)=5"}, "a", 5);
+        testBlockError("fold minus chain", new String[]{"a=1", "(--a)=5"}, "Not implemented: assignValue");
+    }
+
+    // The parser recurses once per nesting level, so deep statements are
+    // parsed on a thread with a large stack; StackEvaluator needs none.
+    ParseTree parseDeep(String expr_line) throws Exception {
+        ParseTree[] tree = new ParseTree[1];
+        Thread parsing = new Thread(null, () -> {
+            try {
+                tree[0] = makeParser(expr_line, true).statement();
+            } catch (Exception exc) {
+                throw new RuntimeException(exc);
+            }
+        }, "parseDeep", 1L << 30);
+        parsing.start();
+        parsing.join();
+        return tree[0];
+    }
+
+    void testDeep() throws Exception {
+        int n = 100000;
+        StringBuilder sum = new StringBuilder("s=a");
+        StringBuilder pow = new StringBuilder("p=");
+        StringBuilder parens = new StringBuilder("q=");
+        for (int i = 0; i < n; ++i) {
+            sum.append("+a");
+            pow.append("a**");
+        }
+        pow.append("2");
+        for (int i = 0; i < 1000; ++i) {
+            parens.append("(-m[");
+        }
+        parens.append("a");
+        for (int i = 0; i < 1000; ++i) {
+            parens.append("])");
+        }
+        ExecutionContext econtext = new ExecutionContext();
+        StackEvaluator evaluator = new StackEvaluator(econtext);
+        evaluator.evaluate(parseDeep("a=1"));
+        evaluator.evaluate(parseDeep("@defmap m"));
+        evaluator.evaluate(parseDeep("m[1]=-1"));
+        evaluator.evaluate(parseDeep("m[-1]=1"));
+        double[] expected = {n + 1, 1, 1};
+        StringBuilder[] texts = {sum, pow, parens};
+        for (int i = 0; i < texts.length; ++i) {
+            double result = evaluator.evaluateValue(parseDeep(texts[i].toString()));
+            if (result != expected[i]) {
+                throw new RuntimeException(String.format("Test failed: testDeep <%.20s...> result=%s", texts[i], result));
+            }
+        }
+        // The work stack keeps no tree, also after an error
+        try {
+            evaluator.evaluate(parseDeep(parens.toString().replace("m[a]", "m[a+1]")));
+            throw new RuntimeException("Test failed: testDeep no error");
+        } catch (DCExecutionError exc) {
+            // expected
+        }
+        for (ParserRuleContext node : evaluator.nodes) {
+            if (node != null) {
+                throw new RuntimeException("Test failed: testDeep work stack keeps " + node.getClass().getName());
+            }
+        }
+    }
+
+    // A long statement without its tree; a statement runs as far as it is
+    // parsed, so an assignment before a syntax error is done.
+    void testTreeless() throws Exception {
+        int n = 1000000;
+        StringBuilder sum = new StringBuilder("s=a");
+        for (int i = 0; i < n; ++i) {
+            sum.append(i % 2 == 0 ? "-a*2" : "+a*3");
+        }
+        ExecutionContext econtext = new ExecutionContext();
+        TreelessEvaluator evaluator = new TreelessEvaluator(econtext);
+        evaluator.evaluate("a=2");
+        double result = evaluator.evaluateValue(sum.toString());
+        if (result != n + 2 || econtext.getScalar("s") != result || evaluator.svs.length != 64) {
+            throw new RuntimeException(String.format("Test failed: testTreeless sum result=%s stack=%d",
+                    result, evaluator.svs.length));
+        }
+        String error = null;
+        try {
+            evaluator.evaluate("b=(a=5)+");
+        } catch (RuntimeException exc) {
+            error = exc.getClass().getSimpleName();
+        }
+        if (!"ParseCancellationException".equals(error) || econtext.getScalar("a") != 5) {
+            throw new RuntimeException("Test failed: testTreeless syntax error " + error);
+        }
+        // A StackOverflowError unwinds through the rules without their
+        // operands, and must come out as it is, without assigning s
+        StringBuilder deep = new StringBuilder("s=");
+        for (int i = 0; i < 3000; ++i) {
+            deep.append('(');
+        }
+        deep.append('1');
+        for (int i = 0; i < 3000; ++i) {
+            deep.append(')');
+        }
+        Throwable[] thrown = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                evaluator.evaluate(deep.toString());
+            } catch (Throwable exc) {
+                thrown[0] = exc;
+            }
+        }, "testTreeless", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (!(thrown[0] instanceof StackOverflowError) || econtext.getScalar("s") != n + 2
+                || evaluator.evaluateValue("s=a+1") != 6) {
+            throw new RuntimeException("Test failed: testTreeless deep nesting " + thrown[0]);
+        }
+    }
+
+    // After each update the engine must agree with a full run from scratch.
+    void checkIncremental(String test_name, IncrementalEngine engine, String[] script, double[][] inputs,
+            int executed) {
+        IncrementalEngine full = new IncrementalEngine(script);
+        for (double[] input : inputs) {
+            full.setInput("x" + (int) input[0], input[1]);
+        }
+        full.run();
+        StringBuilder state = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < script.length; ++i) {
+            state.append(engine.statements[i].result).append(' ');
+            expected.append(full.statements[i].result).append(' ');
+        }
+        for (String name : new String[]{"k", "s", "t", "z", "a", "q"}) {
+            state.append(name).append('=').append(engine.context().getScalar(name)).append(' ');
+            expected.append(name).append('=').append(full.context().getScalar(name)).append(' ');
+        }
+        for (double index = -1; index <= 2; ++index) {
+            DoubleDoubleMap themap = engine.context().getMap("m");
+            DoubleDoubleMap fullmap = full.context().getMap("m");
+            state.append(themap.containsKey(index) ? themap.getOrFail(index) : "-").append(' ');
+            expected.append(fullmap.containsKey(index) ? fullmap.getOrFail(index) : "-").append(' ');
+        }
+        if (m_verbose > 0) {
+            System.out.printf("testIncremental(<%s>): %s; %s\n", test_name, state, engine.stats());
+        }
+        if (!state.toString().equals(expected.toString()) || (executed >= 0 && engine.executed != executed)) {
+            throw new RuntimeException(String.format("Test failed: testIncremental <%s> state=%s expected=%s %s",
+                    test_name, state, expected, engine.stats()));
+        }
+    }
+
+    void testIncremental() throws Exception {
+        String[] script = {"@defmap m", "k=x1", "m[k]=x2*2", "m[1-k]=3", "s=m[0]+m[1]", "s=s+x1", "z=x3+1",
+                "t=m[k]"};
+        IncrementalEngine engine = new IncrementalEngine(script);
+        double[][] inputs = {{1, 0}, {2, 5}, {3, 7}};
+        for (double[] input : inputs) {
+            engine.setInput("x" + (int) input[0], input[1]);
+        }
+        engine.run();
+        checkIncremental("initial", engine, script, inputs, script.length);
+        // The cell written by m[k] moves, s is read both before and after
+        // it is written again; z does not depend on x1
+        inputs[0][1] = 1;
+        engine.setInput("x1", 1);
+        engine.update();
+        checkIncremental("x1=1", engine, script, inputs, 6);
+        engine.setInput("x2", 5);
+        engine.update();
+        checkIncremental("x2 unchanged", engine, script, inputs, 0);
+        inputs[1][1] = 0.5;
+        engine.setInput("x2", 0.5);
+        engine.update();
+        checkIncremental("x2=0.5", engine, script, inputs, 4);
+        inputs[2][1] = -1;
+        engine.setInput("x3", -1);
+        engine.update();
+        checkIncremental("x3=-1", engine, script, inputs, 1);
+        // m[5] is never written: the error of a full run, then a full run
+        engine.setInput("x1", 5);
+        String error = null;
+        try {
+            engine.update();
+        } catch (DCExecutionError exc) {
+            error = exc.getMessage();
+        }
+        if (!"Map element not found".equals(error)) {
+            throw new RuntimeException("Test failed: testIncremental error=" + error);
+        }
+        inputs[0][1] = 0;
+        engine.setInput("x1", 0);
+        engine.update();
+        checkIncremental("after error", engine, script, inputs, script.length);
+        if (engine.replays != 4 || engine.full_runs != 2) {
+            throw new RuntimeException("Test failed: testIncremental " + engine.stats());
+        }
+        // A change reaching sum(m) falls back to a full run
+        String[] reducing = Arrays.copyOf(script, script.length + 1);
+        reducing[script.length] = "z=sum(m)";
+        engine = new IncrementalEngine(reducing);
+        for (double[] input : inputs) {
+            engine.setInput("x" + (int) input[0], input[1]);
+        }
+        engine.run();
+        inputs[1][1] = 9;
+        engine.setInput("x2", 9);
+        engine.update();
+        checkIncremental("sum", engine, reducing, inputs, reducing.length);
+        if (engine.fallbacks != 1 || engine.result() != 21) {
+            throw new RuntimeException("Test failed: testIncremental sum " + engine.stats());
+        }
+        // A full run after an error reads fewer keys than the run before;
+        // the key arrays of a statement must not keep the stale ones
+        String[] shrinking = {"@defmap m", "m[0]=5", "m[1]=6", "a=m[x1]+m[0]", "q=m[x2]"};
+        engine = new IncrementalEngine(shrinking);
+        double[][] shrinking_inputs = {{1, 1}, {2, 0}};
+        engine.setInput("x1", 1);
+        engine.setInput("x2", 0);
+        engine.run();
+        engine.setInput("x2", 7);
+        error = null;
+        try {
+            engine.update();
+        } catch (DCExecutionError exc) {
+            error = exc.getMessage();
+        }
+        if (!"Map element not found".equals(error)) {
+            throw new RuntimeException("Test failed: testIncremental shrinking error=" + error);
+        }
+        shrinking_inputs[0][1] = 0;
+        engine.setInput("x1", 0);
+        engine.setInput("x2", 0);
+        engine.update();
+        checkIncremental("shrinking", engine, shrinking, shrinking_inputs, -1);
+        shrinking_inputs[0][1] = 1;
+        engine.setInput("x1", 1);
+        engine.update();
+        checkIncremental("shrinking update", engine, shrinking, shrinking_inputs, -1);
+    }
+
+    // Contents through every accessor, against a plain hashed map
+    static boolean sameMap(DoubleDoubleMap themap, DoubleDoubleMap reference) {
+        Map<Double, Double> entries = new HashMap<>();
+        Map<Double, Double> reference_entries = new HashMap<>();
+        themap.forEach(entries::put);
+        reference.forEach(reference_entries::put);
+        for (Map.Entry<Double, Double> entry : reference_entries.entrySet()) {
+            if (!themap.containsKey(entry.getKey()) || Double.doubleToLongBits(themap.getOrFail(entry.getKey()))
+                    != Double.doubleToLongBits(entry.getValue())) {
+                return false;
+            }
+        }
+        return entries.equals(reference_entries) && themap.size() == reference.size()
+                && Double.compare(themap.reduce(DoubleDoubleMap.MIN), reference.reduce(DoubleDoubleMap.MIN)) == 0
+                && Double.compare(themap.reduce(DoubleDoubleMap.MAX), reference.reduce(DoubleDoubleMap.MAX)) == 0;
+    }
+
+    void testAdaptiveMap() throws Exception {
+        // Consecutive keys, upwards and downwards, stay dense
+        AdaptiveDoubleDoubleMap dense = new AdaptiveDoubleDoubleMap();
+        DoubleDoubleMap reference = new DoubleDoubleMap();
+        for (int i = 0; i < 1000; ++i) {
+            dense.put(500 + i, i);
+            reference.put(500 + i, i);
+            dense.put(499 - i, -i);
+            reference.put(499 - i, -i);
+        }
+        dense.put(7, 0.25);
+        reference.put(7, 0.25);
+        if (!dense.dense || !sameMap(dense, reference) || dense.containsKey(-0.0) || dense.containsKey(1.5)
+                || dense.containsKey(Double.NaN) || dense.containsKey(1500) || dense.containsKey(1e10)) {
+            throw new RuntimeException("Test failed: testAdaptiveMap dense size=" + dense.size());
+        }
+        dense.updateValues((keys, values, n) -> {
+            for (int j = 0; j < n; ++j) {
+                values[j] = keys[j] * 2;
+            }
+        });
+        reference.updateValues((keys, values, n) -> {
+            for (int j = 0; j < n; ++j) {
+                values[j] = keys[j] * 2;
+            }
+        });
+        if (!dense.dense || !sameMap(dense, reference) || dense.reduce(DoubleDoubleMap.SUM) != 999 * 2000) {
+            throw new RuntimeException("Test failed: testAdaptiveMap dense updateValues");
+        }
+        // Every fifth key: the window outgrows MIN_WINDOW at key 65, 13 entries in
+        long sparse0 = AdaptiveDoubleDoubleMap.sparse_migrations.sum();
+        AdaptiveDoubleDoubleMap sparse = new AdaptiveDoubleDoubleMap();
+        reference = new DoubleDoubleMap();
+        for (int i = 0; i < 100; ++i) {
+            sparse.put(i * 5, i);
+            reference.put(i * 5, i);
+        }
+        if (sparse.dense || sparse.migrated_size != 13 || !sameMap(sparse, reference)
+                || AdaptiveDoubleDoubleMap.sparse_migrations.sum() != sparse0 + 1) {
+            throw new RuntimeException("Test failed: testAdaptiveMap sparse migrated at " + sparse.migrated_size);
+        }
+        // Keys which are not integers: -0.0 and 0.0 stay distinct, NaN is one key
+        for (double odd : new double[]{0.5, -0.0, Double.NaN, 1e10}) {
+            AdaptiveDoubleDoubleMap fractional = new AdaptiveDoubleDoubleMap();
+            reference = new DoubleDoubleMap();
+            double[] keys = {0, 1, 2, odd, 3, 0.0 / 0.0, -0.0, 0};
+            for (int i = 0; i < keys.length; ++i) {
+                fractional.put(keys[i], i);
+                reference.put(keys[i], i);
+            }
+            if (fractional.dense || fractional.migrated_size != 3 || !sameMap(fractional, reference)) {
+                throw new RuntimeException("Test failed: testAdaptiveMap key " + odd + " size=" + fractional.size());
+            }
+        }
+        // Random keys from a range of densities
+        java.util.Random random = new java.util.Random(29);
+        for (int round = 0; round < 200; ++round) {
+            AdaptiveDoubleDoubleMap themap = new AdaptiveDoubleDoubleMap(random.nextInt(100));
+            reference = new DoubleDoubleMap();
+            int range = 1 << random.nextInt(12);
+            int offset = random.nextInt(2000) - 1000;
+            for (int i = random.nextInt(300); i > 0; --i) {
+                double key = offset + random.nextInt(range) + ((random.nextInt(500) == 0) ? 0.5 : 0);
+                themap.put(key, i);
+                reference.put(key, i);
+            }
+            if (!sameMap(themap, reference)) {
+                throw new RuntimeException("Test failed: testAdaptiveMap round " + round);
+            }
+        }
+        // @defmap maps, through every engine; zz[-0] migrates zz
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            ExecutionContext econtext = new ExecutionContext();
+            for (String line : new String[]{"@defmap zz", "zz[1]=50", "zz[2]=zz[3]=4", "zz[0]=1", "zz[-0]=2"}) {
+                entry.getValue().runLine(line, econtext, false);
+            }
+            AdaptiveDoubleDoubleMap zz = (AdaptiveDoubleDoubleMap) econtext.getMap("zz");
+            Double result = entry.getValue().runLine("zz[1]*8 + zz[2]/zz[3] + zz[0]*10 + zz[-0]", econtext, false);
+            entry.getValue().runLine("zz[1/2]=zz[1]", econtext, false);
+            if (result != 413 || zz.migrated_size != 4 || zz.getOrFail(0.5) != 50 || zz.getOrFail(3) != 4) {
+                throw new RuntimeException("Test failed: testAdaptiveMap engine=" + entry.getKey());
+            }
+        }
+    }
+
+    // Scalars bit for bit and map contents, slot by slot
+    static boolean sameContext(ExecutionContext econtext, ExecutionContext reference) {
+        for (int slot = 0; slot < reference.symbols.size(); ++slot) {
+            DoubleDoubleMap themap = econtext.mapAt(slot);
+            DoubleDoubleMap refmap = reference.mapAt(slot);
+            if (Double.doubleToLongBits(econtext.loadScalar(slot)) != Double.doubleToLongBits(reference.loadScalar(slot))
+                    || (themap == null) != (refmap == null) || (themap != null && !sameMap(themap, refmap))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static final String[] DAG_STATEMENTS = {
+        "@defmap m", "@defmap n", "a=b+1", "b=(c=a*2)-d", "d=d+c", "m[%d]=a", "n[%d]=b+c", "m[a-b]=c", "n[d]=n[%d]+1",
+        "a=m[%d]+n[b]", "c=m[%d]*2", "m[*]=m[*]+a", "n[*]=m[*]*2", "d=sum(m)", "b=min(n)", "c=count(m)+a", "a+b"
+    };
+
+    void testDag() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // c waits for a=1 and b=2; a=5 for its reader c, and so for a=1
+            DagExecutor executor = new DagExecutor(new String[]{"a=1", "b=2", "c=a+b", "a=5", "d=c"});
+            ExecutionContext econtext = new ExecutionContext(executor.symbols);
+            if (executor.run(econtext, pool) != 3 || executor.depth != 3 || executor.edges != 4
+                    || executor.roots.length != 2 || econtext.getScalar("a") != 5 || executor.may_fail) {
+                throw new RuntimeException("Test failed: testDag " + executor.stats());
+            }
+            // Statements after a failing one are undone
+            executor = new DagExecutor(new String[]{"@defmap m", "a=1", "m[2]=a", "b=m[5]", "c=2", "m[3]=c"});
+            econtext = new ExecutionContext(executor.symbols);
+            econtext.setScalar("c", 7);
+            String error = null;
+            try {
+                executor.run(econtext, pool);
+            } catch (DCExecutionError exc) {
+                error = exc.getMessage();
+            }
+            if (!"Map element not found".equals(error) || econtext.getScalar("c") != 7 || econtext.getMap("m").size() != 1
+                    || executor.sequential_reruns != 1) {
+                throw new RuntimeException("Test failed: testDag error=" + error + " " + executor.stats());
+            }
+            // Rolled back through the slot accessors of a context which
+            // keeps its own storage
+            executor = new DagExecutor(new String[]{"a=a+1", "@defmap m", "b=m[a]"});
+            ExecutionContext[] rollback = {new ExecutionContext(executor.symbols),
+                new ConcurrentExecutionContext(executor.symbols)};
+            for (ExecutionContext context : rollback) {
+                context.setScalar("a", 10);
+                error = null;
+                try {
+                    executor.run(context, pool);
+                } catch (DCExecutionError exc) {
+                    error = exc.getMessage();
+                }
+                if (!"Map element not found".equals(error) || context.getScalar("a") != 11
+                        || context.getMap("m").size() != 0) {
+                    throw new RuntimeException("Test failed: testDag rollback " + context.getClass().getName()
+                            + " a=" + context.getScalar("a"));
+                }
+            }
+            // Rolled back into an attached map, which keeps its file
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("gr04dag", ".bin");
+            try {
+                executor = new DagExecutor(new String[]{"pp[2]=6", "pp[1]=5", "b=pp[9]", "pp[3]=7"});
+                econtext = new ExecutionContext(executor.symbols);
+                econtext.attachMap("pp", file);
+                DoubleDoubleMap attached = econtext.getMap("pp");
+                attached.put(1, 1);
+                error = null;
+                try {
+                    executor.run(econtext, pool);
+                } catch (DCExecutionError exc) {
+                    error = exc.getMessage();
+                }
+                ((OffHeapDoubleDoubleMap) attached).close();
+                ExecutionContext later = new ExecutionContext();
+                later.attachMap("pp", file);
+                DoubleDoubleMap reopened = later.getMap("pp");
+                if (!"Map element not found".equals(error) || econtext.getMap("pp") != attached
+                        || reopened.size() != 2 || reopened.getOrFail(1) != 5 || reopened.getOrFail(2) != 6) {
+                    throw new RuntimeException("Test failed: testDag attached rollback error=" + error
+                            + " size=" + reopened.size());
+                }
+                ((OffHeapDoubleDoubleMap) reopened).close();
+            } finally {
+                java.nio.file.Files.delete(file);
+            }
+            // Random scripts against sequential execution, with maps made
+            // before the script, stored into and replaced by it
+            java.util.Random random = new java.util.Random(41);
+            for (int round = 0; round < 300; ++round) {
+                String[] script = new String[1 + random.nextInt(40)];
+                for (int i = 0; i < script.length; ++i) {
+                    script[i] = String.format(DAG_STATEMENTS[random.nextInt(DAG_STATEMENTS.length)], random.nextInt(4));
+                }
+                executor = new DagExecutor(script);
+                ExecutionContext[] contexts = {new ExecutionContext(executor.symbols), new ExecutionContext(executor.symbols)};
+                double[] results = new double[2];
+                String[] errors = new String[2];
+                for (int c = 0; c < 2; ++c) {
+                    contexts[c].setScalar("a", 1);
+                    contexts[c].setScalar("b", 2);
+                    if (round % 2 == 0) {
+                        contexts[c].createMap("m");
+                        for (int key = 0; key < 4; ++key) {
+                            contexts[c].getMap("m").put(key, key * 10);
+                        }
+                    }
+                    try {
+                        results[c] = (c == 0) ? executor.runSequential(contexts[c]) : executor.run(contexts[c], pool);
+                    } catch (DCExecutionError exc) {
+                        errors[c] = exc.getMessage();
+                    }
+                }
+                if (Double.doubleToLongBits(results[0]) != Double.doubleToLongBits(results[1])
+                        || !java.util.Objects.equals(errors[0], errors[1]) || !sameContext(contexts[1], contexts[0])) {
+                    throw new RuntimeException("Test failed: testDag round " + round + " "
+                            + Arrays.toString(script) + " error=" + errors[1]);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     void testExpression(String test_expr, double expected) throws Exception {
         testBlock(test_expr, new String[]{test_expr}, expected);
     }
 
     void testExpressionFail(String expr_text) throws Exception {
+        for (Map.Entry<String, Engine> entry : engines.entrySet()) {
+            testExpressionFail(entry.getKey(), entry.getValue(), expr_text);
+        }
+    }
+
+    void testExpressionFail(String engine_name, Engine engine, String expr_text) throws Exception {
         if (m_verbose > 0) {
-            System.out.printf("testExpressionFail(<%s>)\n", expr_text);
+            System.out.printf("testExpressionFail(<%s>, %s)\n", expr_text, engine_name);
         }
         boolean failed = false;
         try {
-            InputStream string_reading = new ByteArrayInputStream(expr_text.getBytes(StandardCharsets.UTF_8));
-            ANTLRInputStream input = new ANTLRInputStream(string_reading);
-            gr04Lexer lexer = new gr04Lexer(input);
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
-            gr04Parser parser = new gr04Parser(tokens);
-            if (m_verbose <= 0) {
-                parser.setErrorHandler(new BailErrorStrategy());
-                lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
-                parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
-            }
-            // What to call in parser is the starting rule.
-            ParseTree tree = parser.statement();
-            MyVisitor visitor = new MyVisitor();
-            visitor.verbose = m_verbose;
             ExecutionContext econtext = new ExecutionContext();
-            // NB visit() has no extra arguments
-            visitor.econtext = econtext;
-            Double result = visitor.visit(tree).getRValue(econtext);
+            Double result = engine.runLine(expr_text, econtext, true);
+            // NB a statement without value is a failure here
+            result = result.doubleValue();
             if (m_verbose > 0) {
                 System.out.println("Result: " + result);
             }
-            //failed = (result == null);
         } catch (RuntimeException exc) {
             // FIXME: narrow the exception set?
             failed = true;
@@ -86,7 +1519,8 @@ public class MyTest {
             }
         }
         if (!failed) {
-            String msg = String.format("testExpressionFail no exception: expr=<%s>", expr_text);
+            String msg = String.format("testExpressionFail no exception: expr=<%s> engine=%s",
+                    expr_text, engine_name);
             throw new RuntimeException(msg);
         }
     }
@@ -131,6 +1565,11 @@ public class MyTest {
         //- testExpressionFail("-((2+3)");
         //- testExpressionFail("-(2+3))");
         //- testExpressionFail("2* *2");
+        // The Pratt parser also rejects what gr04Parser.statement() leaves unparsed
+        testExpressionFail("pratt", engines.get("pratt"), "-(2+3))");
+        testExpressionFail("pratt", engines.get("pratt"), "a+b=3");
+        testExpressionFail("pratt", engines.get("pratt"), "2* *2");
+        testExpressionFail("bytes", engines.get("bytes"), "2$");
 
         // Test set - variables assignments and their usage
         testBlock("block1", new String[]{"a=1", "a"}, 1);
@@ -142,6 +1581,78 @@ public class MyTest {
         testBlock("block7", new String[]{"@defmap zxcv", "(zxcv[1])=255", "(zxcv[(3-2)]-2)"}, 253);
         testBlock("block8", new String[]{"@defmap yx", "yx[1]=50", "yx[2]=yx[3]=4",
                 "mm=8", "yx[1]*mm + yx[2]/yx[3]"}, 401);
+        // A plain identifier index is read after the assigned value is computed,
+        // a compound index is computed before it.
+        testBlock("block9", new String[]{"@defmap zz", "zz[a]=a=5", "zz[5]"}, 5);
+        testBlock("block10", new String[]{"@defmap zz", "a=1", "zz[a+0]=a=5", "zz[1]"}, 5);
+        testBlock("block11", new String[]{"@defmap zz", "@defmap yy", "yy[2]=3",
+                "zz[yy[1+1]]=7", "zz[3]+zz[yy[2]]"}, 14);
+        testBlock("block12", new String[]{"@defmap zz", "zz[u]=5", "zz[v]"}, 5);
+        testBlock("block13", new String[]{"@defmap zz", "zz[0]=1", "zz[-0]=2", "zz[0]*10+zz[-0]"}, 12);
+        String[] fill_block = new String[1002];
+        fill_block[0] = "@defmap zz";
+        for (int i = 1; i <= 1000; ++i) {
+            fill_block[i] = String.format("zz[%d/4]=%d", i, i * 2);
+        }
+        fill_block[1001] = "zz[777/4]+zz[1000/4]";
+        testBlock("block14", fill_block, 3554);
+        testBlockScalar("scalar1", new String[]{"a=b=5", "c=a*2"}, "c", 10);
+        testBlockScalar("scalar2", new String[]{"a=b=5", "c=a*2"}, "b", 5);
+        testBlockScalar("scalar3", new String[]{"a=1"}, "never_assigned", Double.NaN);
+        testBlockError("error1", new String[]{"qq[1]"}, "Map not found");
+        testBlockError("error2", new String[]{"@defmap qq", "qq[1]"}, "Map element not found");
+        testBlockError("error3", new String[]{"@defmap qq", "qq[1]=1", "qq[2]"}, "Map element not found");
+        testBlockError("error4", new String[]{"1=2"}, "Not implemented: assignValue");
+        testBlockError("error5", new String[]{"(c=d)=3"}, "Not implemented: assignValue");
+        testBlockError("error6", new String[]{"@defmap zz", "zz[qq[1]]=1"}, "Map not found");
+        testBlockError("error7", new String[]{"@defmap zz", "zz[0]=1", "zz[-0]"}, "Map element not found");
+        // Whole-map statements and reductions
+        testBlock("bulk1", new String[]{"@defmap zz", "zz[1]=1", "zz[2]=2", "zz[3]=3", "k=10",
+                "zz[*]=zz[*]*2+k", "zz[1]+zz[2]+zz[3]"}, 42);
+        testBlock("bulk2", new String[]{"@defmap zz", "zz[1]=5", "zz[-0]=-1", "zz[0]=7",
+                "sum(zz)*100+min(zz)*10+max(zz)+count(zz)*1000"}, 4097);
+        testBlock("bulk3", new String[]{"@defmap zz", "@defmap yy", "zz[1]=2", "zz[2]=6", "yy[1]=10", "yy[2]=20",
+                "zz[*]=yy[*]*zz[*]/sum(zz)", "zz[1]*8+zz[2]"}, 35);
+        testBlock("bulk4", new String[]{"@defmap zz", "zz[1]=3", "a=1", "zz[*]=a=a+zz[*]", "a+zz[1]"}, 8);
+        testBlock("bulk5", new String[]{"@defmap zz", "zz[*]=1", "sum(zz)+count(zz)"}, 0);
+        testBlockError("bulkerror1", new String[]{"@defmap zz", "zz[1]=1", "@defmap yy", "zz[*]=yy[*]"},
+                "Map element not found");
+        testBlockError("bulkerror2", new String[]{"zz[*]=1"}, "Map not found");
+        testBlockError("bulkerror3", new String[]{"@defmap zz", "zz[*]+1"}, "Bulk reference outside of bulk assignment");
+        testBlockError("bulkerror4", new String[]{"@defmap zz", "avg(zz)"}, "Unknown function: avg");
+        testBlockError("bulkerror5", new String[]{"@defmap zz", "min(zz)"}, "Map is empty");
+        testBlockError("bulkerror6", new String[]{"@defmap zz", "@defmap yy", "zz[*]=yy[1]"},
+                "Not supported in a bulk expression: map element by index");
+        testBlockError("bulkerror7", new String[]{"@defmap zz", "@defmap yy", "zz[*]=yy[*]=1"},
+                "Not supported in a bulk expression: assignment to m[*]");
+        testCache();
+        testSession();
+        testByteLexer();
+        testScriptRunner();
+        testTiered();
+        testAst();
+        testBatch(new BatchKernels());
+        // make run resolves the vector module, so the vector kernels must load
+        BatchKernels best = BatchKernels.best();
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() && !best.name().startsWith("vector")) {
+            throw new RuntimeException("Test failed: vector kernels not loaded, " + best.name());
+        }
+        testBatch(best);
+        testParallel();
+        testConcurrentContext();
+        testCheckpoint();
+        testOffHeap();
+        testBulk();
+        testLoops();
+        testFolding();
+        testDeep();
+        testTreeless();
+        testIncremental();
+        testAdaptiveMap();
+        testDag();
+        if (cache.hits() + cache.relinks() == 0) {
+            throw new RuntimeException("Test failed: no statement cache hits " + cache);
+        }
         //- testBlockFail(new String[]{"@hello"});
         //- testBlockFail(new String[]{"1[2]"});
         //- testBlockFail(new String[]{"(c=d)=3"});
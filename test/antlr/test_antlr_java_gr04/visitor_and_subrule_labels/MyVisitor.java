@@ -1,4 +1,4 @@
-public class MyVisitor extends gr04BaseVisitor<SemanticValue> {
+public class MyVisitor extends gr04BaseVisitor<SemanticValue> implements ConstantFolder.Visitor<SemanticValue> {
     public int verbose = 0;
     ExecutionContext econtext = null;
 
@@ -7,6 +7,11 @@ public class MyVisitor extends gr04BaseVisitor<SemanticValue> {
         return visit(ctx.stmt_defmap());
     }
 
+    @Override
+    public SemanticValue visitStmt2(gr04Parser.Stmt2Context ctx) {
+        return visit(ctx.stmt_bulk());
+    }
+
     @Override
     public SemanticValue visitStmt0(gr04Parser.Stmt0Context ctx) {
         return visit(ctx.expression());
@@ -19,6 +24,13 @@ public class MyVisitor extends gr04BaseVisitor<SemanticValue> {
         return null;
     }
 
+    // The element expression runs as one columnar pass, not by visiting.
+    @Override
+    public SemanticValue visitStmt_bulk(gr04Parser.Stmt_bulkContext ctx) {
+        MapBulk.compile(ctx.IDENTIFIER().getText(), ctx.expression()).execute(econtext);
+        return null;
+    }
+
     @Override
     public SemanticValue visitExpression(gr04Parser.ExpressionContext ctx) {
         if (verbose > 0) {
@@ -133,7 +145,8 @@ public class MyVisitor extends gr04BaseVisitor<SemanticValue> {
 
     @Override
     public SemanticValue visitPrimindex(gr04Parser.PrimindexContext ctx) {
-        SemanticValue v1 = new IdentifierSV(ctx.IDENTIFIER().getText());
+        String ident_name = ctx.IDENTIFIER().getText();
+        SemanticValue v1 = new IdentifierSV(ident_name, econtext.symbols.intern(ident_name));
         if (verbose > 0) {
             System.out.printf("__: visitPrimindex: v1.class=%s\n",
                     v1.getClass().getName());
@@ -143,6 +156,18 @@ public class MyVisitor extends gr04BaseVisitor<SemanticValue> {
         return new IndexedReferenceSV(ident, v2);
     }
 
+    @Override
+    public SemanticValue visitPrimall(gr04Parser.PrimallContext ctx) {
+        throw new DCExecutionError("Bulk reference outside of bulk assignment");
+    }
+
+    @Override
+    public SemanticValue visitPrimreduce(gr04Parser.PrimreduceContext ctx) {
+        int function = MapBulk.function(ctx.IDENTIFIER(0).getText());
+        int slot = econtext.symbols.intern(ctx.IDENTIFIER(1).getText());
+        return new ScalarSV(MapBulk.reduce(econtext, slot, function));
+    }
+
     @Override
     public SemanticValue visitPrimatom(gr04Parser.PrimatomContext ctx) {
         return visit(ctx.atom());
@@ -161,6 +186,22 @@ public class MyVisitor extends gr04BaseVisitor<SemanticValue> {
         if (verbose > 0) {
             System.out.printf("__: visitAtomid\n");
         }
-        return new IdentifierSV(ctx.getText());
+        String ident_name = ctx.getText();
+        return new IdentifierSV(ident_name, econtext.symbols.intern(ident_name));
+    }
+
+    @Override
+    public SemanticValue visitFolded(ConstantFolder.Folded ctx) {
+        return new ScalarSV(ctx.value());
+    }
+
+    @Override
+    public SemanticValue visitUnaryChain(ConstantFolder.UnaryChain ctx) {
+        SemanticValue operand = visit(ctx.operand);
+        if (!ctx.forced) {
+            return operand;
+        }
+        double value = operand.getRValue(econtext);
+        return new ScalarSV(ctx.negate ? -value : value);
     }
 }
@@ -0,0 +1,77 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+// Heap footprint and GC time with one large live map: boxed HashMap (the
+// former storage), DoubleDoubleMap and OffHeapDoubleDoubleMap. Run one kind
+// per JVM so the numbers do not mix: OffHeapBench <kind> [entries].
+public class OffHeapBench {
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+
+    static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String kind = args[0];
+        int count = (args.length > 1) ? Integer.valueOf(args[1]) : 10000000;
+        System.gc();
+        long heap0 = heapUsed();
+        long gc_count0 = gcCount();
+        long gc_millis0 = gcMillis();
+        long t0 = System.nanoTime();
+        Map<Double, Double> boxed = null;
+        DoubleDoubleMap themap = null;
+        if (kind.equals("hashmap")) {
+            boxed = new HashMap<>();
+            for (int i = 0; i < count; ++i) {
+                boxed.put((double) i, i * 0.5);
+            }
+        } else {
+            themap = kind.equals("offheap") ? new OffHeapDoubleDoubleMap() : new DoubleDoubleMap();
+            for (int i = 0; i < count; ++i) {
+                themap.put(i, i * 0.5);
+            }
+        }
+        long t1 = System.nanoTime();
+        long fill_gcs = gcCount() - gc_count0;
+        long fill_gc_millis = gcMillis() - gc_millis0;
+        // A full collection with the map alive
+        long gc_millis1 = gcMillis();
+        System.gc();
+        long full_gc_millis = gcMillis() - gc_millis1;
+        long heap1 = heapUsed();
+        double sum = 0;
+        long t2 = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            sum += (boxed != null) ? boxed.get((double) i) : themap.getOrFail(i);
+        }
+        long t3 = System.nanoTime();
+        if (sum != 0.25 * count * (count - 1.0)) {
+            throw new IllegalStateException("OffHeapBench: wrong sum " + sum);
+        }
+        String offheap = (themap instanceof OffHeapDoubleDoubleMap)
+                ? String.format(", off-heap %d MB", ((OffHeapDoubleDoubleMap) themap).capacity * 16 >> 20)
+                : "";
+        System.out.printf("%-8s %d entries: fill %6.0f ms (%d GCs, %d ms), lookups %5.0f ms, "
+                + "full GC %4d ms, heap %5d MB%s\n",
+                kind, count, (t1 - t0) / 1e6, fill_gcs, fill_gc_millis, (t3 - t2) / 1e6,
+                full_gc_millis, (heap1 - heap0) >> 20, offheap);
+    }
+}
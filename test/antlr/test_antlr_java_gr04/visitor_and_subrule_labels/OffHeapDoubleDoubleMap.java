@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// DoubleDoubleMap with its table in memory-mapped file pages instead of
+// heap arrays: the same linear probing over 16-byte (key bits, value)
+// slots, so the heap holds a few objects whatever the size, the GC never
+// scans the entries and the table may grow past the heap. Mapped memory
+// is also outside the -XX:MaxDirectMemorySize limit of direct buffers.
+//
+// A map opened with open(path) keeps its file and can be opened again in
+// a later run; flush() forces it to disk. Other maps use a temporary file
+// which is deleted once mapped. The file is in native byte order:
+//   long magic, long capacity, int size, int has_zero_key, double
+//   zero_value, padding up to HEADER_SIZE, then capacity slots.
+// Growing writes a new file and renames it over the old one.
+//
+// A mapping otherwise lasts until its buffer is collected, so growing
+// unmaps the old table as soon as it is copied, and close() unmaps the
+// current one (and with it the pages of a temporary file). Touching an
+// unmapped buffer crashes the JVM: close() drops the buffers, so that a
+// closed map throws NullPointerException instead.
+//
+// The inherited arrays stay empty and find() has no positions to offer.
+class OffHeapDoubleDoubleMap extends DoubleDoubleMap {
+    static final long MAGIC = 0x4752344d41503031L;
+    static final int HEADER_SIZE = 64;
+    static final int CAPACITY_OFFSET = 8;
+    static final int SIZE_OFFSET = 16;
+    static final int HAS_ZERO_OFFSET = 20;
+    static final int ZERO_VALUE_OFFSET = 24;
+    static final int SLOT_SIZE = 16;
+    // 8M slots, 128 MB per mapping
+    static final int PAGE_BITS = 23;
+    // Unsafe.invokeCleaner(ByteBuffer), or null to leave unmapping to the GC
+    static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    final Path path;
+    final boolean temporary;
+    final int page_bits;
+    final long page_mask;
+    MappedByteBuffer header;
+    MappedByteBuffer[] pages;
+    long capacity;
+    long lmask;
+    long lresize_at;
+
+    OffHeapDoubleDoubleMap() {
+        this(0);
+    }
+
+    OffHeapDoubleDoubleMap(int expected_size) {
+        this(null, expected_size, PAGE_BITS);
+    }
+
+    // A map backed by the given file: its entries if it holds one, otherwise
+    // a new empty map.
+    static OffHeapDoubleDoubleMap open(Path path) {
+        return new OffHeapDoubleDoubleMap(path, 0, PAGE_BITS);
+    }
+
+    OffHeapDoubleDoubleMap(Path npath, long expected_size, int npage_bits) {
+        super(0);
+        temporary = (npath == null);
+        page_bits = npage_bits;
+        page_mask = (1L << page_bits) - 1;
+        try {
+            path = temporary ? Files.createTempFile("gr04map", ".bin") : npath;
+            if (!temporary && Files.size(path) > 0) {
+                load();
+            } else {
+                long new_capacity = MIN_CAPACITY;
+                while (new_capacity * 3 / 4 < expected_size) {
+                    new_capacity <<= 1;
+                }
+                create(path, new_capacity);
+            }
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+    }
+
+    static MethodHandle invokeCleaner() {
+        try {
+            Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+            Field field = unsafe_class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafe_class, "invokeCleaner",
+                    MethodType.methodType(void.class, ByteBuffer.class)).bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException exc) {
+            return null;
+        }
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (RuntimeException | Error exc) {
+            throw exc;
+        } catch (Throwable exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    void load() throws IOException {
+        map(path, -1);
+        if (header.getLong(0) != MAGIC) {
+            throw new IOException("Not a map file: " + path);
+        }
+        size = header.getInt(SIZE_OFFSET);
+        has_zero_key = header.getInt(HAS_ZERO_OFFSET) != 0;
+        zero_value = header.getDouble(ZERO_VALUE_OFFSET);
+    }
+
+    // Maps a new zeroed table; zero key bits are FREE_KEY, so no slot
+    // needs to be written.
+    void create(Path file, long new_capacity) throws IOException {
+        Files.deleteIfExists(file);
+        map(file, new_capacity);
+        header.putLong(0, MAGIC);
+        header.putLong(CAPACITY_OFFSET, new_capacity);
+        size = 0;
+        writeHeader();
+    }
+
+    // new_capacity < 0 takes the capacity stored in the file.
+    void map(Path file, long new_capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            capacity = (new_capacity < 0) ? header.getLong(CAPACITY_OFFSET) : new_capacity;
+            long page_bytes = (long) SLOT_SIZE << page_bits;
+            long table_bytes = capacity * SLOT_SIZE;
+            pages = new MappedByteBuffer[(int) ((table_bytes + page_bytes - 1) / page_bytes)];
+            for (int i = 0; i < pages.length; ++i) {
+                long start = i * page_bytes;
+                pages[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start,
+                        Math.min(page_bytes, table_bytes - start));
+                pages[i].order(ByteOrder.nativeOrder());
+            }
+        }
+        if (temporary) {
+            // The mappings keep the pages; the name is not needed any more
+            try {
+                Files.delete(file);
+            } catch (IOException exc) {
+                file.toFile().deleteOnExit();
+            }
+        }
+        lmask = capacity - 1;
+        lresize_at = capacity * 3 / 4;
+    }
+
+    void writeHeader() {
+        header.putInt(SIZE_OFFSET, size);
+        header.putInt(HAS_ZERO_OFFSET, has_zero_key ? 1 : 0);
+        header.putDouble(ZERO_VALUE_OFFSET, zero_value);
+    }
+
+    long keyAt(long pos) {
+        return pages[(int) (pos >>> page_bits)].getLong((int) ((pos & page_mask) * SLOT_SIZE));
+    }
+
+    double valueAt(long pos) {
+        return pages[(int) (pos >>> page_bits)].getDouble((int) ((pos & page_mask) * SLOT_SIZE + 8));
+    }
+
+    void setSlot(long pos, long bits, double value) {
+        MappedByteBuffer page = pages[(int) (pos >>> page_bits)];
+        int offset = (int) ((pos & page_mask) * SLOT_SIZE);
+        page.putLong(offset, bits);
+        page.putDouble(offset + 8, value);
+    }
+
+    // Slot of the key or of the free slot ending its probe sequence.
+    long probe(long bits) {
+        long pos = mix(bits) & lmask;
+        for (;;) {
+            long k = keyAt(pos);
+            if (k == bits || k == FREE_KEY) {
+                return pos;
+            }
+            pos = (pos + 1) & lmask;
+        }
+    }
+
+    @Override
+    int find(long bits) {
+        return -1;
+    }
+
+    @Override
+    boolean containsKey(double key) {
+        long bits = Double.doubleToLongBits(key);
+        if (bits == FREE_KEY) {
+            return has_zero_key;
+        }
+        return keyAt(probe(bits)) == bits;
+    }
+
+    @Override
+    double getOrFail(double key) {
+        long bits = Double.doubleToLongBits(key);
+        if (bits == FREE_KEY) {
+            if (!has_zero_key) {
+                throw new DCExecutionError("Map element not found");
+            }
+            return zero_value;
+        }
+        long pos = probe(bits);
+        if (keyAt(pos) != bits) {
+            throw new DCExecutionError("Map element not found");
+        }
+        return valueAt(pos);
+    }
+
+    @Override
+    void put(double key, double value) {
+        long bits = Double.doubleToLongBits(key);
+        if (bits == FREE_KEY) {
+            has_zero_key = true;
+            zero_value = value;
+            writeHeader();
+            return;
+        }
+        long pos = probe(bits);
+        boolean added = keyAt(pos) == FREE_KEY;
+        setSlot(pos, bits, value);
+        if (added) {
+            if (size == Integer.MAX_VALUE - 1) {
+                throw new DCExecutionError("Map is full");
+            }
+            ++size;
+            header.putInt(SIZE_OFFSET, size);
+            if (size >= lresize_at) {
+                grow();
+            }
+        }
+    }
+
+    @Override
+    void forEach(EntryConsumer consumer) {
+        if (has_zero_key) {
+            consumer.accept(0.0, zero_value);
+        }
+        for (long pos = 0; pos < capacity; ++pos) {
+            long bits = keyAt(pos);
+            if (bits != FREE_KEY) {
+                consumer.accept(Double.longBitsToDouble(bits), valueAt(pos));
+            }
+        }
+    }
+
+    @Override
+    void updateValues(ChunkUpdater updater) {
+        double[] chunk_keys = new double[CHUNK];
+        double[] chunk_values = new double[CHUNK];
+        long[] positions = new long[CHUNK];
+        int n = 0;
+        if (has_zero_key) {
+            chunk_keys[0] = 0.0;
+            chunk_values[0] = zero_value;
+            positions[0] = -1;
+            n = 1;
+        }
+        for (long pos = 0; pos < capacity; ++pos) {
+            long bits = keyAt(pos);
+            if (bits != FREE_KEY) {
+                chunk_keys[n] = Double.longBitsToDouble(bits);
+                chunk_values[n] = valueAt(pos);
+                positions[n++] = pos;
+            }
+            if (n == CHUNK || (n > 0 && pos == capacity - 1)) {
+                updater.update(chunk_keys, chunk_values, n);
+                for (int j = 0; j < n; ++j) {
+                    if (positions[j] < 0) {
+                        zero_value = chunk_values[j];
+                        writeHeader();
+                    } else {
+                        setSlot(positions[j], Double.doubleToLongBits(chunk_keys[j]), chunk_values[j]);
+                    }
+                }
+                n = 0;
+            }
+        }
+    }
+
+    @Override
+    double reduce(int function) {
+        double acc = identity(function);
+        if (has_zero_key) {
+            acc = combine(function, acc, zero_value);
+        }
+        for (long pos = 0; pos < capacity; ++pos) {
+            if (keyAt(pos) != FREE_KEY) {
+                acc = combine(function, acc, valueAt(pos));
+            }
+        }
+        return acc;
+    }
+
+    // Frees every slot in place, so that a file-backed map stays bound to
+    // its file.
+    @Override
+    void clear() {
+        for (long pos = 0; pos < capacity; ++pos) {
+            setSlot(pos, FREE_KEY, 0.0);
+        }
+        size = 0;
+        has_zero_key = false;
+        zero_value = 0.0;
+        writeHeader();
+    }
+
+    void grow() {
+        MappedByteBuffer old_header = header;
+        MappedByteBuffer[] old_pages = pages;
+        long old_capacity = capacity;
+        int old_size = size;
+        Path new_path = temporary ? null : path.resolveSibling(path.getFileName() + ".grow");
+        try {
+            if (temporary) {
+                new_path = Files.createTempFile("gr04map", ".bin");
+            }
+            create(new_path, old_capacity * 2);
+            for (long pos = 0; pos < old_capacity; ++pos) {
+                MappedByteBuffer page = old_pages[(int) (pos >>> page_bits)];
+                int offset = (int) ((pos & page_mask) * SLOT_SIZE);
+                long bits = page.getLong(offset);
+                if (bits != FREE_KEY) {
+                    long new_pos = mix(bits) & lmask;
+                    while (keyAt(new_pos) != FREE_KEY) {
+                        new_pos = (new_pos + 1) & lmask;
+                    }
+                    setSlot(new_pos, bits, page.getDouble(offset + 8));
+                }
+            }
+            size = old_size;
+            writeHeader();
+            if (!temporary) {
+                Files.move(new_path, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException exc) {
+            throw new UncheckedIOException(exc);
+        }
+        for (MappedByteBuffer page : old_pages) {
+            unmap(page);
+        }
+        unmap(old_header);
+    }
+
+    // Unmaps the table; the map must not be used any more. Entries written
+    // to a file-backed map stay in its file, on disk after flush().
+    void close() {
+        if (pages == null) {
+            return;
+        }
+        MappedByteBuffer[] old_pages = pages;
+        MappedByteBuffer old_header = header;
+        pages = null;
+        header = null;
+        for (MappedByteBuffer page : old_pages) {
+            unmap(page);
+        }
+        unmap(old_header);
+    }
+
+    // Writes the pages of a file-backed map to disk.
+    void flush() {
+        for (MappedByteBuffer page : pages) {
+            page.force();
+        }
+        header.force();
+    }
+}
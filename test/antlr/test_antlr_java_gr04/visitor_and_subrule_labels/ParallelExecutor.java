@@ -0,0 +1,150 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+// Runs independent scripts, each against its own ExecutionContext, on a
+// fork-join pool. Every worker thread keeps one strict two-stage
+// Gr04Session and rebinds it per job. A failing statement ends only its
+// own job; the error is kept in the Job.
+// Worker threads are watched through ThreadMXBean: time blocked on
+// monitors is the contention on the DFA caches the generated lexer and
+// parser share statically (decisionToDFA, PredictionContextCache), the
+// only locks on the execution path once SymbolTable has seen every name.
+class ParallelExecutor {
+
+    static final class Job {
+        final CharSequence[] script;
+        final ExecutionContext econtext;
+        double result = Double.NaN;
+        RuntimeException error = null;
+
+        Job(CharSequence[] nscript, ExecutionContext necontext) {
+            script = nscript;
+            econtext = necontext;
+        }
+    }
+
+    final int threads;
+    final boolean private_dfa;
+    final ThreadMXBean mxbean = ManagementFactory.getThreadMXBean();
+    final Queue<Thread> workers = new ConcurrentLinkedQueue<>();
+    final ThreadLocal<Gr04Session> sessions = ThreadLocal.withInitial(this::newSession);
+    long blocked_count = 0;
+    long blocked_millis = 0;
+
+    ParallelExecutor(int nthreads) {
+        this(nthreads, false);
+    }
+
+    ParallelExecutor(int nthreads, boolean nprivate_dfa) {
+        threads = nthreads;
+        private_dfa = nprivate_dfa;
+        if (mxbean.isThreadContentionMonitoringSupported()) {
+            mxbean.setThreadContentionMonitoringEnabled(true);
+        }
+    }
+
+    Gr04Session newSession() {
+        workers.add(Thread.currentThread());
+        Gr04Session session = new Gr04Session(new ExecutionContext(), true);
+        if (private_dfa) {
+            session.usePrivateDfa();
+        }
+        session.setTwoStage(true);
+        return session;
+    }
+
+    void runJob(Job job) {
+        Gr04Session session = sessions.get();
+        session.setContext(job.econtext);
+        try {
+            job.result = session.execute(job.script);
+        } catch (RuntimeException exc) {
+            job.error = exc;
+        }
+    }
+
+    // Runs all jobs and waits for them. Pool threads live for this call only,
+    // so the blocked time counters are those of this run.
+    void runAll(List<Job> jobs) throws InterruptedException {
+        workers.clear();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (Job job : jobs) {
+                tasks.add(() -> {
+                    runJob(job);
+                    return null;
+                });
+            }
+            pool.invokeAll(tasks);
+            collectContention();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    void collectContention() {
+        blocked_count = 0;
+        blocked_millis = 0;
+        for (Thread worker : workers) {
+            ThreadInfo info = mxbean.getThreadInfo(worker.getId());
+            if (info != null) {
+                blocked_count += info.getBlockedCount();
+                blocked_millis += Math.max(0, info.getBlockedTime());
+            }
+        }
+    }
+
+    String contention() {
+        return String.format("workers=%d blocked=%d times, %d ms", workers.size(), blocked_count, blocked_millis);
+    }
+
+    // Scaling from 1 to N threads on generated jobs, with shared and private DFA.
+    public static void main(String[] args) throws Exception {
+        int max_threads = (args.length > 0) ? Integer.valueOf(args[0]) : Runtime.getRuntime().availableProcessors();
+        int njobs = (args.length > 1) ? Integer.valueOf(args[1]) : 2000;
+        CharSequence[] script = new CharSequence[50];
+        script[0] = "@defmap zz";
+        for (int i = 1; i < script.length; ++i) {
+            script[i] = String.format("zz[%d]=a=(a+%d)*(b=%d)**2/(zz[%d]+1)", i, i, i % 5 + 1, i - 1 > 0 ? i - 1 : 1);
+        }
+        script[1] = "zz[1]=a=b=1";
+        List<Integer> thread_counts = new ArrayList<>();
+        for (int threads = 1; threads < max_threads; threads *= 2) {
+            thread_counts.add(threads);
+        }
+        thread_counts.add(max_threads);
+        for (boolean private_dfa : new boolean[]{false, true}) {
+            double base_rate = 0;
+            for (int threads : thread_counts) {
+                List<Job> jobs = new ArrayList<>();
+                for (int j = 0; j < njobs; ++j) {
+                    jobs.add(new Job(script, new ExecutionContext()));
+                }
+                ParallelExecutor executor = new ParallelExecutor(threads, private_dfa);
+                long t0 = System.nanoTime();
+                executor.runAll(jobs);
+                long t1 = System.nanoTime();
+                for (Job job : jobs) {
+                    if (job.error != null) {
+                        throw job.error;
+                    }
+                }
+                double rate = (double) njobs * script.length / ((t1 - t0) / 1e9);
+                if (base_rate == 0) {
+                    base_rate = rate;
+                }
+                System.out.printf("%s DFA, %2d threads: %10.0f statements/s, speedup %5.2f, %s\n",
+                        private_dfa ? "private" : "shared", threads, rate, rate / base_rate,
+                        executor.contention());
+            }
+        }
+    }
+}
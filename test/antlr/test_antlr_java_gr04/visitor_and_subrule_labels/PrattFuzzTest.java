@@ -0,0 +1,161 @@
+import java.util.Random;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+// Differential test: random gr04 statements are run both through
+// gr04Parser + MyVisitor and through PrattParser, and every statement
+// result or error, as well as the final variables, must be the same.
+public class PrattFuzzTest {
+    static final String[] SCALARS = {"a", "b", "c"};
+    static final String[] MAPS = {"m", "n"};
+
+    Random random;
+    int max_depth;
+
+    PrattFuzzTest(long seed, int nmax_depth) {
+        random = new Random(seed);
+        max_depth = nmax_depth;
+    }
+
+    String space() {
+        return (random.nextInt(4) == 0) ? " " : "";
+    }
+
+    // Generators follow the gr04.g4 rules, so every output is a valid statement.
+    String genAssignment(int depth) {
+        if (depth > 0 && random.nextInt(4) == 0) {
+            return genPrimary(depth - 1) + space() + "=" + space() + genAssignment(depth - 1);
+        }
+        return genAddsub(depth);
+    }
+
+    String genAddsub(int depth) {
+        if (depth > 0 && random.nextInt(3) == 0) {
+            String op = random.nextBoolean() ? "+" : "-";
+            return genAddsub(depth - 1) + space() + op + space() + genMuldiv(depth - 1);
+        }
+        return genMuldiv(depth);
+    }
+
+    String genMuldiv(int depth) {
+        if (depth > 0 && random.nextInt(3) == 0) {
+            String op = random.nextBoolean() ? "*" : "/";
+            return genMuldiv(depth - 1) + space() + op + space() + genPower(depth - 1);
+        }
+        return genPower(depth);
+    }
+
+    String genPower(int depth) {
+        if (depth > 0 && random.nextInt(4) == 0) {
+            return genUnary(depth - 1) + space() + "**" + space() + genPower(depth - 1);
+        }
+        return genUnary(depth);
+    }
+
+    String genUnary(int depth) {
+        if (depth > 0 && random.nextInt(4) == 0) {
+            return (random.nextBoolean() ? "+" : "-") + space() + genUnary(depth - 1);
+        }
+        return genPrimary(depth);
+    }
+
+    String genPrimary(int depth) {
+        int choice = random.nextInt(depth > 0 ? 4 : 2);
+        switch (choice) {
+            case 0:
+                return Integer.toString(random.nextInt(4));
+            case 1:
+                return SCALARS[random.nextInt(SCALARS.length)];
+            case 2:
+                return "(" + space() + genAssignment(depth - 1) + space() + ")";
+            default:
+                return MAPS[random.nextInt(MAPS.length)] + "[" + genAssignment(depth - 1) + "]";
+        }
+    }
+
+    String genStatement() {
+        if (random.nextInt(20) == 0) {
+            return "@defmap " + MAPS[random.nextInt(MAPS.length)];
+        }
+        return genAssignment(random.nextInt(max_depth + 1));
+    }
+
+    // Statement outcome as text: value bits, "none" or the error message.
+    static String runVisitor(String text, ExecutionContext econtext) {
+        try {
+            gr04Lexer lexer = new gr04Lexer(new ANTLRInputStream(text));
+            gr04Parser parser = new gr04Parser(new CommonTokenStream(lexer));
+            parser.setErrorHandler(new BailErrorStrategy());
+            ParseTree tree = parser.statement();
+            MyVisitor visitor = new MyVisitor();
+            visitor.econtext = econtext;
+            SemanticValue rsv = visitor.visit(tree);
+            return (rsv != null) ? outcome(rsv.getRValue(econtext)) : "none";
+        } catch (DCExecutionError exc) {
+            return "error: " + exc.getMessage();
+        }
+    }
+
+    static String runPratt(String text, ExecutionContext econtext) {
+        try {
+            gr04Lexer lexer = new gr04Lexer(new ANTLRInputStream(text));
+            CompiledStatement cs = PrattParser.compile(lexer.getAllTokens());
+            double result = cs.execute(econtext);
+            return cs.has_value ? outcome(result) : "none";
+        } catch (DCExecutionError exc) {
+            return "error: " + exc.getMessage();
+        }
+    }
+
+    static String outcome(double value) {
+        return Long.toHexString(Double.doubleToLongBits(value));
+    }
+
+    static String variables(ExecutionContext econtext) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : SCALARS) {
+            sb.append(name).append('=').append(econtext.getScalar(name)).append(' ');
+        }
+        return sb.toString();
+    }
+
+    // Returns the number of compared statements.
+    int runScript(int statements) {
+        ExecutionContext visitor_context = new ExecutionContext();
+        ExecutionContext pratt_context = new ExecutionContext();
+        String[] prologue = {"@defmap m", "@defmap n", "m[0]=1", "m[1]=2", "n[1]=3", "n[2]=0"};
+        for (String text : prologue) {
+            runVisitor(text, visitor_context);
+            runPratt(text, pratt_context);
+        }
+        for (int i = 0; i < statements; ++i) {
+            String text = genStatement();
+            String expected = runVisitor(text, visitor_context);
+            String actual = runPratt(text, pratt_context);
+            if (!expected.equals(actual)) {
+                String msg = String.format("PrattFuzzTest mismatch: stmt=<%s> visitor=<%s> pratt=<%s>",
+                        text, expected, actual);
+                throw new RuntimeException(msg);
+            }
+        }
+        String expected_vars = variables(visitor_context);
+        String actual_vars = variables(pratt_context);
+        if (!expected_vars.equals(actual_vars)) {
+            String msg = String.format("PrattFuzzTest variables mismatch: visitor=<%s> pratt=<%s>",
+                    expected_vars, actual_vars);
+            throw new RuntimeException(msg);
+        }
+        return statements;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = (args.length > 0) ? Long.valueOf(args[0]) : 1;
+        int scripts = (args.length > 1) ? Integer.valueOf(args[1]) : 2000;
+        PrattFuzzTest prog = new PrattFuzzTest(seed, 6);
+        int total = 0;
+        for (int i = 0; i < scripts; ++i) {
+            total += prog.runScript(10);
+        }
+        System.out.printf("PrattFuzzTest: seed=%d %d statements agree\n", seed, total);
+    }
+}
@@ -0,0 +1,236 @@
+import java.util.List;
+import org.antlr.v4.runtime.Token;
+
+// Precedence climbing parser for gr04 which compiles a statement directly
+// from a token array, without any parse tree. Code is emitted through
+// CodeBuilder in the same order as StatementCompiler does for the
+// equivalent gr04Parser tree, so results and errors are the same.
+//
+// Precedence, lowest first: '=' (right), '+' '-', '*' '/', '**' (right),
+// unary '+' '-', primary. As in gr04.g4 unary signs bind tighter than
+// '**' (-2**2 == 4), and only a primary may be assigned to.
+// Unlike gr04Parser.statement(), trailing tokens are an error.
+class PrattParser {
+    final int[] types;
+    final String[] texts;
+    final double[] numbers;
+    final int count;
+    int pos = 0;
+    CodeBuilder builder;
+
+    // types[i] is a gr04Lexer token type; texts[i] must be set for
+    // IDENTIFIER tokens and numbers[i] for NUMBER tokens.
+    PrattParser(int[] ntypes, String[] ntexts, double[] nnumbers, int ncount) {
+        types = ntypes;
+        texts = ntexts;
+        numbers = nnumbers;
+        count = ncount;
+    }
+
+    static PrattParser fromTokens(List<? extends Token> tokens) {
+        int count = tokens.size();
+        int[] types = new int[count];
+        String[] texts = new String[count];
+        double[] numbers = new double[count];
+        int n = 0;
+        for (Token token : tokens) {
+            int type = token.getType();
+            if (type == Gr04Tokens.EOF) {
+                break;
+            }
+            if (token.getChannel() != Token.DEFAULT_CHANNEL) {
+                continue;
+            }
+            types[n] = type;
+            if (type == Gr04Tokens.IDENTIFIER) {
+                texts[n] = token.getText();
+            } else if (type == Gr04Tokens.NUMBER) {
+                numbers[n] = Double.valueOf(token.getText());
+            }
+            ++n;
+        }
+        return new PrattParser(types, texts, numbers, n);
+    }
+
+    static CompiledStatement compile(List<? extends Token> tokens) {
+        return fromTokens(tokens).compileStatement(new SymbolTable());
+    }
+
+    CompiledStatement compileStatement(SymbolTable symbols) {
+        pos = 0;
+        builder = new CodeBuilder(symbols);
+        CodeBuilder.Ref result;
+        if (peek() == Gr04Tokens.KW_DEFMAP) {
+            ++pos;
+            builder.defmap(expectIdentifier());
+            result = null;
+        } else if (startsBulk()) {
+            // stmt_bulk: IDENTIFIER '[' '*' ']' '=' expression
+            String name = texts[pos];
+            pos += 5;
+            CodeBuilder outer = builder;
+            builder = new CodeBuilder(new SymbolTable());
+            builder.element_mode = true;
+            CompiledStatement element = builder.finish(parseAssignment());
+            builder = outer;
+            builder.bulk(name, element);
+            result = null;
+        } else {
+            result = parseAssignment();
+        }
+        if (pos < count) {
+            throw syntaxError("end of statement");
+        }
+        return builder.finish(result);
+    }
+
+    int peek() {
+        return (pos < count) ? types[pos] : Gr04Tokens.EOF;
+    }
+
+    int peek(int ahead) {
+        return (pos + ahead < count) ? types[pos + ahead] : Gr04Tokens.EOF;
+    }
+
+    boolean startsBulk() {
+        return peek() == Gr04Tokens.IDENTIFIER && peek(1) == Gr04Tokens.LBRACK && peek(2) == Gr04Tokens.STAR
+                && peek(3) == Gr04Tokens.RBRACK && peek(4) == Gr04Tokens.ASSIGN;
+    }
+
+    DCSyntaxError syntaxError(String expected) {
+        return new DCSyntaxError(String.format("Syntax error at token %d: expected %s", pos, expected));
+    }
+
+    void expect(int type, String what) {
+        if (peek() != type) {
+            throw syntaxError(what);
+        }
+        ++pos;
+    }
+
+    String expectIdentifier() {
+        if (peek() != Gr04Tokens.IDENTIFIER) {
+            throw syntaxError("identifier");
+        }
+        return texts[pos++];
+    }
+
+    static boolean startsPrimary(int type) {
+        return type == Gr04Tokens.LPAREN || type == Gr04Tokens.IDENTIFIER || type == Gr04Tokens.NUMBER;
+    }
+
+    // assignment: primary '=' assignment | addsub
+    CodeBuilder.Ref parseAssignment() {
+        if (startsPrimary(peek())) {
+            CodeBuilder.Ref left = parsePrimary();
+            if (peek() == Gr04Tokens.ASSIGN) {
+                ++pos;
+                CodeBuilder.Ref rvalue = parseAssignment();
+                return builder.assign(left, rvalue);
+            }
+            return parseBinary(parsePower(left), 1);
+        }
+        return parseBinary(parsePower(parseUnary()), 1);
+    }
+
+    static int binaryPrecedence(int type) {
+        if (type == Gr04Tokens.PLUS || type == Gr04Tokens.MINUS) {
+            return 1;
+        }
+        if (type == Gr04Tokens.STAR || type == Gr04Tokens.SLASH) {
+            return 2;
+        }
+        return 0;
+    }
+
+    static int binaryOpcode(int type) {
+        if (type == Gr04Tokens.PLUS) {
+            return CompiledStatement.OP_ADD;
+        } else if (type == Gr04Tokens.MINUS) {
+            return CompiledStatement.OP_SUB;
+        } else if (type == Gr04Tokens.STAR) {
+            return CompiledStatement.OP_MUL;
+        } else {
+            return CompiledStatement.OP_DIV;
+        }
+    }
+
+    // Left-associative '+' '-' '*' '/' over power-level operands.
+    CodeBuilder.Ref parseBinary(CodeBuilder.Ref left, int min_precedence) {
+        for (;;) {
+            int op = peek();
+            int precedence = binaryPrecedence(op);
+            if (precedence == 0 || precedence < min_precedence) {
+                return left;
+            }
+            ++pos;
+            builder.materialize(left);
+            CodeBuilder.Ref right = parsePower(parseUnary());
+            while (binaryPrecedence(peek()) > precedence) {
+                right = parseBinary(right, precedence + 1);
+            }
+            builder.materialize(right);
+            left = builder.binary(binaryOpcode(op));
+        }
+    }
+
+    // power: unary '**' power | unary
+    CodeBuilder.Ref parsePower(CodeBuilder.Ref left) {
+        if (peek() != Gr04Tokens.DSTAR) {
+            return left;
+        }
+        ++pos;
+        builder.materialize(left);
+        CodeBuilder.Ref right = parsePower(parseUnary());
+        builder.materialize(right);
+        return builder.binary(CompiledStatement.OP_POW);
+    }
+
+    // unary: primary | '+' unary | '-' unary
+    CodeBuilder.Ref parseUnary() {
+        int type = peek();
+        if (type == Gr04Tokens.PLUS) {
+            ++pos;
+            return parseUnary();
+        } else if (type == Gr04Tokens.MINUS) {
+            ++pos;
+            return builder.negate(parseUnary());
+        }
+        return parsePrimary();
+    }
+
+    // primary: '(' expression ')' | IDENTIFIER '[' expression ']' | IDENTIFIER '[' '*' ']'
+    //   | IDENTIFIER '(' IDENTIFIER ')' | NUMBER | IDENTIFIER
+    CodeBuilder.Ref parsePrimary() {
+        int type = peek();
+        if (type == Gr04Tokens.LPAREN) {
+            ++pos;
+            CodeBuilder.Ref inner = parseAssignment();
+            expect(Gr04Tokens.RPAREN, "')'");
+            return inner;
+        } else if (type == Gr04Tokens.IDENTIFIER) {
+            String name = texts[pos++];
+            if (peek() == Gr04Tokens.LBRACK && peek(1) == Gr04Tokens.STAR) {
+                pos += 2;
+                expect(Gr04Tokens.RBRACK, "']'");
+                return builder.element(name);
+            }
+            if (peek() == Gr04Tokens.LPAREN) {
+                ++pos;
+                String argument = expectIdentifier();
+                expect(Gr04Tokens.RPAREN, "')'");
+                return builder.reduce(name, argument);
+            }
+            if (peek() == Gr04Tokens.LBRACK) {
+                ++pos;
+                CodeBuilder.Ref index = parseAssignment();
+                expect(Gr04Tokens.RBRACK, "']'");
+                return builder.indexed(name, index);
+            }
+            return builder.scalar(name);
+        } else if (type == Gr04Tokens.NUMBER) {
+            return builder.constant(numbers[pos++]);
+        }
+        throw syntaxError("primary expression");
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Executes a gr04 script of any size: statements are separated by newline
+// or ';' and executed one by one straight from a fixed read buffer, with
+// ByteLexer and PrattParser. Memory is bounded by the buffer, which only
+// grows if a single statement does not fit. Blank statements are skipped.
+class ScriptRunner {
+    final ExecutionContext econtext;
+    final ByteLexer lexer = new ByteLexer();
+    ByteBuffer data;
+    ByteBuffer view;
+    long statements = 0;
+    long bytes = 0;
+    long elapsed_nanos = 0;
+
+    ScriptRunner(ExecutionContext necontext) {
+        this(necontext, 1 << 20);
+    }
+
+    ScriptRunner(ExecutionContext necontext, int buffer_size) {
+        econtext = necontext;
+        data = ByteBuffer.allocateDirect(buffer_size);
+        view = data.duplicate();
+    }
+
+    // Returns the value of the last statement which has one, or NaN.
+    double run(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return run(channel);
+        }
+    }
+
+    double run(ReadableByteChannel channel) throws IOException {
+        long started = System.nanoTime();
+        double result = Double.NaN;
+        int filled = 0;
+        int start = 0;
+        int scan = 0;
+        boolean eof = false;
+        data.clear();
+        for (;;) {
+            for (; scan < filled; ++scan) {
+                byte c = data.get(scan);
+                if (c == '\n' || c == ';') {
+                    result = executeRange(start, scan, result);
+                    start = scan + 1;
+                }
+            }
+            if (eof) {
+                break;
+            }
+            // Keep the unfinished statement at the buffer start
+            if (start > 0) {
+                data.limit(filled).position(start);
+                data.compact();
+                filled -= start;
+                scan -= start;
+                start = 0;
+            } else if (filled == data.capacity()) {
+                grow(filled);
+            }
+            data.limit(data.capacity()).position(filled);
+            int n = channel.read(data);
+            if (n < 0) {
+                eof = true;
+            } else {
+                filled += n;
+                bytes += n;
+            }
+        }
+        result = executeRange(start, filled, result);
+        elapsed_nanos += System.nanoTime() - started;
+        return result;
+    }
+
+    void grow(int filled) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(data.capacity() * 2);
+        data.limit(filled).position(0);
+        bigger.put(data);
+        data = bigger;
+        view = data.duplicate();
+    }
+
+    double executeRange(int from, int to, double result) {
+        view.clear().position(from).limit(to);
+        if (lexer.tokenize(view) == 0) {
+            return result;
+        }
+        CompiledStatement cs = lexer.toPrattParser().compileStatement(econtext.symbols);
+        double value = cs.execute(econtext);
+        ++statements;
+        return cs.has_value ? value : result;
+    }
+
+    String report() {
+        double seconds = elapsed_nanos / 1e9;
+        double megabytes = bytes / (1024.0 * 1024.0);
+        return String.format("%d statements, %.1f MB in %.3f s: %.0f statements/s, %.1f MB/s",
+                statements, megabytes, seconds, statements / seconds, megabytes / seconds);
+    }
+
+    // Writes a script with a map fill and running sums, for benchmarking.
+    static void generate(Path path, long count) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            writer.write("@defmap zz\ns=0\n");
+            for (long i = 0; i < count; ++i) {
+                writer.write(String.format("zz[%d]=%d*2+1; s=s+zz[%d]/(a=%d)\n", i % 1000, i, i % 1000, i + 1));
+            }
+        }
+    }
+
+    // Usage: ScriptRunner <script> | ScriptRunner -generate <script> <statement pairs>
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("-generate")) {
+            generate(Paths.get(args[1]), Long.valueOf(args[2]));
+            return;
+        }
+        ScriptRunner runner = new ScriptRunner(new ExecutionContext());
+        double result = runner.run(Paths.get(args[0]));
+        System.out.println("Result: " + result);
+        System.out.println(runner.report());
+    }
+}
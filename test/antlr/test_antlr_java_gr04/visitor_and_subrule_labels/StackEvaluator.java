@@ -0,0 +1,311 @@
+import java.util.Arrays;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Executes a gr04 statement tree like MyVisitor, to the same results and
+// errors, without Java recursion: nodes waiting for operands are kept on an
+// explicit work stack with the step they are at, and operands on a value
+// stack, so nesting depth is limited by the heap only.
+//
+// Nodes which just pass one child's value on (stmt0, expression, asg0,
+// as0, md0, pwr0, un0, unplus, primatom and parentheses) are skipped while
+// descending and take no stack entry. References stay lazy as in MyVisitor
+// (IdentifierSV, IndexedReferenceSV, read when their value is needed, so
+// m[a]=(a=2) still stores at the new a); values already computed are kept
+// as plain doubles, without a ScalarSV. ConstantFolder nodes are handled.
+// The stacks are kept between calls; an evaluator is for one thread.
+class StackEvaluator {
+    static final int OP_ADD = 0;
+    static final int OP_SUB = 1;
+    static final int OP_MUL = 2;
+    static final int OP_DIV = 3;
+    static final int OP_POW = 4;
+    static final int OP_NEG = 5;
+    static final int OP_ASSIGN = 6;
+    static final int OP_INDEX = 7;
+    static final int OP_CHAIN = 8;
+
+    ExecutionContext econtext;
+
+    ParserRuleContext[] nodes = new ParserRuleContext[64];
+    int[] ops = new int[64];
+    int[] steps = new int[64];
+    int depth = 0;
+    // A value is svs[i], or numbers[i] if svs[i] is null
+    SemanticValue[] svs = new SemanticValue[64];
+    double[] numbers = new double[64];
+    int count = 0;
+
+    StackEvaluator(ExecutionContext necontext) {
+        econtext = necontext;
+    }
+
+    // null for a statement without value
+    SemanticValue evaluate(ParseTree tree) {
+        depth = 0;
+        count = 0;
+        try {
+            descend(tree);
+            while (depth > 0) {
+                step(depth - 1);
+            }
+            if (count == 0) {
+                return null;
+            }
+            return (svs[0] != null) ? svs[0] : new ScalarSV(numbers[0]);
+        } finally {
+            Arrays.fill(svs, 0, Math.max(count, 1), null);
+            Arrays.fill(nodes, 0, depth, null);
+        }
+    }
+
+    double evaluateValue(ParseTree tree) {
+        SemanticValue result = evaluate(tree);
+        return (result != null) ? result.getRValue(econtext) : Double.NaN;
+    }
+
+    // Skips pass-through nodes; a leaf is pushed as a value, any other node
+    // as work at its first step. Dispatch is on the rule index and exact
+    // classes: a failing instanceof against the ConstantFolder.Folded
+    // interface on every node cost more than the whole evaluation.
+    void descend(ParseTree node) {
+        for (;;) {
+            ParserRuleContext ctx = (ParserRuleContext) node;
+            switch (ctx.getRuleIndex()) {
+                case gr04Parser.RULE_statement:
+                    node = ctx.getChild(0);
+                    continue;
+                case gr04Parser.RULE_expression:
+                    if (ctx instanceof ConstantFolder.FoldedExpression) {
+                        pushNumber(((ConstantFolder.FoldedExpression) ctx).value);
+                        return;
+                    }
+                    node = ctx.getChild(0);
+                    continue;
+                case gr04Parser.RULE_assignment:
+                    if (ctx instanceof gr04Parser.Asg1Context) {
+                        pushWork(ctx, OP_ASSIGN);
+                        return;
+                    } else if (ctx instanceof ConstantFolder.FoldedAssignment) {
+                        pushNumber(((ConstantFolder.FoldedAssignment) ctx).value);
+                        return;
+                    }
+                    node = ctx.getChild(0);
+                    continue;
+                case gr04Parser.RULE_addsub:
+                    if (ctx instanceof ConstantFolder.FoldedAddsub) {
+                        pushNumber(((ConstantFolder.FoldedAddsub) ctx).value);
+                        return;
+                    }
+                    break;
+                case gr04Parser.RULE_muldiv:
+                    if (ctx instanceof ConstantFolder.FoldedMuldiv) {
+                        pushNumber(((ConstantFolder.FoldedMuldiv) ctx).value);
+                        return;
+                    }
+                    break;
+                case gr04Parser.RULE_power:
+                    if (ctx instanceof ConstantFolder.FoldedPower) {
+                        pushNumber(((ConstantFolder.FoldedPower) ctx).value);
+                        return;
+                    }
+                    break;
+                case gr04Parser.RULE_unary:
+                    if (ctx instanceof gr04Parser.Un0Context) {
+                        node = ctx.getChild(0);
+                    } else if (ctx instanceof gr04Parser.UnplusContext) {
+                        node = ctx.getChild(1);
+                    } else if (ctx instanceof ConstantFolder.FoldedUnary) {
+                        pushNumber(((ConstantFolder.FoldedUnary) ctx).value);
+                        return;
+                    } else {
+                        pushWork(ctx, (ctx instanceof ConstantFolder.UnaryChain) ? OP_CHAIN : OP_NEG);
+                        return;
+                    }
+                    continue;
+                case gr04Parser.RULE_primary:
+                    if (ctx instanceof ConstantFolder.FoldedPrimary) {
+                        pushNumber(((ConstantFolder.FoldedPrimary) ctx).value);
+                    } else if (ctx instanceof gr04Parser.PrimatomContext) {
+                        node = ctx.getChild(0);
+                        continue;
+                    } else if (ctx instanceof gr04Parser.PrimexprContext) {
+                        node = ctx.getChild(1);
+                        continue;
+                    } else if (ctx instanceof gr04Parser.PrimindexContext) {
+                        pushWork(ctx, OP_INDEX);
+                    } else if (ctx instanceof gr04Parser.PrimallContext) {
+                        throw new DCExecutionError("Bulk reference outside of bulk assignment");
+                    } else {
+                        gr04Parser.PrimreduceContext reduce = (gr04Parser.PrimreduceContext) ctx;
+                        int function = MapBulk.function(reduce.IDENTIFIER(0).getText());
+                        int slot = econtext.symbols.intern(reduce.IDENTIFIER(1).getText());
+                        pushNumber(MapBulk.reduce(econtext, slot, function));
+                    }
+                    return;
+                case gr04Parser.RULE_atom:
+                    String text = ctx.getChild(0).getText();
+                    if (ctx instanceof gr04Parser.AtomnumContext) {
+                        pushNumber(Double.valueOf(text));
+                    } else {
+                        pushValue(new IdentifierSV(text, econtext.symbols.intern(text)));
+                    }
+                    return;
+                case gr04Parser.RULE_stmt_defmap:
+                    econtext.createMap(ctx.getChild(1).getText());
+                    return;
+                default:
+                    gr04Parser.Stmt_bulkContext bulk = (gr04Parser.Stmt_bulkContext) ctx;
+                    MapBulk.compile(bulk.IDENTIFIER().getText(), bulk.expression()).execute(econtext);
+                    return;
+            }
+            // addsub, muldiv, power
+            if (ctx.getChildCount() == 3) {
+                pushWork(ctx, binaryOp(ctx));
+                return;
+            }
+            node = ctx.getChild(0);
+        }
+    }
+
+    static int binaryOp(ParserRuleContext ctx) {
+        switch (((TerminalNode) ctx.getChild(1)).getSymbol().getText()) {
+            case "+":
+                return OP_ADD;
+            case "-":
+                return OP_SUB;
+            case "*":
+                return OP_MUL;
+            case "/":
+                return OP_DIV;
+            default:
+                return OP_POW;
+        }
+    }
+
+    // Step 0 descends into the first operand, step 1 into the second (after
+    // reading the first, as MyVisitor does), the last step combines.
+    void step(int top) {
+        ParserRuleContext ctx = nodes[top];
+        int step = steps[top]++;
+        int op = ops[top];
+        switch (op) {
+            case OP_ASSIGN:
+                if (step < 2) {
+                    descend(ctx.getChild(2 * step));
+                    return;
+                }
+                double rvalue = popNumber();
+                topValue().assignValue(rvalue, econtext);
+                setNumber(rvalue);
+                break;
+            case OP_INDEX:
+                if (step == 0) {
+                    descend(ctx.getChild(2));
+                    return;
+                }
+                SemanticValue index = topValue();
+                String ident_name = ctx.getChild(0).getText();
+                svs[count - 1] = new IndexedReferenceSV(
+                        new IdentifierSV(ident_name, econtext.symbols.intern(ident_name)), index);
+                break;
+            case OP_NEG:
+                if (step == 0) {
+                    descend(ctx.getChild(1));
+                    return;
+                }
+                setNumber(-topNumber());
+                break;
+            case OP_CHAIN:
+                ConstantFolder.UnaryChain chain = (ConstantFolder.UnaryChain) ctx;
+                if (step == 0) {
+                    descend(chain.operand);
+                    return;
+                }
+                if (chain.forced) {
+                    double value = topNumber();
+                    setNumber(chain.negate ? -value : value);
+                }
+                break;
+            default:
+                if (step == 0) {
+                    descend(ctx.getChild(0));
+                    return;
+                }
+                if (step == 1) {
+                    setNumber(topNumber());
+                    descend(ctx.getChild(2));
+                    return;
+                }
+                double d2 = popNumber();
+                double d1 = numbers[count - 1];
+                switch (op) {
+                    case OP_ADD:
+                        numbers[count - 1] = d1 + d2;
+                        break;
+                    case OP_SUB:
+                        numbers[count - 1] = d1 - d2;
+                        break;
+                    case OP_MUL:
+                        numbers[count - 1] = d1 * d2;
+                        break;
+                    case OP_DIV:
+                        numbers[count - 1] = d1 / d2;
+                        break;
+                    default:
+                        numbers[count - 1] = Math.pow(d1, d2);
+                        break;
+                }
+                break;
+        }
+        // Popped work must not keep the tree
+        nodes[--depth] = null;
+    }
+
+    void pushWork(ParserRuleContext ctx, int op) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            ops = Arrays.copyOf(ops, depth * 2);
+            steps = Arrays.copyOf(steps, depth * 2);
+        }
+        nodes[depth] = ctx;
+        ops[depth] = op;
+        steps[depth++] = 0;
+    }
+
+    void pushValue(SemanticValue value) {
+        if (count == svs.length) {
+            svs = Arrays.copyOf(svs, count * 2);
+            numbers = Arrays.copyOf(numbers, count * 2);
+        }
+        svs[count++] = value;
+    }
+
+    void pushNumber(double value) {
+        pushValue(null);
+        numbers[count - 1] = value;
+    }
+
+    // The top value as a SemanticValue, e.g. to assign to it
+    SemanticValue topValue() {
+        SemanticValue value = svs[count - 1];
+        return (value != null) ? value : new ScalarSV(numbers[count - 1]);
+    }
+
+    double topNumber() {
+        SemanticValue value = svs[count - 1];
+        return (value != null) ? value.getRValue(econtext) : numbers[count - 1];
+    }
+
+    void setNumber(double value) {
+        svs[count - 1] = null;
+        numbers[count - 1] = value;
+    }
+
+    double popNumber() {
+        double value = topNumber();
+        svs[--count] = null;
+        return value;
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.antlr.v4.runtime.*;
+
+// Cache from statement text to its CompiledStatement, so repeated lines
+// skip lexing and parsing. Bounded both by entry count and by an estimated
+// weight in bytes; each bound is split over independently locked LRU
+// segments. Compiled statements hold only symbol slots, so a cached entry
+// runs as it is against any ExecutionContext using the same SymbolTable,
+// and relinked against another; the relinked copies stay with the entry.
+// Lookups needing neither a parse nor a relink count as hits, those
+// needing only a relink as relinks.
+class StatementCache {
+    static final int MAX_SEGMENTS = 16;
+
+    static final class Segment {
+        final LinkedHashMap<String, CompiledStatement> entries =
+                new LinkedHashMap<>(16, 0.75f, true);
+        long weight = 0;
+    }
+
+    final SymbolTable symbols;
+    final int max_entries;
+    final long max_weight;
+    final Segment[] segments;
+    final int segment_entries;
+    final long segment_weight;
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder relinks = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    StatementCache(int nmax_entries, long nmax_weight) {
+        this(nmax_entries, nmax_weight, new SymbolTable());
+    }
+
+    StatementCache(int nmax_entries, long nmax_weight, SymbolTable nsymbols) {
+        symbols = nsymbols;
+        max_entries = nmax_entries;
+        max_weight = nmax_weight;
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 <= nmax_entries) {
+            count <<= 1;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; ++i) {
+            segments[i] = new Segment();
+        }
+        segment_entries = Math.max(1, nmax_entries / count);
+        segment_weight = Math.max(1, nmax_weight / count);
+    }
+
+    // Rough heap footprint of an entry.
+    static long weigh(String text, CompiledStatement cs) {
+        return 64 + 2L * text.length() + 4L * cs.code.length + 8L * cs.consts.length;
+    }
+
+    Segment segmentFor(String text) {
+        int h = text.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    // Parses strictly: a statement with syntax errors throws and is not cached.
+    CompiledStatement compile(String text) {
+        gr04Lexer lexer = new gr04Lexer(new ANTLRInputStream(text));
+        gr04Parser parser = new gr04Parser(new CommonTokenStream(lexer));
+        parser.setErrorHandler(new BailErrorStrategy());
+        lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        return StatementCompiler.compile(parser.statement(), symbols);
+    }
+
+    CompiledStatement get(String text) {
+        return get(text, symbols);
+    }
+
+    // The entry for text with its slots in target.
+    CompiledStatement get(String text, SymbolTable target) {
+        Segment segment = segmentFor(text);
+        CompiledStatement cs;
+        synchronized (segment) {
+            cs = segment.entries.get(text);
+        }
+        if (cs != null) {
+            CompiledStatement linked = cs.findLinked(target);
+            if (linked != null) {
+                hits.increment();
+                return linked;
+            }
+            relinks.increment();
+            return cs.linkedTo(target);
+        }
+        misses.increment();
+        // NB compiled outside of the lock; a concurrent miss on the same
+        // text may compile it twice, and the first one stored wins.
+        CompiledStatement compiled = compile(text);
+        synchronized (segment) {
+            CompiledStatement raced = segment.entries.get(text);
+            if (raced != null) {
+                return raced.linkedTo(target);
+            }
+            segment.entries.put(text, compiled);
+            segment.weight += weigh(text, compiled);
+            evict(segment);
+        }
+        return compiled.linkedTo(target);
+    }
+
+    void evict(Segment segment) {
+        Iterator<Map.Entry<String, CompiledStatement>> it = segment.entries.entrySet().iterator();
+        while ((segment.entries.size() > segment_entries || segment.weight > segment_weight)
+                && it.hasNext()) {
+            Map.Entry<String, CompiledStatement> eldest = it.next();
+            segment.weight -= weigh(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    // Returns the statement value, or NaN for statements without value.
+    double execute(String text, ExecutionContext econtext) {
+        return get(text, econtext.symbols).execute(econtext);
+    }
+
+    int size() {
+        int total = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.entries.size();
+            }
+        }
+        return total;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long relinks() {
+        return relinks.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StatementCache(size=%d hits=%d relinks=%d misses=%d evictions=%d)",
+                size(), hits(), relinks(), misses(), evictions());
+    }
+}
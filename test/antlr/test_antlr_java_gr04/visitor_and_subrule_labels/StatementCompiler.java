@@ -0,0 +1,170 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Translates a gr04 statement tree into CompiledStatement code.
+// Mirrors MyVisitor rule by rule; see CodeBuilder for the evaluation order.
+public class StatementCompiler extends gr04BaseVisitor<CodeBuilder.Ref> {
+    CodeBuilder builder;
+
+    StatementCompiler(SymbolTable symbols) {
+        builder = new CodeBuilder(symbols);
+    }
+
+    static CompiledStatement compile(ParseTree tree) {
+        return compile(tree, new SymbolTable());
+    }
+
+    static CompiledStatement compile(ParseTree tree, SymbolTable symbols) {
+        StatementCompiler compiler = new StatementCompiler(symbols);
+        CodeBuilder.Ref result = compiler.visit(tree);
+        return compiler.builder.finish(result);
+    }
+
+    // Element code of a bulk assignment, over its own symbol table.
+    static CompiledStatement compileElement(ParseTree expression) {
+        StatementCompiler compiler = new StatementCompiler(new SymbolTable());
+        compiler.builder.element_mode = true;
+        CodeBuilder.Ref result = compiler.visit(expression);
+        return compiler.builder.finish(result);
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt1(gr04Parser.Stmt1Context ctx) {
+        return visit(ctx.stmt_defmap());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt2(gr04Parser.Stmt2Context ctx) {
+        return visit(ctx.stmt_bulk());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt0(gr04Parser.Stmt0Context ctx) {
+        return visit(ctx.expression());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt_defmap(gr04Parser.Stmt_defmapContext ctx) {
+        builder.defmap(ctx.IDENTIFIER().getText());
+        return null;
+    }
+
+    @Override
+    public CodeBuilder.Ref visitStmt_bulk(gr04Parser.Stmt_bulkContext ctx) {
+        builder.bulk(ctx.IDENTIFIER().getText(), compileElement(ctx.expression()));
+        return null;
+    }
+
+    @Override
+    public CodeBuilder.Ref visitExpression(gr04Parser.ExpressionContext ctx) {
+        return visit(ctx.assignment());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsg0(gr04Parser.Asg0Context ctx) {
+        return visit(ctx.addsub());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsg1(gr04Parser.Asg1Context ctx) {
+        CodeBuilder.Ref lvalue = visit(ctx.primary());
+        CodeBuilder.Ref rvalue = visit(ctx.assignment());
+        return builder.assign(lvalue, rvalue);
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAs0(gr04Parser.As0Context ctx) {
+        return visit(ctx.muldiv());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsplus(gr04Parser.AsplusContext ctx) {
+        return binary(CompiledStatement.OP_ADD, ctx.addsub(), ctx.muldiv());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAsminus(gr04Parser.AsminusContext ctx) {
+        return binary(CompiledStatement.OP_SUB, ctx.addsub(), ctx.muldiv());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitMd0(gr04Parser.Md0Context ctx) {
+        return visit(ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitMdmul(gr04Parser.MdmulContext ctx) {
+        return binary(CompiledStatement.OP_MUL, ctx.muldiv(), ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitMddiv(gr04Parser.MddivContext ctx) {
+        return binary(CompiledStatement.OP_DIV, ctx.muldiv(), ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPwr0(gr04Parser.Pwr0Context ctx) {
+        return visit(ctx.unary());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPwrpwr(gr04Parser.PwrpwrContext ctx) {
+        return binary(CompiledStatement.OP_POW, ctx.unary(), ctx.power());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitUn0(gr04Parser.Un0Context ctx) {
+        return visit(ctx.primary());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitUnplus(gr04Parser.UnplusContext ctx) {
+        return visit(ctx.unary());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitUnminus(gr04Parser.UnminusContext ctx) {
+        return builder.negate(visit(ctx.unary()));
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimexpr(gr04Parser.PrimexprContext ctx) {
+        return visit(ctx.expression());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimindex(gr04Parser.PrimindexContext ctx) {
+        String name = ctx.IDENTIFIER().getText();
+        return builder.indexed(name, visit(ctx.expression()));
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimall(gr04Parser.PrimallContext ctx) {
+        return builder.element(ctx.IDENTIFIER().getText());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimreduce(gr04Parser.PrimreduceContext ctx) {
+        return builder.reduce(ctx.IDENTIFIER(0).getText(), ctx.IDENTIFIER(1).getText());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitPrimatom(gr04Parser.PrimatomContext ctx) {
+        return visit(ctx.atom());
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAtomnum(gr04Parser.AtomnumContext ctx) {
+        return builder.constant(Double.valueOf(ctx.NUMBER().getText()));
+    }
+
+    @Override
+    public CodeBuilder.Ref visitAtomid(gr04Parser.AtomidContext ctx) {
+        return builder.scalar(ctx.getText());
+    }
+
+    CodeBuilder.Ref binary(int opcode, ParseTree left, ParseTree right) {
+        builder.materialize(visit(left));
+        builder.materialize(visit(right));
+        return builder.binary(opcode);
+    }
+}
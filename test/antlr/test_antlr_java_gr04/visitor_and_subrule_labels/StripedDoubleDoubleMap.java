@@ -0,0 +1,105 @@
+// Thread-safe DoubleDoubleMap: keys are spread by hash over independently
+// locked DoubleDoubleMap stripes, so writers to different stripes do not
+// wait for each other. The inherited arrays stay empty.
+class StripedDoubleDoubleMap extends DoubleDoubleMap {
+    static final int STRIPES = 64;
+
+    final DoubleDoubleMap[] stripes = new DoubleDoubleMap[STRIPES];
+
+    StripedDoubleDoubleMap() {
+        this(0);
+    }
+
+    StripedDoubleDoubleMap(int expected_size) {
+        for (int i = 0; i < STRIPES; ++i) {
+            stripes[i] = new DoubleDoubleMap(expected_size / STRIPES);
+        }
+    }
+
+    // High hash bits: a stripe probes its own table with the low ones.
+    DoubleDoubleMap stripeFor(double key) {
+        return stripes[hash(Double.doubleToLongBits(key)) >>> 26];
+    }
+
+    @Override
+    int size() {
+        int total = 0;
+        for (DoubleDoubleMap stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.size();
+            }
+        }
+        return total;
+    }
+
+    // No stable positions here; this keeps AstNode.ConstIndexed from caching one.
+    @Override
+    int find(long bits) {
+        return -1;
+    }
+
+    @Override
+    boolean containsKey(double key) {
+        DoubleDoubleMap stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.containsKey(key);
+        }
+    }
+
+    @Override
+    double getOrFail(double key) {
+        DoubleDoubleMap stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.getOrFail(key);
+        }
+    }
+
+    // Each stripe is locked while its entries are passed on.
+    @Override
+    void forEach(EntryConsumer consumer) {
+        for (DoubleDoubleMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.forEach(consumer);
+            }
+        }
+    }
+
+    // One stripe is locked at a time, so this is not atomic as a whole;
+    // the updater must not wait for locks of other threads.
+    @Override
+    void updateValues(ChunkUpdater updater) {
+        for (DoubleDoubleMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.updateValues(updater);
+            }
+        }
+    }
+
+    @Override
+    double reduce(int function) {
+        double acc = identity(function);
+        for (DoubleDoubleMap stripe : stripes) {
+            synchronized (stripe) {
+                acc = combine(function, acc, stripe.reduce(function));
+            }
+        }
+        return acc;
+    }
+
+    @Override
+    void clear() {
+        for (DoubleDoubleMap stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    @Override
+    void put(double key, double value) {
+        DoubleDoubleMap stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.put(key, value);
+        }
+    }
+}
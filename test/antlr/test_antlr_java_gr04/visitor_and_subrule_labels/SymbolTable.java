@@ -0,0 +1,49 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Interns identifiers into dense slot numbers. Scalars and maps have
+// separate storage in ExecutionContext, so one name has one slot for both.
+// A table only grows, so slots stay valid for compiled statements. Each
+// context and each engine has its own table unless given one; a statement
+// compiled over another table is relinked by name (see
+// CompiledStatement.linkedTo).
+class SymbolTable {
+    ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    volatile String[] names = new String[16];
+    int size = 0;
+
+    int intern(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (this) {
+            slot = slots.get(name);
+            if (slot != null) {
+                return slot;
+            }
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = name;
+            names = current;
+            slots.put(name, size);
+            return size++;
+        }
+    }
+
+    // Slot of a known name, or -1.
+    int lookup(String name) {
+        Integer slot = slots.get(name);
+        return (slot != null) ? slot : -1;
+    }
+
+    String name(int slot) {
+        return names[slot];
+    }
+
+    int size() {
+        return slots.size();
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Tiered execution of statements by text. A statement is parsed once and
+// first runs by walking its tree with MyVisitor (tier 0); after
+// promote_threshold invocations it is compiled to a hidden class by
+// BytecodeCompiler (tier 1). Compiled code has the slots of one symbol
+// table baked in, so a promoted statement is compiled again on its first
+// run against each other table. If compiled code throws anything but the
+// DCExecutionError the tree walk would throw as well, the statement is
+// deoptimized back to tier 0 and may be promoted again, until it has been
+// deoptimized max_deopts times. The exception is passed on as is; the
+// statement is not re-executed. Not thread-safe.
+class TieredEngine {
+
+    static final class TieredStatement {
+        final String text;
+        final ParseTree tree;
+        // Code per symbol table, none in tier 0
+        final Map<SymbolTable, CompiledCode> compiled = new WeakHashMap<>();
+        boolean promoted = false;
+        boolean has_value = false;
+        // The table of the last compiled run and its code
+        SymbolTable last_symbols = null;
+        CompiledCode last_compiled = null;
+        // The tier the last invocation ran in
+        int last_tier = 0;
+        int invocations = 0;
+        int promotions = 0;
+        int deopts = 0;
+        boolean compilable = true;
+
+        TieredStatement(String ntext, ParseTree ntree) {
+            text = ntext;
+            tree = ntree;
+        }
+
+        int tier() {
+            return last_tier;
+        }
+    }
+
+    final int promote_threshold;
+    final int max_deopts;
+    final Map<String, TieredStatement> statements = new HashMap<>();
+    final MyVisitor visitor = new MyVisitor();
+    long promotions = 0;
+    long deopts = 0;
+
+    TieredEngine(int npromote_threshold) {
+        this(npromote_threshold, 3);
+    }
+
+    TieredEngine(int npromote_threshold, int nmax_deopts) {
+        promote_threshold = npromote_threshold;
+        max_deopts = nmax_deopts;
+    }
+
+    TieredStatement statement(String text) {
+        TieredStatement ts = statements.get(text);
+        if (ts == null) {
+            gr04Lexer lexer = new gr04Lexer(new ANTLRInputStream(text));
+            gr04Parser parser = new gr04Parser(new CommonTokenStream(lexer));
+            parser.setErrorHandler(new BailErrorStrategy());
+            lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+            ts = new TieredStatement(text, parser.statement());
+            statements.put(text, ts);
+        }
+        return ts;
+    }
+
+    // Returns null if the statement yields no value.
+    Double execute(String text, ExecutionContext econtext) {
+        TieredStatement ts = statement(text);
+        ++ts.invocations;
+        CompiledCode code = ts.promoted ? compiledFor(ts, econtext.symbols) : null;
+        if (code != null) {
+            ts.last_tier = 1;
+            double result;
+            try {
+                result = code.run(econtext);
+            } catch (DCExecutionError exc) {
+                throw exc;
+            } catch (RuntimeException exc) {
+                deoptimize(ts);
+                throw exc;
+            }
+            return ts.has_value ? result : null;
+        }
+        if (!ts.promoted && ts.compilable && ts.invocations >= promote_threshold) {
+            promote(ts, econtext.symbols);
+        }
+        ts.last_tier = 0;
+        visitor.econtext = econtext;
+        SemanticValue rsv = visitor.visit(ts.tree);
+        return (rsv != null) ? rsv.getRValue(econtext) : null;
+    }
+
+    // NB the promoting invocation itself still runs in tier 0
+    void promote(TieredStatement ts, SymbolTable symbols) {
+        ts.promoted = true;
+        if (compiledFor(ts, symbols) == null) {
+            return;
+        }
+        ++ts.promotions;
+        ++promotions;
+    }
+
+    // Code of a promoted statement for a table, or null if it cannot be
+    // compiled (the statement then stays in tier 0)
+    CompiledCode compiledFor(TieredStatement ts, SymbolTable symbols) {
+        if (symbols == ts.last_symbols) {
+            return ts.last_compiled;
+        }
+        CompiledCode code = ts.compiled.get(symbols);
+        if (code == null) {
+            try {
+                CompiledStatement cs = StatementCompiler.compile(ts.tree, symbols);
+                code = BytecodeCompiler.compile(cs);
+                ts.has_value = cs.has_value;
+            } catch (IllegalStateException | LinkageError exc) {
+                // E.g. a statement over the 64K method size limit
+                ts.compilable = false;
+                ts.promoted = false;
+                ts.compiled.clear();
+                ts.last_symbols = null;
+                ts.last_compiled = null;
+                return null;
+            }
+            ts.compiled.put(symbols, code);
+        }
+        ts.last_symbols = symbols;
+        ts.last_compiled = code;
+        return code;
+    }
+
+    void deoptimize(TieredStatement ts) {
+        ts.compiled.clear();
+        ts.promoted = false;
+        ts.last_symbols = null;
+        ts.last_compiled = null;
+        ts.invocations = 0;
+        ++ts.deopts;
+        ++deopts;
+        if (ts.deopts >= max_deopts) {
+            ts.compilable = false;
+        }
+    }
+
+    List<TieredStatement> compiledStatements() {
+        List<TieredStatement> result = new ArrayList<>();
+        for (TieredStatement ts : statements.values()) {
+            if (ts.promoted) {
+                result.add(ts);
+            }
+        }
+        return result;
+    }
+
+    String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("TieredEngine: statements=%d compiled=%d promotions=%d deopts=%d\n",
+                statements.size(), compiledStatements().size(), promotions, deopts));
+        for (TieredStatement ts : statements.values()) {
+            sb.append(String.format("  tier=%d invocations=%d promotions=%d deopts=%d%s: %s\n",
+                    ts.tier(), ts.invocations, ts.promotions, ts.deopts,
+                    ts.compilable ? "" : " (not compilable)", ts.text));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Evaluates s=1+1+...+1 with the given number of terms, read from a
+// generating Reader so that the text itself is never held in memory:
+// first tree-less with TreelessEvaluator, reporting the peak heap, then by
+// parse tree and StackEvaluator (MyVisitor itself overflows the Java stack
+// on a long left-recursive sum), which needs memory for every token and
+// rule node. Meant to run with a small heap, see the treeless-bench target.
+public class TreelessBench {
+
+    static final class SumReader extends Reader {
+        long left;
+        long position = 0;
+
+        SumReader(long terms) {
+            left = terms;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position < 0) {
+                return -1;
+            }
+            int done = 0;
+            while (done < length && position >= 0) {
+                if (position < 2) {
+                    buffer[offset + done++] = "s=".charAt((int) position++);
+                } else if (left > 0) {
+                    buffer[offset + done++] = (position++ % 2 == 0) ? '1' : '+';
+                    if (position % 2 == 0) {
+                        --left;
+                    }
+                } else {
+                    buffer[offset + done++] = '1';
+                    position = -1;
+                }
+            }
+            return done;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long terms = (args.length > 0) ? Long.valueOf(args[0]) : 10000000;
+        System.out.printf("s=1+1+...+1, %d terms, max heap %d MB\n", terms, Runtime.getRuntime().maxMemory() >> 20);
+        for (int round = 0; round < 2; ++round) {
+            resetPeakHeap();
+            ExecutionContext econtext = new ExecutionContext();
+            TreelessEvaluator evaluator = new TreelessEvaluator(econtext);
+            long t0 = System.nanoTime();
+            double result = evaluator.evaluate(new SumReader(terms)).getRValue(econtext);
+            long t1 = System.nanoTime();
+            System.out.printf("tree-less:     %8.1f ms = %s, peak heap %5.1f MB\n",
+                    (t1 - t0) / 1e6, result, peakHeap() / 1e6);
+        }
+        resetPeakHeap();
+        long t0 = System.nanoTime();
+        try {
+            gr04Parser parser = new gr04Parser(new CommonTokenStream(new gr04Lexer(
+                    new ANTLRInputStream(new SumReader(terms)))));
+            parser.setErrorHandler(new BailErrorStrategy());
+            ParseTree tree = parser.statement();
+            ExecutionContext econtext = new ExecutionContext();
+            double result = new StackEvaluator(econtext).evaluateValue(tree);
+            long t1 = System.nanoTime();
+            System.out.printf("tree + stack:  %8.1f ms = %s, peak heap %5.1f MB\n",
+                    (t1 - t0) / 1e6, result, peakHeap() / 1e6);
+        } catch (OutOfMemoryError exc) {
+            long t1 = System.nanoTime();
+            System.out.printf("tree + stack:  OutOfMemoryError after %.1f ms\n", (t1 - t0) / 1e6);
+        }
+    }
+}
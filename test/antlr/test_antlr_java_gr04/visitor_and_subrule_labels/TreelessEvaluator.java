@@ -0,0 +1,325 @@
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Executes a gr04 statement while it is parsed, without a parse tree: the
+// parser runs with setBuildParseTree(false) and this parse listener keeps
+// values on a stack as rules are exited, so a finished subrule leaves only
+// its value behind. With unbuffered character and token streams the memory
+// held does not grow with the length of a sum or product: 1+1+...+1 of any
+// length runs in constant memory. It grows with the nesting depth, and with
+// the tokens prediction has to look ahead over: an expression may be an
+// assignment (primary '=' assignment), so a parenthesized or indexed
+// primary which starts an expression is buffered whole to see whether '='
+// follows: (1+1+...+1) holds all its tokens.
+//
+// Results and errors are those of MyVisitor: references stay lazy, and the
+// left operand of a binary operator is read when the operator is matched,
+// i.e. before the right one is parsed, as MyVisitor reads it before
+// visiting the right one. The difference is that the statement runs as far
+// as it is parsed: an assignment before a syntax error is done, and an
+// execution error stops the parse where MyVisitor would reject the whole
+// statement first. Syntax errors bail out with ParseCancellationException.
+//
+// A bulk assignment m[*]=... needs its element expression as a tree (see
+// MapBulk), so the tree is built for that statement only.
+// Not thread-safe: use one evaluator per thread.
+class TreelessEvaluator implements ParseTreeListener {
+    ExecutionContext econtext;
+    gr04Parser parser;
+    // Set while the tree of a bulk assignment is built
+    gr04Parser.Stmt_bulkContext bulk = null;
+    // The generated rule methods exit their rules in finally blocks, so
+    // after an error rules are still exited, without their operands.
+    boolean failed = false;
+
+    // The parents of the open rules (a labelled alternative replaces the
+    // context of its rule, under the same parent) and the value count when
+    // each was entered. A rule which left fewer values or tokens than it
+    // takes was cut short by an Error (StackOverflowError,
+    // OutOfMemoryError), which the parser does not report to its listeners.
+    RuleContext[] open = new RuleContext[64];
+    int[] entries = new int[64];
+    int depth = 0;
+
+    // A value is svs[i], or numbers[i] if svs[i] is null
+    SemanticValue[] svs = new SemanticValue[64];
+    double[] numbers = new double[64];
+    int count = 0;
+
+    TreelessEvaluator(ExecutionContext necontext) {
+        econtext = necontext;
+    }
+
+    // null for a statement without value
+    SemanticValue evaluate(Reader reader) {
+        gr04Lexer lexer = new gr04Lexer(new UnbufferedCharStream(reader));
+        // NB an unbuffered stream keeps only the current token's characters
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        lexer.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        parser = new gr04Parser(new UnbufferedTokenStream<Token>(lexer));
+        parser.setBuildParseTree(false);
+        parser.setErrorHandler(new BailErrorStrategy());
+        parser.removeErrorListener(ConsoleErrorListener.INSTANCE);
+        parser.addParseListener(this);
+        count = 0;
+        bulk = null;
+        failed = false;
+        try {
+            parser.statement();
+            if (count == 0) {
+                return null;
+            }
+            return (svs[0] != null) ? svs[0] : new ScalarSV(numbers[0]);
+        } finally {
+            Arrays.fill(svs, 0, Math.max(count, 1), null);
+            Arrays.fill(open, 0, depth, null);
+            depth = 0;
+            parser = null;
+        }
+    }
+
+    SemanticValue evaluate(String text) {
+        return evaluate(new StringReader(text));
+    }
+
+    double evaluateValue(String text) {
+        SemanticValue result = evaluate(text);
+        return (result != null) ? result.getRValue(econtext) : Double.NaN;
+    }
+
+    @Override
+    public void enterEveryRule(ParserRuleContext ctx) {
+        if (depth == open.length) {
+            open = Arrays.copyOf(open, depth * 2);
+            entries = Arrays.copyOf(entries, depth * 2);
+        }
+        open[depth] = ctx.parent;
+        entries[depth++] = count;
+        if (bulk == null && ctx instanceof gr04Parser.Stmt_bulkContext) {
+            bulk = (gr04Parser.Stmt_bulkContext) ctx;
+            parser.setBuildParseTree(true);
+        }
+    }
+
+    @Override
+    public void visitTerminal(TerminalNode node) {
+        if (failed) {
+            return;
+        }
+        RuleContext ctx = (RuleContext) node.getParent();
+        if (ctx instanceof gr04Parser.AsplusContext || ctx instanceof gr04Parser.AsminusContext
+                || ctx instanceof gr04Parser.MdmulContext || ctx instanceof gr04Parser.MddivContext
+                || ctx instanceof gr04Parser.PwrpwrContext) {
+            // The operator: read the left operand now
+            if (bulk == null) {
+                setNumber(topNumber());
+            }
+        } else if (ctx instanceof gr04Parser.PrimindexContext && ctx.getChildCount() == 1) {
+            String ident_name = node.getText();
+            pushValue((bulk != null) ? null : new IdentifierSV(ident_name, econtext.symbols.intern(ident_name)));
+        }
+    }
+
+    @Override
+    public void visitErrorNode(ErrorNode node) {
+    }
+
+    @Override
+    public void exitEveryRule(ParserRuleContext ctx) {
+        if (depth == 0 || open[depth - 1] != ctx.parent) {
+            // Entered while an Error was thrown
+            failed = true;
+            return;
+        }
+        int entry = entries[--depth];
+        open[depth] = null;
+        // BailErrorStrategy sets the exception in every open rule
+        if (failed || ctx.exception != null) {
+            return;
+        }
+        if (count - entry != operands(ctx) || (tokens(ctx) > 0 && matched(ctx) != tokens(ctx))) {
+            failed = true;
+            return;
+        }
+        try {
+            exit(ctx);
+        } catch (RuntimeException | Error exc) {
+            failed = true;
+            throw exc;
+        }
+    }
+
+    // Values a rule leaves above those it was entered with, when it ran to
+    // its end. The binary operators of the left-recursive rules are entered
+    // after their left operand.
+    static int operands(ParserRuleContext ctx) {
+        if (ctx instanceof gr04Parser.Asg1Context || ctx instanceof gr04Parser.PwrpwrContext
+                || ctx instanceof gr04Parser.PrimindexContext) {
+            return 2;
+        }
+        if (ctx instanceof gr04Parser.Stmt1Context || ctx instanceof gr04Parser.Stmt2Context
+                || ctx instanceof gr04Parser.Stmt_defmapContext || ctx instanceof gr04Parser.PrimallContext
+                || ctx instanceof gr04Parser.PrimreduceContext || ctx instanceof gr04Parser.AtomContext) {
+            return 0;
+        }
+        return 1;
+    }
+
+    // Tokens of a rule which ends with a token, 0 for one which ends with
+    // a subrule
+    static int tokens(ParserRuleContext ctx) {
+        if (ctx instanceof gr04Parser.PrimexprContext || ctx instanceof gr04Parser.Stmt_defmapContext) {
+            return 2;
+        } else if (ctx instanceof gr04Parser.PrimindexContext) {
+            return 3;
+        } else if (ctx instanceof gr04Parser.PrimallContext || ctx instanceof gr04Parser.PrimreduceContext) {
+            return 4;
+        } else if (ctx instanceof gr04Parser.AtomContext) {
+            return 1;
+        }
+        return 0;
+    }
+
+    // The parser adds the tokens to their rule for the listener
+    static int matched(ParserRuleContext ctx) {
+        int matched = 0;
+        for (int i = 0; i < ctx.getChildCount(); ++i) {
+            if (ctx.getChild(i) instanceof TerminalNode) {
+                ++matched;
+            }
+        }
+        return matched;
+    }
+
+    // Pass-through rules (stmt0, expression, asg0, as0, md0, pwr0, un0,
+    // unplus, primatom, primexpr) leave the value of their child as it is.
+    void exit(ParserRuleContext ctx) {
+        if (bulk != null) {
+            // The values are placeholders, to check that the rules ran to
+            // their end
+            count -= operands(ctx);
+            if (ctx == bulk) {
+                MapBulk.compile(bulk.IDENTIFIER().getText(), bulk.expression()).execute(econtext);
+                parser.setBuildParseTree(false);
+                bulk = null;
+            } else {
+                if (ctx instanceof gr04Parser.AsplusContext || ctx instanceof gr04Parser.AsminusContext
+                        || ctx instanceof gr04Parser.MdmulContext || ctx instanceof gr04Parser.MddivContext) {
+                    --count;
+                }
+                pushNumber(0.0);
+            }
+            return;
+        }
+        switch (ctx.getRuleIndex()) {
+            case gr04Parser.RULE_stmt_defmap:
+                econtext.createMap(((gr04Parser.Stmt_defmapContext) ctx).IDENTIFIER().getText());
+                break;
+            case gr04Parser.RULE_assignment:
+                if (ctx instanceof gr04Parser.Asg1Context) {
+                    double rvalue = popNumber();
+                    topValue().assignValue(rvalue, econtext);
+                    setNumber(rvalue);
+                }
+                break;
+            case gr04Parser.RULE_addsub:
+                if (ctx instanceof gr04Parser.AsplusContext) {
+                    double d2 = popNumber();
+                    numbers[count - 1] += d2;
+                } else if (ctx instanceof gr04Parser.AsminusContext) {
+                    double d2 = popNumber();
+                    numbers[count - 1] -= d2;
+                }
+                break;
+            case gr04Parser.RULE_muldiv:
+                if (ctx instanceof gr04Parser.MdmulContext) {
+                    double d2 = popNumber();
+                    numbers[count - 1] *= d2;
+                } else if (ctx instanceof gr04Parser.MddivContext) {
+                    double d2 = popNumber();
+                    numbers[count - 1] /= d2;
+                }
+                break;
+            case gr04Parser.RULE_power:
+                if (ctx instanceof gr04Parser.PwrpwrContext) {
+                    double d2 = popNumber();
+                    numbers[count - 1] = Math.pow(numbers[count - 1], d2);
+                }
+                break;
+            case gr04Parser.RULE_unary:
+                if (ctx instanceof gr04Parser.UnminusContext) {
+                    setNumber(-topNumber());
+                }
+                break;
+            case gr04Parser.RULE_primary:
+                if (ctx instanceof gr04Parser.PrimindexContext) {
+                    SemanticValue index = popValue();
+                    svs[count - 1] = new IndexedReferenceSV((IdentifierSV) svs[count - 1], index);
+                } else if (ctx instanceof gr04Parser.PrimallContext) {
+                    throw new DCExecutionError("Bulk reference outside of bulk assignment");
+                } else if (ctx instanceof gr04Parser.PrimreduceContext) {
+                    gr04Parser.PrimreduceContext reduce = (gr04Parser.PrimreduceContext) ctx;
+                    int function = MapBulk.function(reduce.IDENTIFIER(0).getText());
+                    int slot = econtext.symbols.intern(reduce.IDENTIFIER(1).getText());
+                    pushNumber(MapBulk.reduce(econtext, slot, function));
+                }
+                break;
+            case gr04Parser.RULE_atom:
+                String text = ctx.start.getText();
+                if (ctx instanceof gr04Parser.AtomnumContext) {
+                    pushNumber(Double.valueOf(text));
+                } else {
+                    pushValue(new IdentifierSV(text, econtext.symbols.intern(text)));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    void pushValue(SemanticValue value) {
+        if (count == svs.length) {
+            svs = Arrays.copyOf(svs, count * 2);
+            numbers = Arrays.copyOf(numbers, count * 2);
+        }
+        svs[count++] = value;
+    }
+
+    void pushNumber(double value) {
+        pushValue(null);
+        numbers[count - 1] = value;
+    }
+
+    // The top value as a SemanticValue, e.g. to assign to it
+    SemanticValue topValue() {
+        SemanticValue value = svs[count - 1];
+        return (value != null) ? value : new ScalarSV(numbers[count - 1]);
+    }
+
+    double topNumber() {
+        SemanticValue value = svs[count - 1];
+        return (value != null) ? value.getRValue(econtext) : numbers[count - 1];
+    }
+
+    void setNumber(double value) {
+        svs[count - 1] = null;
+        numbers[count - 1] = value;
+    }
+
+    SemanticValue popValue() {
+        SemanticValue value = topValue();
+        svs[--count] = null;
+        return value;
+    }
+
+    double popNumber() {
+        double value = topNumber();
+        svs[--count] = null;
+        return value;
+    }
+}
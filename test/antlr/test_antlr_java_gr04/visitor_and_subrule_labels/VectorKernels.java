@@ -0,0 +1,80 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+// BatchKernels over jdk.incubator.vector. Must be compiled and run with
+// --add-modules jdk.incubator.vector; BatchKernels.best() only loads it by
+// name, so everything else builds and runs without the module.
+// NB each operation has its own loop: lanewise() with an operator passed
+// as a parameter is not intrinsified and runs far slower than scalar code.
+class VectorKernels extends BatchKernels {
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    String name() {
+        return "vector " + SPECIES;
+    }
+
+    @Override
+    void add(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, ao + i);
+            va.add(DoubleVector.fromArray(SPECIES, b, bo + i)).intoArray(dst, i);
+        }
+        for (; i < n; ++i) {
+            dst[i] = a[ao + i] + b[bo + i];
+        }
+    }
+
+    @Override
+    void sub(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, ao + i);
+            va.sub(DoubleVector.fromArray(SPECIES, b, bo + i)).intoArray(dst, i);
+        }
+        for (; i < n; ++i) {
+            dst[i] = a[ao + i] - b[bo + i];
+        }
+    }
+
+    @Override
+    void mul(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, ao + i);
+            va.mul(DoubleVector.fromArray(SPECIES, b, bo + i)).intoArray(dst, i);
+        }
+        for (; i < n; ++i) {
+            dst[i] = a[ao + i] * b[bo + i];
+        }
+    }
+
+    @Override
+    void div(double[] a, int ao, double[] b, int bo, double[] dst, int n) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, ao + i);
+            va.div(DoubleVector.fromArray(SPECIES, b, bo + i)).intoArray(dst, i);
+        }
+        for (; i < n; ++i) {
+            dst[i] = a[ao + i] / b[bo + i];
+        }
+    }
+
+    @Override
+    void neg(double[] a, int ao, double[] dst, int n) {
+        int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, ao + i).neg().intoArray(dst, i);
+        }
+        for (; i < n; ++i) {
+            dst[i] = -a[ao + i];
+        }
+    }
+}
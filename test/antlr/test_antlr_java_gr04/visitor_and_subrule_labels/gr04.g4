@@ -1,12 +1,17 @@
 grammar gr04;
 
 statement: stmt_defmap #stmt1
+  | stmt_bulk #stmt2
   | expression #stmt0
   ;
  
 stmt_defmap: KW_DEFMAP IDENTIFIER
   ;
 
+// m[*] = expression: every element of m, see MapBulk
+stmt_bulk: IDENTIFIER '[' '*' ']' '=' expression
+  ;
+
 expression: assignment;
 
 assignment: primary '=' assignment #asg1
@@ -30,6 +35,8 @@ unary: primary #un0
   ;
 primary: '(' expression ')' # primexpr
   | IDENTIFIER '[' expression ']' # primindex
+  | IDENTIFIER '[' '*' ']' # primall
+  | IDENTIFIER '(' IDENTIFIER ')' # primreduce
   | atom #primatom
   ;
 
@@ -0,0 +1,17 @@
+grammar gr05;
+import gr04;
+
+// gr04 statements separated by ';', and loops over blocks of them.
+// The literals 'while' and 'for' make these words keywords: unlike in gr04
+// they cannot name a scalar or a map.
+program: block EOF
+  ;
+
+block: (loop | statement ';' | ';')*
+  ;
+
+// for (i = first, last) runs with i = first, first+1, ... up to last;
+// the bounds are computed once, before the first iteration.
+loop: 'while' '(' expression ')' '{' block '}' #loopwhile
+  | 'for' '(' IDENTIFIER '=' expression ',' expression ')' '{' block '}' #loopfor
+  ;